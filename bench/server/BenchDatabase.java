@@ -0,0 +1,21 @@
+package server;
+
+/**
+ * Hace que el Pool use la base de datos H2 embebida (ver
+ * server.pool.EmbeddedDatabase) en vez del MySQL del archivo BDconfig. Asi
+ * los benchmarks miden el codigo del servidor sin depender de una base de
+ * datos externa.
+ *
+ * @author Steven Arce
+ */
+public class BenchDatabase {
+
+    /**
+     * Este metodo pretende apuntar el Pool a la base de datos embebida. Hay
+     * que llamarlo antes de usar el Pool por primera vez.
+     */
+    public static void start() {
+        System.setProperty("server.pool.BDconfig.embedded", "true");
+    }
+
+}
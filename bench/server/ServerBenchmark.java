@@ -0,0 +1,148 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import lib.message.Message;
+import lib.message.Msg;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import server.factory.LogicableFactory;
+
+/**
+ * Mide el viaje completo de un SIGNIN por el loopback: el cliente serializa el
+ * Message, el Server lo atiende con su configuracion normal (pool de hilos,
+ * cache de usuarios, registro en segundo plano) contra una base de datos H2 en
+ * memoria, y el cliente lee la respuesta. Se mide abriendo una conexion por
+ * peticion, como hace el cliente original, y reutilizando la conexion.
+ *
+ * @author Steven Arce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ServerBenchmark {
+
+    private static final int PORT = 5109;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchDatabase.start();
+        System.setProperty("server.serverSocket.ServerProperties.PORT", String.valueOf(PORT));
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[0]);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "bench-server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer();
+        new LogicableFactory().getDao().signUp(sampleUser());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        LogicableFactory.shutDownAudit();
+    }
+
+    /**
+     * Conexion de un hilo del benchmark que se reutiliza en cada peticion.
+     */
+    @State(Scope.Thread)
+    public static class KeepAliveClient {
+
+        private Socket socket;
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+
+        @Setup(Level.Iteration)
+        public void connect() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), PORT);
+            out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            in = new ObjectInputStream(socket.getInputStream());
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public Object connectAndSignIn() throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), PORT)) {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            out.writeObject(signInMessage());
+            out.flush();
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public Object keepAliveSignIn(KeepAliveClient client) throws Exception {
+        client.out.writeObject(signInMessage());
+        client.out.flush();
+        client.out.reset();
+        return client.in.readObject();
+    }
+
+    private static void waitForServer() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                //Solo se comprueba que acepta conexiones
+                new Socket(InetAddress.getLoopbackAddress(), PORT).close();
+                return;
+            } catch (IOException ex) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("El servidor no ha arrancado en el puerto " + PORT);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static Message signInMessage() {
+        Message message = new Message();
+        message.setMsg(Msg.SIGNIN);
+        message.setUser(sampleUser());
+        return message;
+    }
+
+    private static User sampleUser() {
+        User user = new User();
+        user.setLogin("bench");
+        user.setEmail("bench@susi.com");
+        user.setFullName("Bench");
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setPassword("abcd1234");
+        return user;
+    }
+
+}
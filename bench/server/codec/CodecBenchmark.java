@@ -0,0 +1,83 @@
+package server.codec;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import lib.message.Message;
+import lib.message.Msg;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compara la serializacion de Java con el formato binario al convertir un
+ * Message de SIGNIN con su User. Al preparar cada formato se imprime cuantos
+ * bytes ocupa el mensaje en la red.
+ *
+ * @author Steven Arce
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"JAVA", "BINARY"})
+    public String codecName;
+
+    private MessageCodec codec;
+    private Message message;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = "BINARY".equals(codecName) ? BinaryCodec.INSTANCE : JavaSerializationCodec.INSTANCE;
+        message = sampleMessage();
+        encoded = codec.encode(message);
+        System.out.println(codecName + ": " + encoded.length + " bytes en la red");
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        return codec.decode(encoded);
+    }
+
+    /**
+     * @return un mensaje de SIGNIN como los que manda el cliente.
+     */
+    static Message sampleMessage() {
+        User user = new User();
+        user.setId(42);
+        user.setLogin("steven");
+        user.setEmail("steven@susi.com");
+        user.setFullName("Steven Arce");
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setPassword("abcd*1234");
+        user.setLastPasswordChange(new Timestamp(1_600_000_000_000L));
+        Message message = new Message();
+        message.setMsg(Msg.SIGNIN);
+        message.setUser(user);
+        return message;
+    }
+
+}
@@ -0,0 +1,81 @@
+package server.controller;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BenchDatabase;
+import server.pool.Pool;
+
+/**
+ * Mide signIn y signUp de DAOableImplementation contra una base de datos H2
+ * en memoria. El DAO no usa la cache de usuarios ni el registro en segundo
+ * plano, asi que cada signIn hace la consulta y la llamada a
+ * last_ten_sign_in.
+ *
+ * @author Steven Arce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class DaoBenchmark {
+
+    private final AtomicLong nextLogin = new AtomicLong();
+    private DAOableImplementation dao;
+    private User registered;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchDatabase.start();
+        dao = new DAOableImplementation();
+        registered = newUser("bench");
+        dao.signUp(registered);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Pool.shutDownPool();
+    }
+
+    @Benchmark
+    public User signIn() throws Exception {
+        return dao.signIn(registered);
+    }
+
+    @Benchmark
+    public User signUp() throws Exception {
+        return dao.signUp(newUser("u" + nextLogin.incrementAndGet()));
+    }
+
+    private static User newUser(String login) {
+        User user = new User();
+        user.setLogin(login);
+        user.setEmail(login + "@susi.com");
+        user.setFullName("Bench " + login);
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setPassword("abcd1234");
+        user.setLastPasswordChange(new Timestamp(System.currentTimeMillis()));
+        return user;
+    }
+
+}
@@ -0,0 +1,67 @@
+package server.pool;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import lib.exceptions.ConnectException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BenchDatabase;
+
+/**
+ * Mide lo que cuesta pedir y devolver una conexion al Pool cuando muchos
+ * hilos lo usan a la vez. Con 32 hilos y maxSize=10 hay mas hilos que
+ * conexiones, asi que tambien se mide la espera en el semaforo.
+ *
+ * @author Steven Arce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+    private Pool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchDatabase.start();
+        pool = Pool.getInstance();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Pool.shutDownPool();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Connection borrowUncontended() throws ConnectException {
+        return borrow();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Connection borrowContended() throws ConnectException {
+        return borrow();
+    }
+
+    private Connection borrow() throws ConnectException {
+        Connection con = pool.getConnection();
+        pool.releaseConnection(con);
+        return con;
+    }
+
+}
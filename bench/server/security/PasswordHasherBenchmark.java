@@ -0,0 +1,52 @@
+package server.security;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mide cuantas contraseñas por segundo comprueba un solo hilo con cada coste
+ * de PBKDF2, es decir, cuantos inicios de sesion por segundo aguanta cada
+ * procesador. Sirve para elegir PASSWORDCOST: el numero de procesadores por
+ * este resultado es el maximo de inicios de sesion por segundo del servidor.
+ *
+ * @author Steven Arce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(1)
+public class PasswordHasherBenchmark {
+
+    @Param({"10000", "100000", "600000"})
+    public int cost;
+
+    private PasswordHasher hasher;
+    private String stored;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        hasher = new Pbkdf2PasswordHasher(cost);
+        stored = hasher.hash("abcd*1234");
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return hasher.verify("abcd*1234", stored);
+    }
+
+}
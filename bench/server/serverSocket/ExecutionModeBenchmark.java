@@ -0,0 +1,83 @@
+package server.serverSocket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mide cuantos clientes a la vez puede atender el WorkerPool en cada modo.
+ * Cada tarea simula un cliente que pasa la mayor parte del tiempo esperando
+ * (red y base de datos), y se mide cuanto se tarda en atender a todos. En modo
+ * PLATFORM el pool tiene tantos hilos como WORKERMAXSIZE, en modo VIRTUAL un
+ * hilo virtual por cliente. El modo VIRTUAL necesita ejecutarse con Java 21.
+ *
+ * @author Steven Arce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionModeBenchmark {
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String mode;
+
+    @Param({"1000", "10000"})
+    public int clients;
+
+    @Param({"200"})
+    public int platformThreads;
+
+    @Param({"20"})
+    public int waitMillis;
+
+    private WorkerPool pool;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        if ("VIRTUAL".equals(mode)) {
+            pool = WorkerPool.virtual(clients, WorkerPool.RejectPolicy.REPLY);
+            if (pool == null) {
+                throw new IllegalStateException("Esta JVM no tiene hilos virtuales");
+            }
+        } else {
+            pool = new WorkerPool(platformThreads, platformThreads, clients, 60, WorkerPool.RejectPolicy.REPLY);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public void serveClients() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(waitMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+
+}
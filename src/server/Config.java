@@ -0,0 +1,49 @@
+package server;
+
+import java.util.Enumeration;
+import java.util.ResourceBundle;
+
+/**
+ * Esta clase pretende leer los archivos de configuracion del servidor
+ * permitiendo cambiar cualquier valor al arrancar la JVM, sin tocar el archivo.
+ * Para cambiar la clave PORT de server.serverSocket.ServerProperties, por
+ * ejemplo, se arranca con -Dserver.serverSocket.ServerProperties.PORT=5010.
+ *
+ * @author Steven Arce
+ */
+public class Config extends ResourceBundle {
+
+    private final String baseName;
+    private final ResourceBundle bundle;
+
+    private Config(String baseName, ResourceBundle bundle) {
+        this.baseName = baseName;
+        this.bundle = bundle;
+    }
+
+    /**
+     * Este metodo pretende cargar un archivo de configuracion.
+     *
+     * @param baseName nombre del archivo, como en ResourceBundle.getBundle
+     * @return la configuracion, con los valores de las propiedades del sistema
+     * por delante de los del archivo.
+     */
+    public static ResourceBundle load(String baseName) {
+        return new Config(baseName, ResourceBundle.getBundle(baseName));
+    }
+
+    @Override
+    protected Object handleGetObject(String key) {
+        String value = System.getProperty(baseName + "." + key);
+        if (value != null) {
+            return value;
+        }
+        return bundle.containsKey(key) ? bundle.getObject(key) : null;
+    }
+
+    @Override
+    public Enumeration<String> getKeys() {
+        return bundle.getKeys();
+    }
+
+}
@@ -0,0 +1,71 @@
+package server;
+
+/**
+ * Esta clase pretende guardar en que fase de su vida esta el servidor, para
+ * que un balanceador solo le mande clientes cuando esta listo (ver la ruta
+ * /ready de MetricsServer) y para que las conexiones abiertas sepan que el
+ * servidor se esta cerrando y no deben esperar mas peticiones.
+ *
+ * @author Steven Arce
+ */
+public final class Lifecycle {
+
+    /**
+     * Fases del servidor.
+     */
+    public enum State {
+        /**
+         * Abriendo el pool y calentando, todavia no acepta clientes.
+         */
+        STARTING,
+        /**
+         * Aceptando clientes.
+         */
+        READY,
+        /**
+         * Ya no acepta clientes y termina las peticiones en curso.
+         */
+        DRAINING,
+        /**
+         * Cerrado.
+         */
+        STOPPED
+    }
+
+    private static volatile State state = State.STARTING;
+
+    private Lifecycle() {
+    }
+
+    /**
+     * @return la fase actual del servidor.
+     */
+    public static State getState() {
+        return state;
+    }
+
+    /**
+     * @return si el servidor esta aceptando clientes.
+     */
+    public static boolean isReady() {
+        return state == State.READY;
+    }
+
+    /**
+     * @return si el servidor se esta cerrando o ya esta cerrado.
+     */
+    public static boolean isDraining() {
+        State s = state;
+        return s == State.DRAINING || s == State.STOPPED;
+    }
+
+    /**
+     * Este metodo pretende cambiar la fase del servidor. Solo lo llama Server.
+     *
+     * @param next fase nueva
+     */
+    static void set(State next) {
+        state = next;
+    }
+
+}
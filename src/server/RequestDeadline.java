@@ -0,0 +1,81 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Esta clase pretende guardar el plazo de la peticion que esta atendiendo el
+ * hilo actual, para que las esperas que hay por debajo (la conexion del pool
+ * y las querys) no duren mas que lo que le queda a la peticion. El hilo que
+ * atiende la peticion lo pone antes de llamar a MessageHandler y lo quita al
+ * terminar. Los hilos sin plazo, como el del registro en segundo plano,
+ * esperan lo que diga su propia configuracion.
+ *
+ * @author Steven Arce
+ */
+public final class RequestDeadline {
+
+    private static final ThreadLocal<long[]> deadline = ThreadLocal.withInitial(() -> new long[2]);
+
+    private RequestDeadline() {
+    }
+
+    /**
+     * Este metodo pretende poner el plazo de la peticion del hilo actual.
+     *
+     * @param deadlineNanos instante de System.nanoTime() en el que se agota
+     */
+    public static void set(long deadlineNanos) {
+        long[] d = deadline.get();
+        d[0] = deadlineNanos;
+        d[1] = 1;
+    }
+
+    /**
+     * Este metodo pretende quitar el plazo del hilo actual.
+     */
+    public static void clear() {
+        deadline.get()[1] = 0;
+    }
+
+    /**
+     * @return nanosegundos que le quedan a la peticion, que pueden ser
+     * negativos si ya se ha pasado, o Long.MAX_VALUE si el hilo no tiene plazo.
+     */
+    public static long remainingNanos() {
+        long[] d = deadline.get();
+        return d[1] == 0 ? Long.MAX_VALUE : d[0] - System.nanoTime();
+    }
+
+    /**
+     * Este metodo pretende acortar una espera en milisegundos a lo que le
+     * queda a la peticion.
+     *
+     * @param timeoutMillis espera configurada
+     * @return la espera configurada o lo que le queda a la peticion, lo que sea
+     * menor, y como poco 0.
+     */
+    public static long limitMillis(long timeoutMillis) {
+        long remaining = remainingNanos();
+        if (remaining == Long.MAX_VALUE) {
+            return timeoutMillis;
+        }
+        return Math.max(0, Math.min(timeoutMillis, TimeUnit.NANOSECONDS.toMillis(remaining)));
+    }
+
+    /**
+     * Este metodo pretende calcular el valor para Statement.setQueryTimeout,
+     * que va en segundos enteros.
+     *
+     * @return los segundos que le quedan a la peticion redondeados hacia
+     * arriba y como poco 1, o 0 (sin limite) si el hilo no tiene plazo.
+     */
+    public static int queryTimeoutSeconds() {
+        long remaining = remainingNanos();
+        if (remaining == Long.MAX_VALUE) {
+            return 0;
+        }
+        long seconds = (remaining + 999_999_999L) / 1_000_000_000L;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, seconds));
+    }
+
+}
@@ -1,98 +1,356 @@
 package server;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import lib.exceptions.ConnectException;
+import server.admission.AdmissionController;
+import server.admission.AdmissionCoordinator;
+import server.admission.DatabaseCoordinator;
+import server.admission.EmbeddedCoordinator;
+import server.admission.LeasedAdmissionController;
+import server.codec.Handshake;
+import server.factory.LogicableFactory;
+import server.logging.Logging;
+import server.metrics.Metrics;
+import server.metrics.MetricsServer;
+import server.nio.NioServer;
 import server.pool.Pool;
+import server.security.PasswordVerifier;
+import server.serverSocket.BulkSignUpPolicy;
+import server.serverSocket.ConnectionSlots;
+import server.serverSocket.ConnectionWatchdog;
+import server.serverSocket.RateLimiter;
+import server.serverSocket.SocketSettings;
 import server.serverSocket.Worker;
+import server.serverSocket.WorkerPool;
 
 /**
  * Esta clase pretende ser el punto de entrada de la aplicacion servidor, 
  * donde se establece una conexion en un puerto determinado para ser capaz  
  * de recibir conexiones de cliente, y atender a dichos clientes mediante hilos.
+ * <p>
+ * Antes de aceptar clientes abre las conexiones minimas del pool y, si WARMUP
+ * esta activado, prepara las querys y calienta los formatos de los mensajes;
+ * solo entonces pasa a READY (ver Lifecycle y la ruta /ready de
+ * MetricsServer). Al cerrar la JVM deja de aceptar clientes y espera a que
+ * terminen los que se estan atendiendo antes de cerrar el pool.
+ * <p>
+ * Cuantos clientes se atienden a la vez lo decide un AdmissionController:
+ * con ADMISSION=LOCAL solo cuenta MAXCONNECTIONS, y con EMBEDDED o DATABASE
+ * ademas se reparte CLUSTERMAXCONNECTIONS entre todos los servidores (ver
+ * LeasedAdmissionController).
  * 
  * @author Steven Arce, Adrian Franco
  */
 public class Server {
 
     private final static Logger logger = Logger.getLogger("server");
+    //milisegundos entre revisiones de los plazos de las conexiones
+    private final static long WATCHDOGINTERVAL = 100;
+    //milisegundos entre comprobaciones de los clientes en curso al cerrar
+    private final static long DRAINPOLLINTERVAL = 50;
     private static ResourceBundle configFile;
     private static int PORT;
-    private static int MAXTHREADS;
-    private static int CONT;
+    private static AdmissionController admission;
+    private static RateLimiter rateLimiter;
+    private static BulkSignUpPolicy bulkSignUpPolicy;
+    private static WorkerPool workers;
+    private static int keepAliveTimeout;
+    private static int keepAliveRequests;
+    private static NioServer nioServer;
+    private static Handshake handshake;
+    private static MetricsServer metricsServer;
+    private static SocketSettings socketSettings;
+    private static ConnectionWatchdog watchdog;
+    private static volatile ServerSocket serverSocket;
+    private static long drainTimeout;
 
     /**
      * Este metodo pretende iniciar la ejecucion del programa, coge el puerto y 
      * el numero maximo de hilos de un archivo de configuracion para luego entrar
      * en un bucle infinito y atender a todos los clientes que establezcan una 
      * conexion. Ademas, controla el numero de clientes que pueden registrarse o
-     * iniciar sesion en la aplicacion. Por ultimo, se controla el cierre de las
-     * conexiones del pool mediante un hook que se ejecuta cuando se cierra el JVM.
+     * iniciar sesion en la aplicacion. Por ultimo, se controla el cierre del
+     * servidor mediante un hook que se ejecuta cuando se cierra el JVM.
      * @param args una matriz de argumentos de la línea de comandos para la aplicación.
      * @throws InterruptedException Si un hilo se interrumpe. 
      */
     public static void main(String[] args) throws InterruptedException {
 
+        configFile = Config.load("server.serverSocket.ServerProperties");
+        Logging.configure(configFile);
         logger.info("Servidor iniciado");
-        configFile = ResourceBundle.getBundle("server.serverSocket.ServerProperties");
         PORT = Integer.valueOf(configFile.getString("PORT"));
-        MAXTHREADS = Integer.valueOf(configFile.getString("MAXCONNECTIONS"));
+        rateLimiter = RateLimiter.fromConfig(configFile);
+        bulkSignUpPolicy = BulkSignUpPolicy.fromConfig(configFile);
+        workers = WorkerPool.fromConfig(configFile);
+        handshake = Handshake.fromConfig(configFile, bulkSignUpPolicy);
+        socketSettings = SocketSettings.fromConfig(configFile);
+        if (Boolean.parseBoolean(configFile.getString("KEEPALIVE").trim())) {
+            keepAliveTimeout = Integer.valueOf(configFile.getString("KEEPALIVEIDLETIMEOUT"));
+            keepAliveRequests = Integer.valueOf(configFile.getString("KEEPALIVEMAXREQUESTS"));
+        } else {
+            keepAliveTimeout = 0;
+            keepAliveRequests = 1;
+        }
+        drainTimeout = Long.valueOf(configFile.getString("DRAINTIMEOUT"));
+
+        //Se abren las conexiones minimas del pool antes de aceptar clientes
+        Pool.getInstance();
+        admission = createAdmission();
+        //Se publica desde el principio para que /ready diga que todavia no esta listo
+        metricsServer = MetricsServer.fromConfig(configFile);
+        if (Boolean.parseBoolean(configFile.getString("WARMUP").trim())) {
+            warmUp();
+        }
 
-        ServerSocket serverSocket = null;
         Socket clientSocket;
-        boolean maxConnections = false;
 
         //Hilo para agregarle un addShutdownHook(), e inciar ciertas acciones.
-        Thread shutdownThread = new Thread() {
-            public void run() {
-                //Esto se ejecutara antes de que la maquina virtual finalice
-                Pool.shutDownPool();
-            }
-        };
+        Thread shutdownThread = new Thread(Server::shutdown, "server-shutdown");
         //addShutdownHook() registrará acciones que se realizarán en la terminación de un Programa.
         Runtime.getRuntime().addShutdownHook(shutdownThread);
 
+        //Con NIO solo vigila a los clientes antiguos, que pasan a un Worker
+        watchdog = new ConnectionWatchdog(WATCHDOGINTERVAL);
+        if ("NIO".equalsIgnoreCase(configFile.getString("SERVERENGINE").trim())) {
+            runNio();
+            return;
+        }
+
         try {
-            CONT = 0;
-            serverSocket = new ServerSocket(PORT);
+            serverSocket = socketSettings.openServerSocket(PORT);
+            Lifecycle.set(Lifecycle.State.READY);
+            logger.info("Servidor listo en el puerto " + PORT);
             while (true) {
                 clientSocket = serverSocket.accept();
-                logger.info("Cliente aceptado");
-                CONT++;
-                if (CONT <= MAXTHREADS) {
-                    maxConnections = false;
+                long acceptedAt = System.nanoTime();
+                logger.fine("Cliente aceptado");
+                socketSettings.apply(clientSocket);
+                //El limite de peticiones por segundo lo aplica el Worker a cada peticion
+                if (!admission.tryAcquire()) {
+                    //Se contesta desde este mismo hilo, sin crear un Worker
+                    logger.fine("Cliente rechazado por el limite de conexiones");
+                    Metrics.countRejection(Metrics.Rejection.CONNECTIONS);
+                    Worker.reject(clientSocket);
+                } else if (!workers.execute(new Worker(clientSocket, handshake, socketSettings, watchdog,
+                        keepAliveTimeout, keepAliveRequests, acceptedAt))) {
+                    logger.fine("Cliente rechazado por el pool de hilos saturado");
+                    Metrics.countRejection(Metrics.Rejection.WORKERS);
+                    Worker.reject(clientSocket);
+                    returnThread();
                 } else {
-                    maxConnections = true;
-                    CONT--;
-                    logger.info("Cliente rechazado por el limite de conexiones");
+                    logger.fine("Cliente entregado al pool de hilos");
                 }
-                Worker hilo = new Worker(clientSocket, maxConnections);
-                logger.info("Hilo creado para atender al cliente");
-                hilo.start();
             }
+        } catch (IOException ex) {
+            if (Lifecycle.isDraining()) {
+                //El hook de cierre ha cerrado el ServerSocket
+                logger.info("Se ha dejado de aceptar clientes");
+            } else {
+                logger.info("Error con el socket del servidor");
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } finally {
+            closeServerSocket();
+        }
+    }
+
+    /**
+     * Este metodo pretende atender a los clientes con el servidor NIO en vez
+     * de con un Worker por cliente.
+     */
+    private static void runNio() {
+        try {
+            NioServer server = new NioServer(PORT,
+                    Integer.valueOf(configFile.getString("NIOEVENTLOOPS")), handshake,
+                    keepAliveTimeout, keepAliveRequests, socketSettings, admission,
+                    Integer.valueOf(configFile.getString("NIOMAXCONNECTIONS")), rateLimiter, workers, watchdog);
+            server.bind();
+            nioServer = server;
+            Lifecycle.set(Lifecycle.State.READY);
+            server.run();
         } catch (IOException ex) {
             logger.info("Error con el socket del servidor");
             Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
+        }
+    }
+
+    /**
+     * Este metodo pretende crear el control de clientes segun ADMISSION. El
+     * coordinador EMBEDDED solo vive en este proceso y sirve para pruebas;
+     * DATABASE usa la base de datos del pool, que comparten todos los
+     * servidores.
+     *
+     * @return el control de clientes del servidor.
+     */
+    private static AdmissionController createAdmission() {
+        int maxConnections = Integer.valueOf(configFile.getString("MAXCONNECTIONS"));
+        String mode = configFile.getString("ADMISSION").trim().toUpperCase();
+        if ("LOCAL".equals(mode)) {
+            return new ConnectionSlots(maxConnections);
+        }
+        int limit = Integer.valueOf(configFile.getString("CLUSTERMAXCONNECTIONS"));
+        AdmissionCoordinator coordinator;
+        if ("EMBEDDED".equals(mode)) {
+            coordinator = new EmbeddedCoordinator(limit);
+        } else if ("DATABASE".equals(mode)) {
+            coordinator = new DatabaseCoordinator(Pool.getInstance(), limit);
+        } else {
+            throw new IllegalArgumentException("ADMISSION desconocido: " + mode);
+        }
+        String node = configFile.getString("ADMISSIONNODE").trim();
+        if (node.isEmpty()) {
+            try {
+                node = InetAddress.getLocalHost().getHostName() + ":" + PORT;
+            } catch (IOException ex) {
+                node = "localhost:" + PORT;
+            }
+        }
+        logger.info("Clientes limitados en el cluster como " + node);
+        return new LeasedAdmissionController(coordinator, node, maxConnections,
+                Integer.valueOf(configFile.getString("ADMISSIONLEASEBLOCK")),
+                Long.valueOf(configFile.getString("ADMISSIONLEASETTL")));
+    }
+
+    /**
+     * Este metodo pretende calentar el servidor antes de aceptar clientes,
+     * para que los primeros no paguen la carga de clases, la preparacion de
+     * las querys ni el codigo todavia sin compilar por el JIT. Si falla se
+     * arranca igual, los primeros clientes solo iran mas lentos.
+     */
+    private static void warmUp() {
+        long start = System.nanoTime();
+        try {
+            handshake.warmUp(Integer.valueOf(configFile.getString("WARMUPITERATIONS")));
+            LogicableFactory.warmUp();
+            logger.info("Servidor calentado en " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException | ConnectException ex) {
+            logger.log(Level.WARNING, "No se ha podido calentar el servidor", ex);
+        }
+    }
+
+    /**
+     * Este metodo pretende cerrar el servidor sin cortar a los clientes que se
+     * estan atendiendo. Lo ejecuta el hook de cierre de la JVM (SIGTERM o
+     * Ctrl+C): deja de aceptar clientes, cierra las conexiones que esperan la
+     * siguiente peticion, espera como mucho DRAINTIMEOUT milisegundos a que
+     * terminen las demas, guarda los inicios de sesion pendientes y por ultimo
+     * cierra el pool.
+     */
+    private static void shutdown() {
+        long start = System.nanoTime();
+        Lifecycle.set(Lifecycle.State.DRAINING);
+        logger.info("Cerrando el servidor, clientes conectados: " + admission.getInUse());
+        closeServerSocket();
+        if (nioServer != null) {
+            nioServer.drain();
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+        //Las conexiones que esperan la siguiente peticion no tienen hueco, se cierran ya
+        if (watchdog != null) {
+            watchdog.closeIdle();
+        }
+        while (admission.getInUse() > 0 && System.nanoTime() - deadline < 0) {
+            if (watchdog != null) {
+                watchdog.closeIdle();
+            }
+            try {
+                Thread.sleep(DRAINPOLLINTERVAL);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (admission.getInUse() > 0) {
+            logger.warning("Se cierra el servidor con " + admission.getInUse() + " clientes sin terminar");
+        }
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
+        if (watchdog != null) {
+            watchdog.shutdown();
+        }
+        workers.shutdown();
+        //Antes que el pool, que lo puede necesitar para devolver los huecos
+        admission.shutdown();
+        LogicableFactory.shutDownAudit();
+        PasswordVerifier passwords = LogicableFactory.getPasswordVerifier();
+        if (passwords != null) {
+            passwords.shutdown();
+        }
+        Pool.shutDownPool();
+        Lifecycle.set(Lifecycle.State.STOPPED);
+        if (metricsServer != null) {
+            metricsServer.shutdown();
+        }
+        logger.info("Servidor cerrado en " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private static void closeServerSocket() {
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
             try {
-                serverSocket.close();
+                socket.close();
             } catch (IOException ex) {
                 logger.info("Error al cerrar el ServerSocket");
                 Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
     }
-    
+
     /**
-     * Este metodo pretende restar -1 al contador de MAXTHREADS, para dejar libre
-     * el hilo para el proximo cliente.
+     * Este metodo pretende liberar el hueco de un cliente ya atendido, para
+     * dejarlo libre para el proximo cliente.
      */
     public static void returnThread() {
-        CONT--;
-        logger.info("Numero de clientes: " + CONT);
+        admission.release();
+        logger.fine(() -> "Numero de clientes: " + admission.getInUse());
+    }
+
+    /**
+     * Este metodo pretende devolver el control de clientes del servidor, para
+     * poder consultar cuantos clientes se estan atendiendo.
+     *
+     * @return el control de clientes del servidor.
+     */
+    public static AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    /**
+     * Este metodo pretende devolver el limitador de peticiones por cliente.
+     *
+     * @return el limitador, o null si esta desactivado.
+     */
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Este metodo pretende devolver quien puede hacer registros masivos y de
+     * cuantos usuarios.
+     *
+     * @return la politica de registro masivo.
+     */
+    public static BulkSignUpPolicy getBulkSignUpPolicy() {
+        return bulkSignUpPolicy;
+    }
+
+    /**
+     * Este metodo pretende devolver el pool de hilos que atiende a los clientes,
+     * para poder consultar lo saturado que esta.
+     *
+     * @return el pool de hilos del servidor.
+     */
+    public static WorkerPool getWorkerPool() {
+        return workers;
     }
 
 }
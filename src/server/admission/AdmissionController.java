@@ -0,0 +1,44 @@
+package server.admission;
+
+/**
+ * Esta interfaz pretende separar como se decide si se atiende a un cliente
+ * mas del resto del servidor. Cada cliente aceptado ocupa un hueco que se
+ * libera en cuanto se le ha mandado la respuesta. La implementacion local es
+ * server.serverSocket.ConnectionSlots; LeasedAdmissionController reparte un
+ * limite comun entre varios servidores.
+ *
+ * @author Steven Arce
+ */
+public interface AdmissionController {
+
+    /**
+     * Este metodo pretende ocupar un hueco. Lo llama el hilo que acepta
+     * conexiones, asi que no debe esperar salvo lo imprescindible.
+     *
+     * @return true si se puede atender al cliente, false si se ha superado el
+     * limite.
+     */
+    boolean tryAcquire();
+
+    /**
+     * Este metodo pretende liberar un hueco ocupado anteriormente.
+     */
+    void release();
+
+    /**
+     * @return numero de clientes que se estan atendiendo en este servidor.
+     */
+    int getInUse();
+
+    /**
+     * @return numero maximo de clientes atendidos a la vez en este servidor.
+     */
+    int getMaxSlots();
+
+    /**
+     * Este metodo pretende dejar los huecos que se tengan reservados cuando
+     * el servidor se cierra.
+     */
+    void shutdown();
+
+}
@@ -0,0 +1,51 @@
+package server.admission;
+
+import lib.exceptions.ConnectException;
+
+/**
+ * Esta interfaz pretende ser el sitio comun donde los servidores se reparten
+ * el limite de clientes de todo el cluster. Cada servidor tiene alquilados
+ * unos cuantos huecos durante un tiempo y los renueva antes de que caduquen;
+ * los de un servidor que deja de renovarlos vuelven al cluster al caducar.
+ *
+ * @author Steven Arce
+ */
+public interface AdmissionCoordinator {
+
+    /**
+     * Este metodo pretende pedir, renovar o devolver huecos. El servidor dice
+     * cuantos quiere tener en total y se le dan como mucho los que no tienen
+     * los demas; pedir menos de los que se tienen devuelve el resto.
+     *
+     * @param node identificador del servidor
+     * @param wanted huecos que quiere tener en total
+     * @param inUse clientes que esta atendiendo, para conocer su carga
+     * @param ttlMillis milisegundos hasta que caduca el alquiler si no se
+     * renueva
+     * @return huecos que tiene ahora el servidor, que pueden ser menos de los
+     * pedidos.
+     * @throws ConnectException Si no se puede hablar con el coordinador.
+     */
+    int lease(String node, int wanted, int inUse, long ttlMillis) throws ConnectException;
+
+    /**
+     * Este metodo pretende devolver todos los huecos de un servidor.
+     *
+     * @param node identificador del servidor
+     * @throws ConnectException Si no se puede hablar con el coordinador.
+     */
+    void leave(String node) throws ConnectException;
+
+    /**
+     * @return clientes atendidos en todo el cluster segun lo ultimo que ha
+     * dicho cada servidor.
+     * @throws ConnectException Si no se puede hablar con el coordinador.
+     */
+    int getClusterInUse() throws ConnectException;
+
+    /**
+     * @return numero maximo de clientes atendidos a la vez en todo el cluster.
+     */
+    int getLimit();
+
+}
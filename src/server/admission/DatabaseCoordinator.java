@@ -0,0 +1,141 @@
+package server.admission;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+import lib.exceptions.ConnectException;
+import server.pool.Pool;
+
+/**
+ * Esta clase pretende usar la base de datos que ya comparten todos los
+ * servidores como coordinador. Cada servidor tiene una fila en la tabla
+ * admission_lease con los huecos que tiene, los clientes que atiende y
+ * cuando caduca; la fila de admission_lock se bloquea durante cada reparto
+ * para que dos servidores no se den los mismos huecos. En MySQL las tablas
+ * se crean con:
+ * <pre>
+ * create table admission_lock (id int primary key);
+ * insert into admission_lock values (1);
+ * create table admission_lease (node varchar(100) primary key,
+ *     held int not null, in_use int not null, expires bigint not null);
+ * </pre>
+ * La caducidad se calcula con el reloj de cada servidor, que tienen que estar
+ * sincronizados con mucho menos error que el tiempo de alquiler.
+ *
+ * @author Steven Arce
+ */
+public class DatabaseCoordinator implements AdmissionCoordinator {
+
+    private final static Logger logger = Logger.getLogger("server.admission");
+    private final String bloquear = "select id from admission_lock where id=1 for update";
+    private final String borrarCaducados = "delete from admission_lease where expires<?";
+    private final String sumarOtros = "select coalesce(sum(held),0) from admission_lease where node<>?";
+    private final String guardar = "insert into admission_lease (node,held,in_use,expires) values(?,?,?,?)"
+            + " on duplicate key update held=?, in_use=?, expires=?";
+    private final String borrar = "delete from admission_lease where node=?";
+    private final String sumarEnUso = "select coalesce(sum(in_use),0) from admission_lease where expires>=?";
+    private final Pool pool;
+    private final int limit;
+
+    /**
+     * Constructor del coordinador.
+     *
+     * @param pool pool de la base de datos compartida
+     * @param limit numero maximo de clientes atendidos a la vez entre todos
+     */
+    public DatabaseCoordinator(Pool pool, int limit) {
+        this.pool = pool;
+        this.limit = limit;
+    }
+
+    @Override
+    public int lease(String node, int wanted, int inUse, long ttlMillis) throws ConnectException {
+        long now = System.currentTimeMillis();
+        Connection con = pool.getConnection();
+        try {
+            con.setAutoCommit(false);
+            try {
+                try (PreparedStatement stmt = pool.prepareStatement(con, bloquear);
+                        ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("Falta la fila de admission_lock");
+                    }
+                }
+                try (PreparedStatement stmt = pool.prepareStatement(con, borrarCaducados)) {
+                    stmt.setLong(1, now);
+                    stmt.executeUpdate();
+                }
+                int others;
+                try (PreparedStatement stmt = pool.prepareStatement(con, sumarOtros)) {
+                    stmt.setString(1, node);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                        others = rs.getInt(1);
+                    }
+                }
+                int granted = Math.max(0, Math.min(wanted, limit - others));
+                try (PreparedStatement stmt = pool.prepareStatement(con, guardar)) {
+                    stmt.setString(1, node);
+                    stmt.setInt(2, granted);
+                    stmt.setInt(3, inUse);
+                    stmt.setLong(4, now + ttlMillis);
+                    stmt.setInt(5, granted);
+                    stmt.setInt(6, inUse);
+                    stmt.setLong(7, now + ttlMillis);
+                    stmt.executeUpdate();
+                }
+                con.commit();
+                return granted;
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.info("Error de conexion al repartir los huecos del cluster");
+            throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            pool.releaseConnection(con);
+        }
+    }
+
+    @Override
+    public void leave(String node) throws ConnectException {
+        Connection con = pool.getConnection();
+        try (PreparedStatement stmt = pool.prepareStatement(con, borrar)) {
+            stmt.setString(1, node);
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            logger.info("Error de conexion al devolver los huecos del cluster");
+            throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            pool.releaseConnection(con);
+        }
+    }
+
+    @Override
+    public int getClusterInUse() throws ConnectException {
+        Connection con = pool.getConnection();
+        try (PreparedStatement stmt = pool.prepareStatement(con, sumarEnUso)) {
+            stmt.setLong(1, System.currentTimeMillis());
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        } catch (SQLException ex) {
+            logger.info("Error de conexion al consultar la carga del cluster");
+            throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            pool.releaseConnection(con);
+        }
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+}
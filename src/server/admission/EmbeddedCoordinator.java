@@ -0,0 +1,120 @@
+package server.admission;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Esta clase pretende ser un coordinador en memoria, dentro del propio
+ * proceso. Sirve para probar varios LeasedAdmissionController en una sola JVM
+ * sin base de datos; no reparte nada entre procesos distintos.
+ *
+ * @author Steven Arce
+ */
+public class EmbeddedCoordinator implements AdmissionCoordinator {
+
+    private final int limit;
+    private final Map<String, Lease> leases = new HashMap<>();
+    //No se usa synchronized para no bloquear hilos virtuales
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructor del coordinador.
+     *
+     * @param limit numero maximo de clientes atendidos a la vez entre todos
+     */
+    public EmbeddedCoordinator(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public int lease(String node, int wanted, int inUse, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            expire(now);
+            int others = 0;
+            for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+                if (!entry.getKey().equals(node)) {
+                    others += entry.getValue().held;
+                }
+            }
+            int granted = Math.max(0, Math.min(wanted, limit - others));
+            leases.put(node, new Lease(granted, inUse, now + ttlMillis));
+            return granted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void leave(String node) {
+        lock.lock();
+        try {
+            leases.remove(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getClusterInUse() {
+        lock.lock();
+        try {
+            expire(System.currentTimeMillis());
+            int inUse = 0;
+            for (Lease lease : leases.values()) {
+                inUse += lease.inUse;
+            }
+            return inUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return huecos alquilados entre todos los servidores.
+     */
+    public int getHeld() {
+        lock.lock();
+        try {
+            expire(System.currentTimeMillis());
+            int held = 0;
+            for (Lease lease : leases.values()) {
+                held += lease.held;
+            }
+            return held;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Lease> it = leases.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expires < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Lease {
+
+        private final int held;
+        private final int inUse;
+        private final long expires;
+
+        private Lease(int held, int inUse, long expires) {
+            this.held = held;
+            this.inUse = inUse;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+package server.admission;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import lib.exceptions.ConnectException;
+
+/**
+ * Esta clase pretende limitar los clientes atendidos a la vez entre todos los
+ * servidores del cluster, ademas de los de este servidor. Los huecos se
+ * alquilan al coordinador de leaseBlock en leaseBlock y el hilo que acepta
+ * conexiones nunca habla con el: solo mira si queda alguno alquilado. Cuando
+ * quedan menos de medio bloque libres le pide al hilo del alquiler que traiga
+ * otro bloque, asi que los huecos llegan antes de hacer falta; si aun asi se
+ * acaban, el cliente se rechaza mientras llegan. Si el cluster esta lleno no
+ * se vuelven a pedir hasta pasados RETRYINTERVAL milisegundos, para no
+ * preguntar al coordinador por cada cliente rechazado. El mismo hilo renueva
+ * el alquiler cada tercio de leaseTtl, con un bloque por delante de los que se
+ * estan usando, y devuelve los que sobran.
+ * <p>
+ * Si el coordinador no contesta se sigue con los huecos que ya se tenian,
+ * pero sin renovarlos caducan en el coordinador y los pueden coger otros
+ * servidores, asi que durante la caida el limite del cluster no se garantiza.
+ *
+ * @author Steven Arce
+ */
+public class LeasedAdmissionController implements AdmissionController {
+
+    private final static Logger logger = Logger.getLogger("server.admission");
+    //milisegundos sin pedir huecos despues de que el coordinador no de los que faltan
+    private final static long RETRYINTERVAL = 50;
+    private final AdmissionCoordinator coordinator;
+    private final String node;
+    private final int maxSlots;
+    private final int leaseBlock;
+    private final long leaseTtl;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private volatile int held;
+    private volatile int clusterInUse;
+    private volatile long retryAt = System.nanoTime();
+    private final AtomicBoolean topUpPending = new AtomicBoolean();
+    //Solo este hilo habla con el coordinador, despues del primer alquiler
+    private final ScheduledExecutorService renewer;
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder leaseFailures = new LongAdder();
+
+    /**
+     * Constructor del control de clientes del cluster, pide el primer bloque
+     * de huecos y arranca el hilo que renueva el alquiler.
+     *
+     * @param coordinator coordinador comun a todos los servidores
+     * @param node identificador de este servidor, unico en el cluster
+     * @param maxSlots numero maximo de clientes atendidos a la vez en este
+     * servidor
+     * @param leaseBlock huecos que se piden de cada vez
+     * @param leaseTtl milisegundos hasta que caduca el alquiler si no se
+     * renueva
+     */
+    public LeasedAdmissionController(AdmissionCoordinator coordinator, String node, int maxSlots,
+            int leaseBlock, long leaseTtl) {
+        this.coordinator = coordinator;
+        this.node = node;
+        this.maxSlots = maxSlots;
+        this.leaseBlock = Math.max(1, leaseBlock);
+        this.leaseTtl = leaseTtl;
+        this.renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-admission");
+            t.setDaemon(true);
+            return t;
+        });
+        renew();
+        long period = Math.max(1, leaseTtl / 3);
+        renewer.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        while (true) {
+            int n = inUse.get();
+            if (n >= maxSlots) {
+                return false;
+            }
+            if (n >= held) {
+                requestTopUp();
+                return false;
+            }
+            if (inUse.compareAndSet(n, n + 1)) {
+                if (held - (n + 1) <= leaseBlock / 2) {
+                    requestTopUp();
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * Pide al hilo del alquiler otro bloque de huecos, si no esta pedido ya y
+     * no se esta esperando despues de que el cluster estuviera lleno.
+     */
+    private void requestTopUp() {
+        if (System.nanoTime() - retryAt < 0 || !topUpPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            renewer.execute(this::topUp);
+        } catch (RejectedExecutionException ex) {
+            //Se esta cerrando
+            topUpPending.set(false);
+        }
+    }
+
+    /**
+     * Alquila un bloque por delante de los huecos en uso, si no se tiene ya.
+     */
+    private void topUp() {
+        topUpPending.set(false);
+        int wanted = Math.min(maxSlots, inUse.get() + leaseBlock);
+        if (held >= wanted) {
+            return;
+        }
+        lease(wanted);
+        if (held < wanted) {
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRYINTERVAL);
+        }
+    }
+
+    /**
+     * Renueva el alquiler: se queda con un bloque por delante de los huecos
+     * en uso y devuelve lo que pase de dos bloques.
+     */
+    private void renew() {
+        int n = inUse.get();
+        lease(Math.max(Math.min(held, n + 2 * leaseBlock), Math.min(maxSlots, n + leaseBlock)));
+        try {
+            clusterInUse = coordinator.getClusterInUse();
+        } catch (ConnectException ex) {
+            logger.fine("No se ha podido consultar la carga del cluster");
+        }
+    }
+
+    private void lease(int wanted) {
+        try {
+            held = coordinator.lease(node, wanted, inUse.get(), leaseTtl);
+            leases.increment();
+        } catch (ConnectException ex) {
+            leaseFailures.increment();
+            logger.warning("No se ha podido alquilar huecos al coordinador, se sigue con " + held);
+        }
+    }
+
+    @Override
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    @Override
+    public int getMaxSlots() {
+        return maxSlots;
+    }
+
+    /**
+     * @return huecos alquilados al coordinador.
+     */
+    public int getHeld() {
+        return held;
+    }
+
+    /**
+     * @return clientes atendidos en todo el cluster en la ultima renovacion.
+     */
+    public int getClusterInUse() {
+        return clusterInUse;
+    }
+
+    /**
+     * @return numero maximo de clientes atendidos a la vez en todo el cluster.
+     */
+    public int getClusterLimit() {
+        return coordinator.getLimit();
+    }
+
+    /**
+     * @return numero de veces que se ha hablado con el coordinador.
+     */
+    public long getLeaseCount() {
+        return leases.sum();
+    }
+
+    /**
+     * @return numero de veces que el coordinador no ha contestado.
+     */
+    public long getLeaseFailureCount() {
+        return leaseFailures.sum();
+    }
+
+    @Override
+    public void shutdown() {
+        renewer.shutdownNow();
+        try {
+            coordinator.leave(node);
+        } catch (ConnectException ex) {
+            logger.info("No se han podido devolver los huecos, caducaran solos");
+        }
+    }
+
+}
@@ -0,0 +1,5 @@
+/**
+ * Este paquete contiene el control de cuantos clientes se atienden a la vez,
+ * en un servidor o entre varios
+ */
+package server.admission;
@@ -0,0 +1,213 @@
+package server.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import lib.message.Message;
+import lib.message.Msg;
+import server.serverSocket.BulkSignUpReply;
+import server.serverSocket.BulkSignUpRequest;
+import server.serverSocket.MessageEnvelope;
+
+/**
+ * Esta clase pretende mandar los mensajes en un formato binario compacto, sin
+ * descriptores de clase y sin crear objetos que no sean los del propio
+ * mensaje. Solo sabe leer Message, Msg, User, MessageEnvelope y las peticiones
+ * y respuestas del registro masivo, asi que no se puede usar para crear
+ * objetos arbitrarios en el servidor.
+ * <p>
+ * Formato de la version 1:
+ * <pre>
+ * mensaje  := tipo:byte (0 Message, 1 MessageEnvelope) [id:long] message
+ *           | 2 (BulkSignUpRequest) count:int user*count
+ *           | 3 (BulkSignUpReply) count:int msg:byte*count
+ *           | 4 (BulkSignUpReply rechazado) rejection:byte
+ * message  := msg:byte (ordinal, -1 nulo) tieneUser:boolean [user]
+ * user     := id:int login:str email:str fullName:str password:str
+ *             status:byte privilege:byte tieneFecha:boolean [lastPasswordChange:long]
+ * str      := noNulo:boolean [utf]
+ * </pre>
+ *
+ * @author Steven Arce
+ */
+public class BinaryCodec implements MessageCodec {
+
+    /**
+     * Version del formato que implementa esta clase.
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Instancia compartida, no tiene estado.
+     */
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+    private static final byte KIND_MESSAGE = 0;
+    private static final byte KIND_ENVELOPE = 1;
+    private static final byte KIND_BULK_SIGNUP = 2;
+    private static final byte KIND_BULK_REPLY = 3;
+    private static final byte KIND_BULK_REJECTED = 4;
+    private static final Msg[] MSGS = Msg.values();
+    private static final BulkSignUpReply.Rejection[] REJECTIONS = BulkSignUpReply.Rejection.values();
+    private static final UserStatus[] STATUSES = UserStatus.values();
+    private static final UserPrivilege[] PRIVILEGES = UserPrivilege.values();
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (message instanceof MessageEnvelope) {
+            MessageEnvelope envelope = (MessageEnvelope) message;
+            out.writeByte(KIND_ENVELOPE);
+            out.writeLong(envelope.getId());
+            writeMessage(out, envelope.getMessage());
+        } else if (message instanceof BulkSignUpRequest) {
+            List<User> users = ((BulkSignUpRequest) message).getUsers();
+            out.writeByte(KIND_BULK_SIGNUP);
+            out.writeInt(users.size());
+            for (User user : users) {
+                writeUser(out, user);
+            }
+        } else if (message instanceof BulkSignUpReply && ((BulkSignUpReply) message).getRejection() != null) {
+            out.writeByte(KIND_BULK_REJECTED);
+            out.writeByte(((BulkSignUpReply) message).getRejection().ordinal());
+        } else if (message instanceof BulkSignUpReply) {
+            Msg[] outcomes = ((BulkSignUpReply) message).getOutcomes();
+            out.writeByte(KIND_BULK_REPLY);
+            out.writeInt(outcomes.length);
+            for (Msg outcome : outcomes) {
+                out.writeByte(outcome == null ? -1 : outcome.ordinal());
+            }
+        } else {
+            out.writeByte(KIND_MESSAGE);
+            writeMessage(out, (Message) message);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte kind = in.readByte();
+        switch (kind) {
+            case KIND_MESSAGE:
+                return readMessage(in);
+            case KIND_ENVELOPE:
+                long id = in.readLong();
+                return new MessageEnvelope(id, readMessage(in));
+            case KIND_BULK_SIGNUP: {
+                int count = readCount(in, payload.length);
+                List<User> users = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    users.add(readUser(in));
+                }
+                return new BulkSignUpRequest(users);
+            }
+            case KIND_BULK_REPLY: {
+                Msg[] outcomes = new Msg[readCount(in, payload.length)];
+                for (int i = 0; i < outcomes.length; i++) {
+                    outcomes[i] = enumValue(MSGS, in.readByte());
+                }
+                return new BulkSignUpReply(outcomes);
+            }
+            case KIND_BULK_REJECTED: {
+                BulkSignUpReply.Rejection rejection = enumValue(REJECTIONS, in.readByte());
+                if (rejection == null) {
+                    throw new StreamCorruptedException("Motivo de rechazo desconocido");
+                }
+                return new BulkSignUpReply(rejection);
+            }
+            default:
+                throw new StreamCorruptedException("Tipo de mensaje desconocido: " + kind);
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        out.writeByte(message.getMsg() == null ? -1 : message.getMsg().ordinal());
+        User user = message.getUser();
+        out.writeBoolean(user != null);
+        if (user != null) {
+            writeUser(out, user);
+        }
+    }
+
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeInt(user.getId());
+        writeString(out, user.getLogin());
+        writeString(out, user.getEmail());
+        writeString(out, user.getFullName());
+        writeString(out, user.getPassword());
+        out.writeByte(user.getStatus() == null ? -1 : user.getStatus().ordinal());
+        out.writeByte(user.getPrivilege() == null ? -1 : user.getPrivilege().ordinal());
+        Timestamp lastChange = user.getLastPasswordChange();
+        out.writeBoolean(lastChange != null);
+        if (lastChange != null) {
+            out.writeLong(lastChange.getTime());
+        }
+    }
+
+    private static Message readMessage(DataInputStream in) throws IOException {
+        Message message = new Message();
+        message.setMsg(enumValue(MSGS, in.readByte()));
+        if (in.readBoolean()) {
+            message.setUser(readUser(in));
+        }
+        return message;
+    }
+
+    private static User readUser(DataInputStream in) throws IOException {
+        User user = new User();
+        user.setId(in.readInt());
+        user.setLogin(readString(in));
+        user.setEmail(readString(in));
+        user.setFullName(readString(in));
+        user.setPassword(readString(in));
+        user.setStatus(enumValue(STATUSES, in.readByte()));
+        user.setPrivilege(enumValue(PRIVILEGES, in.readByte()));
+        if (in.readBoolean()) {
+            user.setLastPasswordChange(new Timestamp(in.readLong()));
+        }
+        return user;
+    }
+
+    /**
+     * Lee cuantos elementos vienen detras, que no pueden ser mas que los bytes
+     * de la trama, para no reservar memoria por un valor falso.
+     */
+    private static int readCount(DataInputStream in, int payloadLength) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > payloadLength) {
+            throw new StreamCorruptedException("Numero de elementos no valido: " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static <E> E enumValue(E[] values, byte ordinal) throws IOException {
+        if (ordinal == -1) {
+            return null;
+        }
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new StreamCorruptedException("Valor desconocido: " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+}
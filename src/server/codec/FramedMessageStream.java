@@ -0,0 +1,73 @@
+package server.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Esta clase pretende leer y escribir los mensajes en tramas, cada una con un
+ * entero de 4 bytes con la longitud delante y el mensaje convertido con un
+ * MessageCodec. Las respuestas de StaticReplies se escriben con la trama ya
+ * codificada.
+ *
+ * @author Steven Arce
+ */
+public class FramedMessageStream implements MessageStream {
+
+    private final MessageCodec codec;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int maxFrameSize;
+
+    /**
+     * Constructor del stream.
+     *
+     * @param codec formato de los mensajes
+     * @param in stream de entrada del socket
+     * @param out stream de salida del socket
+     * @param maxFrameSize longitud maxima de una trama
+     */
+    public FramedMessageStream(MessageCodec codec, InputStream in, OutputStream out, int maxFrameSize) {
+        this.codec = codec;
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(out);
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    public Object read() throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > maxFrameSize) {
+            throw new StreamCorruptedException("Trama con longitud invalida: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return codec.decode(payload);
+    }
+
+    @Override
+    public void write(Object message) throws IOException {
+        byte[] frame = StaticReplies.frame(codec, message);
+        if (frame != null) {
+            out.write(frame);
+        } else {
+            byte[] payload = codec.encode(message);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+}
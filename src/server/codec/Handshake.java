@@ -0,0 +1,252 @@
+package server.codec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import lib.message.Message;
+import lib.message.Msg;
+import server.serverSocket.BulkSignUpPolicy;
+import server.serverSocket.MessageEnvelope;
+
+/**
+ * Esta clase pretende acordar con cada cliente el formato de los mensajes.
+ * <p>
+ * El servidor siempre empieza mandando la cabecera de la serializacion de Java,
+ * que es lo que esperan los clientes antiguos. Despues mira los primeros bytes
+ * del cliente: si son {@link #MAGIC} seguidos de un byte de version, el cliente
+ * quiere el formato binario y se le contesta con {@link #MAGIC} y la version
+ * elegida (0 si no se admite). Si no, es un cliente antiguo y se sigue con la
+ * serializacion de Java. Un cliente binario debe descartar los 4 bytes de la
+ * cabecera Java, y si no recibe la respuesta de la negociacion es que el
+ * servidor le ha rechazado con TOOMANYUSERSEXCEPTION.
+ * <p>
+ * Los dos motores del servidor (SERVERENGINE) hablan igual con los dos tipos
+ * de cliente. Con BLOCKING cada conexion tiene su hilo mientras dura. Con NIO
+ * los clientes binarios solo ocupan un hilo mientras se atiende cada mensaje;
+ * los clientes antiguos, que empiezan con {@link #JAVA_HEADER}, pasan a un
+ * Worker con el socket bloqueante (ver {@link #openJava(Socket, byte[])}) y
+ * ocupan un hilo igual que con BLOCKING.
+ * <p>
+ * Los dos sentidos del socket van con buffer, asi cada mensaje se lee y se
+ * escribe con una sola llamada al sistema en vez de una por campo.
+ *
+ * @author Steven Arce
+ */
+public class Handshake {
+
+    /**
+     * Bytes con los que un cliente pide el formato binario.
+     */
+    public static final byte[] MAGIC = {'S', 'U', 'S', 'I'};
+    /**
+     * Cabecera de la serializacion de Java, la que manda el servidor nada mas
+     * aceptar al cliente y con la que empiezan los clientes antiguos.
+     */
+    public static final byte[] JAVA_HEADER = {
+        (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+        (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION};
+    /**
+     * Tamaño en bytes de los buffers de lectura y escritura de cada socket.
+     */
+    public static final int BUFFER_SIZE = 8192;
+    private final boolean allowJava;
+    private final boolean allowBinary;
+    private final int maxFrameSize;
+    private final BulkSignUpPolicy bulkPolicy;
+
+    /**
+     * Constructor de la negociacion.
+     *
+     * @param allowJava si se admiten clientes con serializacion de Java
+     * @param allowBinary si se admiten clientes con el formato binario
+     * @param maxFrameSize longitud maxima de una trama binaria
+     */
+    public Handshake(boolean allowJava, boolean allowBinary, int maxFrameSize) {
+        this(allowJava, allowBinary, maxFrameSize, null);
+    }
+
+    /**
+     * Constructor de la negociacion con tramas mas largas para los clientes
+     * que pueden hacer registros masivos.
+     *
+     * @param allowJava si se admiten clientes con serializacion de Java
+     * @param allowBinary si se admiten clientes con el formato binario
+     * @param maxFrameSize longitud maxima de una trama binaria
+     * @param bulkPolicy politica de registro masivo, o null
+     */
+    public Handshake(boolean allowJava, boolean allowBinary, int maxFrameSize, BulkSignUpPolicy bulkPolicy) {
+        this.allowJava = allowJava;
+        this.allowBinary = allowBinary;
+        this.maxFrameSize = maxFrameSize;
+        this.bulkPolicy = bulkPolicy;
+    }
+
+    /**
+     * Este metodo pretende crear la negociacion a partir del archivo de
+     * configuracion del servidor.
+     *
+     * @param configFile archivo de configuracion del servidor
+     * @param bulkPolicy politica de registro masivo, o null
+     * @return la negociacion configurada
+     */
+    public static Handshake fromConfig(ResourceBundle configFile, BulkSignUpPolicy bulkPolicy) {
+        return new Handshake(Boolean.parseBoolean(configFile.getString("CODECJAVA").trim()),
+                Boolean.parseBoolean(configFile.getString("CODECBINARY").trim()),
+                Integer.valueOf(configFile.getString("MAXFRAMESIZE")), bulkPolicy);
+    }
+
+    /**
+     * Este metodo pretende acordar el formato con el cliente de un socket.
+     *
+     * @param socket socket del cliente
+     * @return el stream para leer y escribir mensajes en el formato acordado
+     * @throws IOException Si el cliente pide un formato que no se admite o hay
+     * un error con el socket.
+     */
+    public MessageStream open(Socket socket) throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.flush();
+        InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        byte[] start = new byte[MAGIC.length];
+        in.mark(MAGIC.length);
+        new DataInputStream(in).readFully(start);
+        if (Arrays.equals(start, MAGIC)) {
+            int version = in.read();
+            byte chosen = allowBinary && version >= 1 ? (byte) Math.min(version, BinaryCodec.VERSION) : 0;
+            out.write(reply(chosen));
+            out.flush();
+            if (chosen == 0) {
+                throw new StreamCorruptedException("Version del formato binario no admitida: " + version);
+            }
+            return new FramedMessageStream(BinaryCodec.INSTANCE, in, out, getMaxFrameSize(socket.getInetAddress()));
+        }
+        in.reset();
+        if (!allowJava) {
+            throw new StreamCorruptedException("La serializacion de Java esta desactivada");
+        }
+        return new JavaMessageStream(oos, out, in);
+    }
+
+    /**
+     * Este metodo pretende seguir con la serializacion de Java en un socket al
+     * que ya se le ha mandado {@link #JAVA_HEADER} y del que ya se han leido
+     * los primeros bytes. Lo usa el servidor NIO para pasar los clientes
+     * antiguos a un Worker.
+     *
+     * @param socket socket del cliente, en modo bloqueante
+     * @param start bytes ya leidos del cliente, empezando por su cabecera
+     * @return el stream para leer y escribir mensajes con la serializacion de
+     * Java
+     * @throws IOException Si la serializacion de Java esta desactivada o hay
+     * un error con el socket.
+     */
+    public MessageStream openJava(Socket socket, byte[] start) throws IOException {
+        if (!allowJava) {
+            throw new StreamCorruptedException("La serializacion de Java esta desactivada");
+        }
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        ObjectOutputStream oos = new ObjectOutputStream(out) {
+            @Override
+            protected void writeStreamHeader() {
+                //Ya se ha mandado
+            }
+        };
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(start),
+                new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        return new JavaMessageStream(oos, out, in);
+    }
+
+    /**
+     * @return si se admiten clientes con serializacion de Java.
+     */
+    public boolean isJavaAllowed() {
+        return allowJava;
+    }
+
+    /**
+     * @return si se admiten clientes con el formato binario.
+     */
+    public boolean isBinaryAllowed() {
+        return allowBinary;
+    }
+
+    /**
+     * @return longitud maxima de una trama.
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * @param client direccion remota del cliente
+     * @return longitud maxima de una trama de ese cliente, mas que
+     * MAXFRAMESIZE si puede hacer registros masivos.
+     */
+    public int getMaxFrameSize(InetAddress client) {
+        return bulkPolicy == null ? maxFrameSize : bulkPolicy.getMaxFrameSize(client, maxFrameSize);
+    }
+
+    /**
+     * Este metodo pretende crear la respuesta de la negociacion binaria.
+     *
+     * @param version version elegida, 0 si no se admite
+     * @return los bytes de la respuesta
+     */
+    public static byte[] reply(byte version) {
+        byte[] reply = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+        reply[MAGIC.length] = version;
+        return reply;
+    }
+
+    /**
+     * Este metodo pretende calentar los formatos admitidos antes de aceptar
+     * clientes: carga las clases de la serializacion, codifica las respuestas
+     * fijas (ver StaticReplies) y convierte un mensaje de ejemplo ida y vuelta
+     * las veces indicadas para que el JIT ya haya compilado ese camino.
+     *
+     * @param iterations conversiones de ida y vuelta con cada formato
+     * @throws IOException Si un mensaje no se puede convertir.
+     */
+    public void warmUp(int iterations) throws IOException {
+        StaticReplies.get(Msg.OK);
+        User user = new User();
+        user.setLogin("warmup");
+        user.setEmail("warmup@example.com");
+        user.setFullName("Warm Up");
+        user.setPassword("warmup");
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setLastPasswordChange(new Timestamp(System.currentTimeMillis()));
+        Message message = new Message();
+        message.setMsg(Msg.SIGNIN);
+        message.setUser(user);
+        Object[] samples = {message, new MessageEnvelope(1, message)};
+        for (int i = 0; i < iterations; i++) {
+            Object sample = samples[i % samples.length];
+            if (allowJava) {
+                JavaSerializationCodec.INSTANCE.decode(JavaSerializationCodec.INSTANCE.encode(sample));
+            }
+            if (allowBinary) {
+                BinaryCodec.INSTANCE.decode(BinaryCodec.INSTANCE.encode(sample));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package server.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Esta clase pretende leer y escribir los mensajes con la serializacion de
+ * Java sobre el socket, como lo hacen los clientes antiguos. Las respuestas
+ * de StaticReplies se escriben con sus bytes ya codificados. Solo se leen
+ * las clases de los mensajes (ver {@link WhitelistObjectInputStream}).
+ *
+ * @author Steven Arce
+ */
+public class JavaMessageStream implements MessageStream {
+
+    private final ObjectOutputStream oos;
+    private final OutputStream out;
+    private final WhitelistObjectInputStream ois;
+
+    /**
+     * Constructor del stream.
+     *
+     * @param oos stream de salida, con la cabecera ya mandada
+     * @param out stream sobre el que escribe oos, para mandar las respuestas
+     * ya codificadas
+     * @param in stream de entrada del socket
+     * @throws IOException Si la cabecera del cliente no es valida.
+     */
+    public JavaMessageStream(ObjectOutputStream oos, OutputStream out, InputStream in) throws IOException {
+        this.oos = oos;
+        this.out = out;
+        this.ois = new WhitelistObjectInputStream(in);
+    }
+
+    @Override
+    public Object read() throws IOException, ClassNotFoundException {
+        return ois.readMessage();
+    }
+
+    /**
+     * {@inheritDoc} Se reinicia el stream despues de cada mensaje para que no
+     * guarde referencias a los objetos ya enviados.
+     */
+    @Override
+    public void write(Object message) throws IOException {
+        byte[] encoded = StaticReplies.javaStream(message);
+        if (encoded != null) {
+            //oos no tiene nada pendiente: siempre se vacia al terminar cada mensaje
+            out.write(encoded);
+            out.flush();
+            return;
+        }
+        oos.writeObject(message);
+        oos.reset();
+        oos.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            oos.close();
+        } finally {
+            ois.close();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package server.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectOutputStream;
+
+/**
+ * Esta clase pretende mandar los mensajes con la serializacion de Java, como
+ * lo hacen los clientes antiguos. Cada mensaje lleva su propia cabecera de
+ * stream. Solo se leen las clases de los mensajes (ver
+ * {@link WhitelistObjectInputStream}).
+ *
+ * @author Steven Arce
+ */
+public class JavaSerializationCodec implements MessageCodec {
+
+    /**
+     * Instancia compartida, no tiene estado.
+     */
+    public static final JavaSerializationCodec INSTANCE = new JavaSerializationCodec();
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] payload) throws IOException {
+        try (WhitelistObjectInputStream ois = new WhitelistObjectInputStream(new ByteArrayInputStream(payload))) {
+            return ois.readMessage();
+        } catch (ClassNotFoundException ex) {
+            throw new InvalidObjectException("Clase desconocida: " + ex.getMessage());
+        }
+    }
+
+}
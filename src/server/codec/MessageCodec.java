@@ -0,0 +1,31 @@
+package server.codec;
+
+import java.io.IOException;
+
+/**
+ * Esta interfaz representa un formato para convertir las peticiones y
+ * respuestas (Message o MessageEnvelope) en bytes y al reves.
+ *
+ * @author Steven Arce
+ */
+public interface MessageCodec {
+
+    /**
+     * Este metodo pretende convertir un mensaje en bytes.
+     *
+     * @param message Message o MessageEnvelope a convertir
+     * @return los bytes del mensaje
+     * @throws IOException Si el mensaje no se puede convertir.
+     */
+    byte[] encode(Object message) throws IOException;
+
+    /**
+     * Este metodo pretende leer un mensaje de sus bytes.
+     *
+     * @param payload bytes del mensaje
+     * @return el Message o MessageEnvelope leido
+     * @throws IOException Si los bytes no son un mensaje valido.
+     */
+    Object decode(byte[] payload) throws IOException;
+
+}
@@ -0,0 +1,32 @@
+package server.codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Esta interfaz representa la forma de leer y escribir mensajes en el socket
+ * de un cliente, una vez acordado el formato con el.
+ *
+ * @author Steven Arce
+ */
+public interface MessageStream extends Closeable {
+
+    /**
+     * Este metodo pretende leer el siguiente mensaje del cliente.
+     *
+     * @return el Message o MessageEnvelope recibido
+     * @throws java.io.EOFException Si el cliente ha cerrado el socket.
+     * @throws IOException Si hay un error al leer.
+     * @throws ClassNotFoundException Si la clase del objeto recibido no existe.
+     */
+    Object read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Este metodo pretende mandar un mensaje al cliente.
+     *
+     * @param message Message o MessageEnvelope a mandar
+     * @throws IOException Si hay un error al escribir.
+     */
+    void write(Object message) throws IOException;
+
+}
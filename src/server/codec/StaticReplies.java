@@ -0,0 +1,134 @@
+package server.codec;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import lib.message.Message;
+import lib.message.Msg;
+
+/**
+ * Esta clase pretende tener ya codificadas las respuestas que siempre son
+ * iguales: las de error y el rechazo por exceso de clientes, que son un
+ * Message sin usuario. Se codifican una vez al arrancar en cada formato y
+ * despues se escriben los bytes tal cual, sin serializar nada, que es justo
+ * lo que interesa cuando el servidor esta saturado.
+ * <p>
+ * Los Message de esta clase se comparten entre todos los hilos y no se deben
+ * modificar. Un stream reconoce que una respuesta es de esta clase porque es
+ * la misma instancia que devuelve {@link #get(Msg)}.
+ *
+ * @author Steven Arce
+ */
+public final class StaticReplies {
+
+    private static final Msg[] MSGS = Msg.values();
+    private static final Message[] messages = new Message[MSGS.length];
+    private static final byte[][] java = new byte[MSGS.length][];
+    private static final byte[][] javaStream = new byte[MSGS.length][];
+    private static final byte[][] javaFrames = new byte[MSGS.length][];
+    private static final byte[][] binaryFrames = new byte[MSGS.length][];
+
+    static {
+        try {
+            for (Msg type : MSGS) {
+                Message message = new Message();
+                message.setMsg(type);
+                int i = type.ordinal();
+                messages[i] = message;
+                java[i] = JavaSerializationCodec.INSTANCE.encode(message);
+                //Sin la cabecera del stream y con el reset que pone JavaMessageStream detras de cada mensaje
+                javaStream[i] = Arrays.copyOfRange(java[i], 4, java[i].length + 1);
+                javaStream[i][javaStream[i].length - 1] = ObjectStreamConstants.TC_RESET;
+                javaFrames[i] = frame(java[i]);
+                binaryFrames[i] = frame(BinaryCodec.INSTANCE.encode(message));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private StaticReplies() {
+    }
+
+    /**
+     * Este metodo pretende devolver la respuesta fija de un tipo.
+     *
+     * @param type tipo de la respuesta
+     * @return un Message compartido, sin usuario, que no se debe modificar.
+     */
+    public static Message get(Msg type) {
+        return messages[type.ordinal()];
+    }
+
+    /**
+     * Este metodo pretende devolver la respuesta con la serializacion de Java
+     * completa, cabecera del stream incluida, para mandarla por un socket
+     * recien aceptado.
+     *
+     * @param type tipo de la respuesta
+     * @return los bytes, que no se deben modificar.
+     */
+    public static byte[] java(Msg type) {
+        return java[type.ordinal()];
+    }
+
+    /**
+     * Este metodo pretende devolver los bytes para mandar la respuesta por un
+     * ObjectOutputStream ya abierto, justo despues de un reset. Son los mismos
+     * que escribirian writeObject y reset.
+     *
+     * @param message respuesta a mandar
+     * @return los bytes, que no se deben modificar, o null si la respuesta no
+     * es de esta clase.
+     */
+    public static byte[] javaStream(Object message) {
+        int i = indexOf(message);
+        return i < 0 ? null : javaStream[i];
+    }
+
+    /**
+     * Este metodo pretende devolver la trama de la respuesta, con la longitud
+     * delante (ver FramedMessageStream).
+     *
+     * @param codec formato acordado con el cliente
+     * @param message respuesta a mandar
+     * @return los bytes, que no se deben modificar, o null si la respuesta no
+     * es de esta clase o el formato no es uno de los del servidor.
+     */
+    public static byte[] frame(MessageCodec codec, Object message) {
+        int i = indexOf(message);
+        if (i < 0) {
+            return null;
+        }
+        if (codec == JavaSerializationCodec.INSTANCE) {
+            return javaFrames[i];
+        }
+        if (codec == BinaryCodec.INSTANCE) {
+            return binaryFrames[i];
+        }
+        return null;
+    }
+
+    /**
+     * @return el tipo de la respuesta si es una de las de esta clase, o -1.
+     */
+    private static int indexOf(Object message) {
+        if (!(message instanceof Message)) {
+            return -1;
+        }
+        Msg type = ((Message) message).getMsg();
+        return type != null && messages[type.ordinal()] == message ? type.ordinal() : -1;
+    }
+
+    private static byte[] frame(byte[] payload) {
+        byte[] frame = new byte[4 + payload.length];
+        frame[0] = (byte) (payload.length >>> 24);
+        frame[1] = (byte) (payload.length >>> 16);
+        frame[2] = (byte) (payload.length >>> 8);
+        frame[3] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 4, payload.length);
+        return frame;
+    }
+
+}
@@ -0,0 +1,126 @@
+package server.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Esta clase pretende leer con la serializacion de Java solo las clases que
+ * mandan los clientes: los mensajes, sus sobres, el registro masivo y lo que
+ * llevan dentro. Cualquier otra clase se rechaza antes de crearla, para que un
+ * cliente no pueda hacer que el servidor ejecute el readObject de una clase
+ * cualquiera del classpath.
+ * <p>
+ * Ademas cada mensaje puede tener como mucho MAX_OBJECTS objetos. Si la JVM
+ * tiene ObjectInputFilter (Java 9 en adelante) tambien se limitan la
+ * profundidad y la longitud de los arrays, como la del array interno de un
+ * ArrayList, que si no se reserva con lo que diga el cliente; en Java 8 solo
+ * se comprueban las clases y el numero de objetos.
+ *
+ * @author Steven Arce
+ */
+class WhitelistObjectInputStream extends ObjectInputStream {
+
+    /**
+     * Objetos que puede tener un mensaje, contando cadenas y enumerados: da
+     * para un registro masivo de unos miles de usuarios.
+     */
+    static final int MAX_OBJECTS = 100000;
+    //Sobre, mensaje, usuario, fecha; o peticion masiva, lista, usuario, fecha
+    private static final int MAX_DEPTH = 10;
+    private static final int MAX_ARRAY = MAX_OBJECTS;
+    private static final Set<String> ALLOWED = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "lib.message.Message",
+            "lib.message.Msg",
+            "lib.dataModel.User",
+            "lib.dataModel.UserStatus",
+            "lib.dataModel.UserPrivilege",
+            "server.serverSocket.MessageEnvelope",
+            "server.serverSocket.BulkSignUpRequest",
+            "java.sql.Timestamp",
+            "java.util.Date",
+            "java.util.ArrayList",
+            "java.lang.Enum")));
+    //Filtro de limites y ObjectInputStream.setObjectInputFilter, null en Java 8
+    private static final Object LIMITS;
+    private static final Method SET_FILTER;
+
+    static {
+        Object limits = null;
+        Method setFilter = null;
+        try {
+            Class<?> filterClass = Class.forName("java.io.ObjectInputFilter");
+            limits = Class.forName("java.io.ObjectInputFilter$Config").getMethod("createFilter", String.class)
+                    .invoke(null, "maxdepth=" + MAX_DEPTH + ";maxarray=" + MAX_ARRAY);
+            setFilter = ObjectInputStream.class.getMethod("setObjectInputFilter", filterClass);
+        } catch (ReflectiveOperationException ex) {
+            limits = null;
+            setFilter = null;
+        }
+        LIMITS = limits;
+        SET_FILTER = setFilter;
+    }
+
+    private int objects;
+
+    /**
+     * Constructor del stream, lee la cabecera.
+     *
+     * @param in stream de entrada
+     * @throws IOException Si la cabecera no es valida.
+     */
+    WhitelistObjectInputStream(InputStream in) throws IOException {
+        super(in);
+        enableResolveObject(true);
+        if (SET_FILTER != null) {
+            try {
+                SET_FILTER.invoke(this, LIMITS);
+            } catch (ReflectiveOperationException ex) {
+                throw new IOException("No se ha podido limitar la serializacion de Java", ex);
+            }
+        }
+    }
+
+    /**
+     * Este metodo pretende leer el siguiente mensaje, con la cuenta de
+     * objetos a cero.
+     *
+     * @return el mensaje leido
+     * @throws IOException Si el mensaje no es valido o pasa de los limites.
+     * @throws ClassNotFoundException Si el mensaje usa una clase que no esta.
+     */
+    Object readMessage() throws IOException, ClassNotFoundException {
+        objects = 0;
+        return readObject();
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        if (!ALLOWED.contains(desc.getName())) {
+            throw new InvalidClassException(desc.getName(), "Clase no admitida en un mensaje");
+        }
+        return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+        throw new InvalidClassException("Proxy", "Clase no admitida en un mensaje");
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+        if (++objects > MAX_OBJECTS) {
+            throw new InvalidObjectException("Mensaje con mas de " + MAX_OBJECTS + " objetos");
+        }
+        return obj;
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Este paquete contiene los formatos con los que se mandan los mensajes
+ */
+package server.codec;
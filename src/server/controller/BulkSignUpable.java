@@ -0,0 +1,24 @@
+package server.controller;
+
+import java.util.List;
+import lib.dataModel.User;
+import lib.message.Msg;
+
+/**
+ * Esta interfaz es el registro de muchos usuarios de una vez, para las
+ * migraciones de cuentas. Va aparte de Logicable porque Logicable es de la
+ * libreria comun con el cliente.
+ * @author Steven Arce
+ */
+public interface BulkSignUpable {
+
+    /**
+     * Este metodo registra una lista de usuarios. Un usuario que falla no
+     * impide registrar a los demas
+     * @param users usuarios a registrar, con su contraseña en claro
+     * @return el resultado de cada usuario, en el mismo orden: OK si se ha
+     * registrado o el error que habria devuelto signUp
+     */
+    Msg[] signUpAll(List<User> users);
+
+}
@@ -0,0 +1,135 @@
+package server.controller;
+
+import java.util.List;
+import java.util.logging.Logger;
+import lib.dataModel.User;
+import lib.exceptions.ConnectException;
+import lib.exceptions.IncorrectEmailException;
+import lib.exceptions.IncorrectPasswordException;
+import lib.exceptions.IncorrectUserException;
+import lib.exceptions.PasswordDontMatchException;
+import lib.exceptions.TooManyUsersException;
+import lib.exceptions.UserExistException;
+import lib.message.Msg;
+import server.security.PasswordVerifier;
+
+/**
+ * Esta clase es el DAO con una cache de usuarios delante de buscarUser. Las
+ * busquedas se resuelven en la cache si se puede, y al registrar un usuario se
+ * olvida lo que hubiera guardado de su login. El resultado de una consulta no
+ * se guarda si el login se ha olvidado mientras se hacia, porque podria ser
+ * de antes del cambio (ver UserCache.generation).
+ * @author Steven Arce
+ */
+public class CachedDAOableImplementation extends DAOableImplementation {
+    //logger
+    private final static Logger logger = Logger.getLogger("server.controller.Dao");
+    //atributos
+    private final UserCache cache;
+
+    /**
+     * Constructor del dao con cache
+     * @param cache cache de usuarios compartida
+     * @param auditWriter escritor del registro de inicios de sesion, o null
+     * para guardarlos en el momento
+     * @param coalescer busquedas en curso compartidas, o null para que cada
+     * fallo de la cache haga su consulta
+     * @param passwords calculo y comprobacion de las contraseñas
+     */
+    public CachedDAOableImplementation(UserCache cache, SignInAuditWriter auditWriter, LookupCoalescer coalescer,
+            PasswordVerifier passwords) {
+        super(auditWriter, coalescer, passwords);
+        this.cache = cache;
+    }
+
+    /**
+     * Este metodo registra un usuario y lo olvida de la cache, por si estaba
+     * guardado como inexistente
+     * @param user Objeto usuario recibido mediante el socket
+     * @return objeto User Devuelve el usuario creado
+     * @throws IncorrectUserException El usuario no es alfanumerico
+     * @throws IncorrectPasswordException La contraseña no es alfanumerica
+     * @throws IncorrectEmailException Patron de correo incorrecto
+     * @throws UserExistException Usuario ya existe en la base de datos
+     * @throws PasswordDontMatchException Las contraseñas no coinciden entre si
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     * @throws TooManyUsersException Hay demasiadas contraseñas esperando a calcularse
+     */
+    @Override
+    public User signUp(User user) throws IncorrectUserException, IncorrectPasswordException, IncorrectEmailException, UserExistException, PasswordDontMatchException, ConnectException, TooManyUsersException {
+        try {
+            return super.signUp(user);
+        } finally {
+            cache.invalidate(user.getLogin());
+        }
+    }
+
+    /**
+     * Este metodo registra una lista de usuarios y los olvida todos de la
+     * cache, por si alguno estaba guardado como inexistente
+     * @param users usuarios a registrar, con su contraseña en claro
+     * @return el resultado de cada usuario, en el mismo orden
+     */
+    @Override
+    public Msg[] signUpAll(List<User> users) {
+        try {
+            return super.signUpAll(users);
+        } finally {
+            for (User user : users) {
+                if (user != null && user.getLogin() != null) {
+                    cache.invalidate(user.getLogin());
+                }
+            }
+        }
+    }
+
+    /**
+     * Este metodo guarda de nuevo la contraseña y olvida el usuario de la
+     * cache, para que no se siga usando el valor antiguo
+     * @param login login del usuario
+     * @param password contraseña en claro, ya comprobada
+     */
+    @Override
+    protected void actualizarPassword(String login, String password) {
+        try {
+            super.actualizarPassword(login, password);
+        } finally {
+            cache.invalidate(login);
+        }
+    }
+
+    /**
+     * Este metodo busca un usuario primero en la cache y, si no esta, en la
+     * base de datos
+     * @param user Objeto usuario recibido desde el socket
+     * @return objeto User Devuelve el usuario encontrado, o nulo si no existe
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     */
+    @Override
+    public User buscarUser(User user) throws ConnectException {
+        UserCache.Lookup lookup = cache.get(user.getLogin());
+        if (lookup.isFound()) {
+            logger.fine("Usuario encontrado en la cache");
+            return lookup.getUser();
+        }
+        return super.buscarUser(user);
+    }
+
+    /**
+     * Este metodo hace la consulta en la base de datos y guarda el resultado
+     * en la cache, salvo que el login se haya olvidado mientras tanto. Solo
+     * lo hace el hilo que consulta, no los que se unen a su consulta
+     * @param login login del usuario
+     * @return objeto User con todos los datos, o nulo si no existe
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     */
+    @Override
+    protected User consultarUser(String login) throws ConnectException {
+        //Se lee antes de la consulta, un cambio posterior deja la generacion atras
+        long generation = cache.generation(login);
+        User encontrado = super.consultarUser(login);
+        cache.put(login, encontrado, generation);
+        return encontrado;
+    }
+
+}
@@ -1,9 +1,15 @@
 package server.controller;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 import lib.dataModel.User;
 import lib.dataModel.UserPrivilege;
@@ -13,54 +19,72 @@ import lib.exceptions.IncorrectEmailException;
 import lib.exceptions.IncorrectPasswordException;
 import lib.exceptions.IncorrectUserException;
 import lib.exceptions.PasswordDontMatchException;
+import lib.exceptions.TooManyUsersException;
 import lib.exceptions.UserDontExistException;
 import lib.exceptions.UserExistException;
 import lib.interfaces.Logicable;
+import lib.message.Msg;
+import server.RequestDeadline;
+import server.metrics.Metrics;
 import server.pool.Pool;
+import server.security.PasswordVerifier;
+import server.security.PlainPasswordHasher;
 
 /**
- * Esta clase maneja la logica de los metodos de signIn y signUp
+ * Esta clase maneja la logica de los metodos de signIn y signUp. No guarda
+ * estado entre llamadas: cada metodo pide su conexion al pool, usa sus propios
+ * statements y la devuelve siempre, aunque haya un error, asi que varios hilos
+ * pueden usar la misma instancia a la vez.
+ * <p>
+ * El registro masivo (signUpAll) trabaja por bloques de usuariosPorBloque:
+ * busca los logins que ya existen con una sola query, calcula las
+ * contraseñas en paralelo y hace los insert en lote en una transaccion por
+ * bloque. No guarda inicios de sesion, porque los usuarios migrados no han
+ * iniciado sesion. Cuando se agota el plazo de la peticion (BULKDEADLINE) los
+ * bloques que faltan se contestan con TOOMANYUSERSEXCEPTION sin intentarlos.
  * @author Irkus de la Fuente, Steven Arce
  */
-public class DAOableImplementation implements Logicable {
+public class DAOableImplementation implements Logicable, BulkSignUpable {
     //logger
     private final static Logger logger = Logger.getLogger("server.controller.Dao");
     //atributos
-    private Connection con;
-    private Pool pool;
-    private ResultSet rs;
-    private PreparedStatement stmt;
+    private final Pool pool;
+    private final SignInAuditWriter auditWriter;
+    private final LookupCoalescer coalescer;
+    private final PasswordVerifier passwords;
     //querys
     private final String insertarUsuario = "insert into user (login,email,fullname,status,privilege,password,lastPasswordChange) values(?,?,?,?,?,?,?)";
     private final String buscarUsuario = "select * from user where login=?";
-    private final String procedimientoSignIn = "{CALL last_ten_sign_in(?)}";
+    private final String actualizarPassword = "update user set password=? where login=?";
+    static final String procedimientoSignIn = "{CALL last_ten_sign_in(?)}";
+    //usuarios por transaccion del registro masivo
+    static final int usuariosPorBloque = 500;
+    //con el numero de parametros fijo la query se prepara una vez por conexion
+    private final String buscarUsuarios = "select login from user where login in ("
+            + String.join(",", Collections.nCopies(usuariosPorBloque, "?")) + ")";
+    //login que no puede existir, los usuarios son alfanumericos
+    private final String loginCalentamiento = "#warmup";
     /**
      * Constructor vacio construye el dao y asigna valor al pool
      */
     public DAOableImplementation() {
-        //Asignar valor al pool
-        this.pool = Pool.getInstance();
+        this(null, null, new PasswordVerifier(new PlainPasswordHasher()));
     }
     /**
-     * Metodo de cerrar el statement y resulSet
+     * Constructor que guarda los inicios de sesion en segundo plano y junta
+     * las busquedas simultaneas de un mismo login
+     * @param auditWriter escritor del registro de inicios de sesion, o null
+     * para guardarlos en el momento
+     * @param coalescer busquedas en curso compartidas, o null para que cada
+     * busqueda haga su consulta
+     * @param passwords calculo y comprobacion de las contraseñas
      */
-    public void closeResulAndStatement() {
-        if (rs != null) {
-            try {
-                //cerrar resultSet
-                rs.close();
-            } catch (SQLException ex) {
-                logger.info("Error al cerrar el resultSet");
-            }
-        }
-        if (stmt != null) {
-            try {
-                //Cerrar statement
-                stmt.close();
-            } catch (SQLException ex) {
-                logger.info("Error al cerrar el preparedStatement");
-            }
-        }
+    public DAOableImplementation(SignInAuditWriter auditWriter, LookupCoalescer coalescer, PasswordVerifier passwords) {
+        //Asignar valor al pool
+        this.pool = Pool.getInstance();
+        this.auditWriter = auditWriter;
+        this.coalescer = coalescer;
+        this.passwords = passwords;
     }
     /**
      * Este metodo loguea a un usuario
@@ -71,40 +95,45 @@ public class DAOableImplementation implements Logicable {
      * @throws UserDontExistException El usuario no esta registrado en la base de datos
      * @throws PasswordDontMatchException La contraseña no esta registrada en la base de datos
      * @throws ConnectException Hay un error de conexion con la base de datos
+     * @throws TooManyUsersException Hay demasiadas contraseñas esperando a comprobarse
      */
       //SignIn  Recibe Usuario/Devuelve Usuario
     @Override
-    public synchronized User signIn(User user) throws IncorrectUserException, IncorrectPasswordException, UserDontExistException, PasswordDontMatchException, ConnectException {
-        logger.info("SignIn iniciado");
-        User usua;
+    public User signIn(User user) throws IncorrectUserException, IncorrectPasswordException, UserDontExistException, PasswordDontMatchException, ConnectException, TooManyUsersException {
+        logger.fine("SignIn iniciado");
+        //Buscar si existe usuario
+        User usua = buscarUser(user);
+        if (usua == null) {
+            //Usuario no existe
+            throw new UserDontExistException("Usuario no existe");
+        }
+        if (!passwords.verify(user.getPassword(), usua.getPassword())) {
+            //Error contraseña no coincide con la de base de datos
+            logger.fine("Error contraseña signin");
+            throw new PasswordDontMatchException("Contraseña incorrecta");
+        }
+        if (passwords.needsRehash(usua.getPassword())) {
+            //Se guarda con el algoritmo y coste actuales ahora que se conoce la contraseña
+            actualizarPassword(user.getLogin(), user.getPassword());
+        }
+        if (auditWriter != null) {
+            //Se guarda en segundo plano, el cliente no espera
+            auditWriter.record(user.getLogin());
+            return user;
+        }
         //Pedir conexion al pool
-        con = pool.getConnection();
+        Connection con = pool.getConnection();
         try {
-            //Buscar si existe usuario
-            usua = buscarUser(user);
-            if (usua == null) {
-                //Usuario no existe
-                throw new UserDontExistException("Usuario no existe");
-            } else {
-                if (user.getPassword().equals(usua.getPassword())) {
-                    //Procedimiento guardar log ultimos 10 1ogins
-                    stmt = con.prepareStatement(procedimientoSignIn);
-                    stmt.setString(1, user.getLogin());
-                    stmt.executeUpdate();
-                } else {
-                    //Error contraseña no coincide con la de base de datos
-                    logger.info("Error contraseña signin");
-                    throw new PasswordDontMatchException("Contraseña incorrecta");
-                }
-            }
+            //Procedimiento guardar log ultimos 10 1ogins
+            registrarSignIn(con, user.getLogin());
         } catch (SQLException ex) {
             //Error de conexion con la base de datos
             logger.info("Error conexion signin");
             throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            //Devolver la conexion al pool
+            pool.releaseConnection(con);
         }
-        //Devolver la conexion al pool y cerrar todo
-        pool.releaseConnection(con);
-        closeResulAndStatement();
         //Devolcer usuario
         return user;
     }
@@ -118,92 +147,476 @@ public class DAOableImplementation implements Logicable {
      * @throws UserExistException   Usuario ya existe en la base de datos
      * @throws PasswordDontMatchException Las contraseñas no coinciden entre si(contraseña y confirmar contraseña)
      * @throws ConnectException Hay un error de conexion con la base de datos
+     * @throws TooManyUsersException Hay demasiadas contraseñas esperando a calcularse
      */
     
      //SignUp  Recibe Usuario/Devuelve Usuario
     @Override
-    public synchronized User signUp(User user) throws IncorrectUserException, IncorrectPasswordException, IncorrectEmailException, UserExistException, PasswordDontMatchException, ConnectException {
-        logger.info("SignUp iniciado");
-        User usua;
+    public User signUp(User user) throws IncorrectUserException, IncorrectPasswordException, IncorrectEmailException, UserExistException, PasswordDontMatchException, ConnectException, TooManyUsersException {
+        logger.fine("SignUp iniciado");
+        //Buscar si existe usuario, en el primario: una replica o la cache pueden no tenerlo aun
+        if (existeEnPrimario(user.getLogin())) {
+            //Usuario ya existe
+            logger.fine("Usuario ya existe signUp");
+            throw new UserExistException("Usuario ya existe");
+        }
+        //Se calcula antes de pedir la conexion para no tenerla ocupada
+        String password = passwords.hash(user.getPassword());
         //Pedir conexion al pool
-        con = pool.getConnection();
-        //Buscar si existe usuario
-        usua = buscarUser(user);
-
+        Connection con = pool.getConnection();
         try {
-            
-            if (usua == null) {
-                //Query insertar usuario
-                stmt = con.prepareStatement(insertarUsuario);
+            //Query insertar usuario
+            long start = System.nanoTime();
+            try (PreparedStatement stmt = pool.prepareStatement(con, insertarUsuario)) {
                 stmt.setString(1, user.getLogin());
                 stmt.setString(2, user.getEmail());
                 stmt.setString(3, user.getFullName());
                 stmt.setString(4, user.getStatus().toString());
                 stmt.setString(5, user.getPrivilege().toString());
-                stmt.setString(6, user.getPassword());
+                stmt.setString(6, password);
                 stmt.setTimestamp(7, user.getLastPasswordChange());
                 stmt.executeUpdate();
-                //Guardamos el log in en el registro de los 10 ultimos
-                stmt = con.prepareStatement(procedimientoSignIn);
-                stmt.setString(1, user.getLogin());
-                stmt.executeUpdate();
-            } else {
-                //Usuario ya existe
-                logger.info("Usuario ya existe signUp");
-                throw new UserExistException("Usuario ya existe");
+            } finally {
+                Metrics.recordDb(Metrics.DbOperation.INSERT, start);
             }
-
-        } catch (ConnectException ex) {
-            //Error con la base de datos
-            logger.info("Error de conexion SignUp");
-            System.out.println("error conexion");
+            //Guardamos el log in en el registro de los 10 ultimos
+            if (auditWriter == null) {
+                registrarSignIn(con, user.getLogin());
+            }
+            //Las replicas aun no lo tienen, se lee del primario un rato
+            pool.markWritten(user.getLogin());
         } catch (SQLException ex) {
+            if (ex.getSQLState() != null && ex.getSQLState().startsWith("23")) {
+                //La clase 23 es la de las restricciones: otro cliente lo ha registrado a la vez
+                logger.fine("Usuario ya existe signUp");
+                throw new UserExistException("Usuario ya existe");
+            }
             //Error con la base de datos
             logger.info("Error de conexion SQL signUp");
             throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            //Devolcer conexion al pool
+            pool.releaseConnection(con);
+        }
+        if (auditWriter != null) {
+            auditWriter.record(user.getLogin());
         }
-        //Devolcer conexion al pool
-        pool.releaseConnection(con);
-        //cerrar todo
-        closeResulAndStatement();
         //devolver usuario
         return user;
     }
 
     
+    /**
+     * Este metodo registra una lista de usuarios por bloques. Los usuarios
+     * sin login o sin contraseña, y los logins repetidos dentro de la lista,
+     * no se intentan registrar
+     * @param users usuarios a registrar, con su contraseña en claro
+     * @return el resultado de cada usuario, en el mismo orden
+     */
+    @Override
+    public Msg[] signUpAll(List<User> users) {
+        logger.fine("SignUp masivo iniciado");
+        Msg[] resultados = new Msg[users.size()];
+        Set<String> vistos = new HashSet<>();
+        List<Integer> bloque = new ArrayList<>(usuariosPorBloque);
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            if (user == null || user.getLogin() == null || user.getLogin().isEmpty()) {
+                resultados[i] = Msg.INCORRECTUSEREXCEPTION;
+            } else if (user.getPassword() == null || user.getPassword().isEmpty()) {
+                resultados[i] = Msg.INCORRECTPASSWORDEXCEPTION;
+            } else if (!vistos.add(user.getLogin())) {
+                resultados[i] = Msg.USEREXISTEXCEPTION;
+            } else {
+                bloque.add(i);
+                if (bloque.size() == usuariosPorBloque) {
+                    registrarBloque(users, bloque, resultados);
+                    bloque.clear();
+                }
+            }
+        }
+        if (!bloque.isEmpty()) {
+            registrarBloque(users, bloque, resultados);
+        }
+        return resultados;
+    }
+
+    /**
+     * Este metodo registra un bloque de usuarios: descarta los que ya existen,
+     * calcula las contraseñas y los inserta en una transaccion
+     * @param users usuarios de la peticion
+     * @param bloque posiciones de los usuarios del bloque, como mucho
+     * usuariosPorBloque
+     * @param resultados resultado de cada usuario, se rellena el del bloque
+     */
+    private void registrarBloque(List<User> users, List<Integer> bloque, Msg[] resultados) {
+        if (RequestDeadline.remainingNanos() <= 0) {
+            //El cliente ya no espera la respuesta, los bloques que faltan no se intentan
+            logger.info("Plazo del signUp masivo agotado, quedan " + bloque.size() + " usuarios del bloque sin registrar");
+            marcar(bloque, resultados, Msg.TOOMANYUSERSEXCEPTION);
+            return;
+        }
+        Set<String> existentes;
+        try {
+            existentes = buscarExistentes(users, bloque);
+        } catch (ConnectException ex) {
+            marcar(bloque, resultados, Msg.CONNECTEXCEPTION);
+            return;
+        }
+        List<Integer> nuevos = new ArrayList<>(bloque.size());
+        for (int i : bloque) {
+            if (existentes.contains(users.get(i).getLogin())) {
+                resultados[i] = Msg.USEREXISTEXCEPTION;
+            } else {
+                nuevos.add(i);
+            }
+        }
+        //Se calculan antes de pedir la conexion para no tenerla ocupada
+        String[] claves = new String[nuevos.size()];
+        for (int k = 0; k < claves.length; k++) {
+            claves[k] = users.get(nuevos.get(k)).getPassword();
+        }
+        String[] hashes = passwords.hashAll(claves);
+        List<Integer> insertar = new ArrayList<>(nuevos.size());
+        List<String> hashesInsertar = new ArrayList<>(nuevos.size());
+        for (int k = 0; k < hashes.length; k++) {
+            if (hashes[k] == null) {
+                //No cabia en la cola de contraseñas o se ha agotado el plazo
+                resultados[nuevos.get(k)] = Msg.TOOMANYUSERSEXCEPTION;
+            } else {
+                insertar.add(nuevos.get(k));
+                hashesInsertar.add(hashes[k]);
+            }
+        }
+        if (!insertar.isEmpty()) {
+            insertarBloque(users, insertar, hashesInsertar, resultados);
+        }
+    }
+
+    /**
+     * Este metodo busca cuales de los logins de un bloque ya existen, con una
+     * sola query. Los parametros que sobran repiten el primer login
+     * @param users usuarios de la peticion
+     * @param bloque posiciones de los usuarios del bloque
+     * @return los logins que ya existen
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     */
+    private Set<String> buscarExistentes(List<User> users, List<Integer> bloque) throws ConnectException {
+        Set<String> existentes = new HashSet<>();
+        Connection con = pool.getConnection();
+        long start = System.nanoTime();
+        try (PreparedStatement stmt = pool.prepareStatement(con, buscarUsuarios)) {
+            for (int p = 0; p < usuariosPorBloque; p++) {
+                stmt.setString(p + 1, users.get(bloque.get(p < bloque.size() ? p : 0)).getLogin());
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    existentes.add(rs.getString(1));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.info("Error de conexion SQL al buscar los usuarios del signUp masivo");
+            throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            Metrics.recordDb(Metrics.DbOperation.BULK_LOOKUP, start);
+            pool.releaseConnection(con);
+        }
+        return existentes;
+    }
+
+    /**
+     * Este metodo inserta un bloque de usuarios en lote, en una transaccion.
+     * Si el lote falla, porque alguno se ha registrado mientras tanto, se
+     * deshace y se insertan de uno en uno para saber cual ha fallado
+     * @param users usuarios de la peticion
+     * @param insertar posiciones de los usuarios a insertar
+     * @param hashes contraseña a guardar de cada uno
+     * @param resultados resultado de cada usuario, se rellena el de los insertados
+     */
+    private void insertarBloque(List<User> users, List<Integer> insertar, List<String> hashes, Msg[] resultados) {
+        Connection con;
+        try {
+            con = pool.getConnection();
+        } catch (ConnectException ex) {
+            marcar(insertar, resultados, Msg.CONNECTEXCEPTION);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            boolean enLote;
+            con.setAutoCommit(false);
+            try {
+                try (PreparedStatement stmt = pool.prepareStatement(con, insertarUsuario)) {
+                    try {
+                        for (int k = 0; k < insertar.size(); k++) {
+                            ponerUsuario(stmt, users.get(insertar.get(k)), hashes.get(k));
+                            stmt.addBatch();
+                        }
+                        stmt.executeBatch();
+                    } finally {
+                        //El statement vuelve a la cache, no puede quedarse con el lote a medias
+                        stmt.clearBatch();
+                    }
+                }
+                con.commit();
+                enLote = true;
+            } catch (SQLException ex) {
+                con.rollback();
+                enLote = false;
+            } finally {
+                con.setAutoCommit(true);
+            }
+            if (enLote) {
+                marcar(insertar, resultados, Msg.OK);
+            } else {
+                logger.fine("Lote del signUp masivo deshecho, se inserta de uno en uno");
+                for (int k = 0; k < insertar.size(); k++) {
+                    resultados[insertar.get(k)] = insertarUno(con, users.get(insertar.get(k)), hashes.get(k));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.info("Error de conexion SQL en el signUp masivo");
+            for (int i : insertar) {
+                if (resultados[i] == null) {
+                    resultados[i] = Msg.CONNECTEXCEPTION;
+                }
+            }
+        } finally {
+            Metrics.recordDb(Metrics.DbOperation.BULK_INSERT, start);
+            pool.releaseConnection(con);
+        }
+        for (int i : insertar) {
+            if (resultados[i] == Msg.OK) {
+                //Las replicas aun no lo tienen, se lee del primario un rato
+                pool.markWritten(users.get(i).getLogin());
+            }
+        }
+    }
+
+    /**
+     * Este metodo inserta un usuario del signUp masivo por separado
+     * @param con conexion con la base de datos, con autocommit
+     * @param user usuario a insertar
+     * @param hash contraseña a guardar
+     * @return OK, USEREXISTEXCEPTION si el login ya existe o
+     * CONNECTEXCEPTION si ha fallado por otra cosa
+     */
+    private Msg insertarUno(Connection con, User user, String hash) {
+        try (PreparedStatement stmt = pool.prepareStatement(con, insertarUsuario)) {
+            ponerUsuario(stmt, user, hash);
+            stmt.executeUpdate();
+            return Msg.OK;
+        } catch (SQLException ex) {
+            //La clase 23 es la de las restricciones, aqui el login unico
+            return ex.getSQLState() != null && ex.getSQLState().startsWith("23")
+                    ? Msg.USEREXISTEXCEPTION : Msg.CONNECTEXCEPTION;
+        }
+    }
+
+    /**
+     * Este metodo pone los datos de un usuario en la query insertar usuario.
+     * Sin estado ni privilegio se registra activo y como usuario normal
+     * @param stmt query insertar usuario
+     * @param user usuario a insertar
+     * @param hash contraseña a guardar
+     * @throws SQLException Error al poner los datos
+     */
+    private void ponerUsuario(PreparedStatement stmt, User user, String hash) throws SQLException {
+        stmt.setString(1, user.getLogin());
+        stmt.setString(2, user.getEmail());
+        stmt.setString(3, user.getFullName());
+        stmt.setString(4, (user.getStatus() == null ? UserStatus.ENABLED : user.getStatus()).toString());
+        stmt.setString(5, (user.getPrivilege() == null ? UserPrivilege.USER : user.getPrivilege()).toString());
+        stmt.setString(6, hash);
+        stmt.setTimestamp(7, user.getLastPasswordChange());
+    }
+
+    private static void marcar(List<Integer> posiciones, Msg[] resultados, Msg resultado) {
+        for (int i : posiciones) {
+            resultados[i] = resultado;
+        }
+    }
+
     /**
      * Este metodo busca un usuario determinado buscado mediante el loggin y lo devuelve con todos los datos
      * @param user Objeto usuario recibido desde el socket
      * @return objeto User Devuelve un objeto usuario con todos los datos introducidos en caso de no encontrarlo nulo
+     * @throws ConnectException Hay un error de conexion con la base de datos
      */
     //Busca usuario recibe User y devuelve User
     public User buscarUser(User user) throws ConnectException {
-        logger.info("Buscar usuario iniciado");
+        logger.fine("Buscar usuario iniciado");
+        if (coalescer != null) {
+            //Si ya hay una consulta en curso para este login se espera su resultado
+            return coalescer.find(user.getLogin(), () -> consultarUser(user.getLogin()));
+        }
+        return consultarUser(user.getLogin());
+    }
+
+    /**
+     * Este metodo prepara las querys en las conexiones del pool, hace una
+     * busqueda y calcula una contraseña, para que los primeros clientes no
+     * paguen la carga de clases ni la preparacion de los statements
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     */
+    public void warmUp() throws ConnectException {
+        pool.warmUp(new String[]{insertarUsuario, buscarUsuario, actualizarPassword, buscarUsuarios},
+                new String[]{procedimientoSignIn});
+        //Sin pasar por la cache para no guardar el login falso
+        consultarUser(loginCalentamiento);
+        try {
+            passwords.verify(loginCalentamiento, passwords.hash(loginCalentamiento));
+        } catch (TooManyUsersException ex) {
+            logger.fine("Contraseña sin calentar, demasiadas contraseñas esperando");
+        }
+    }
+
+    /**
+     * Este metodo hace la consulta del usuario en la base de datos, en una
+     * replica si las hay. Si la replica falla se repite en el primario
+     * @param login login del usuario
+     * @return objeto User con todos los datos, o nulo si no existe
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     */
+    protected User consultarUser(String login) throws ConnectException {
+        //Pedir conexion para leer al pool
+        Connection con = pool.getReadConnection(login);
         try {
-            //ejecutar query buscar usuario
-            stmt = con.prepareStatement(buscarUsuario);
-            stmt.setString(1, user.getLogin());
-            rs = stmt.executeQuery();
-
-            user = null;
-            while (rs.next()) {
-                //asignar valores al objeto usuario
-                user = new User();
-                user.setId(rs.getInt("id"));
-                user.setLogin(rs.getString("login"));
-                user.setEmail(rs.getString("email"));
-                user.setPassword(rs.getString("password"));
-                user.setFullName(rs.getString("fullName"));
-                user.setPrivilege(UserPrivilege.USER);
-                user.setStatus(UserStatus.ENABLED);
+            return consultarUser(con, login);
+        } catch (SQLException ex) {
+            if (!pool.reportReadFailure(con, ex)) {
+                //Error con la base de datos
+                logger.info("Error de conexion buscar usuario SQL");
+                throw new ConnectException("error de conexion a base de datos");
             }
+        } finally {
+            //Devolver la conexion al pool
+            pool.releaseConnection(con);
+        }
+        //La replica ha fallado, se busca en el primario
+        logger.info("Error de conexion buscar usuario en una replica, se repite en el primario");
+        con = pool.getConnection();
+        try {
+            return consultarUser(con, login);
+        } catch (SQLException ex) {
+            logger.info("Error de conexion buscar usuario SQL");
+            throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            pool.releaseConnection(con);
+        }
+    }
 
+    /**
+     * Este metodo comprueba en el primario si un login ya esta registrado
+     * @param login login del usuario
+     * @return si el login existe
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     */
+    private boolean existeEnPrimario(String login) throws ConnectException {
+        Connection con = pool.getConnection();
+        try {
+            return consultarUser(con, login) != null;
         } catch (SQLException ex) {
-            //Error con la base de datos
             logger.info("Error de conexion buscar usuario SQL");
             throw new ConnectException("error de conexion a base de datos");
+        } finally {
+            pool.releaseConnection(con);
+        }
+    }
+
+    /**
+     * Este metodo ejecuta la query buscar usuario con una conexion del pool
+     * @param con conexion con la base de datos
+     * @param login login del usuario
+     * @return objeto User con todos los datos, o nulo si no existe
+     * @throws SQLException Error con la base de datos
+     */
+    private User consultarUser(Connection con, String login) throws SQLException {
+        User encontrado = null;
+        long start = System.nanoTime();
+        //ejecutar query buscar usuario
+        try (PreparedStatement stmt = pool.prepareStatement(con, buscarUsuario)) {
+            stmt.setString(1, login);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    encontrado = leerUser(rs);
+                }
+            }
+        } finally {
+            Metrics.recordDb(Metrics.DbOperation.LOOKUP, start);
         }
         //devolver usuario
+        return encontrado;
+    }
+
+    /**
+     * Este metodo guarda de nuevo la contraseña de un usuario con el algoritmo
+     * y coste actuales. Si falla no pasa nada: el valor antiguo sigue
+     * valiendo y se intentara en el proximo inicio de sesion.
+     * @param login login del usuario
+     * @param password contraseña en claro, ya comprobada
+     */
+    protected void actualizarPassword(String login, String password) {
+        String hash;
+        try {
+            hash = passwords.hash(password);
+        } catch (TooManyUsersException ex) {
+            logger.fine("Contraseña sin actualizar, demasiadas contraseñas esperando");
+            return;
+        }
+        Connection con;
+        try {
+            con = pool.getConnection();
+        } catch (ConnectException ex) {
+            logger.info("Error de conexion al actualizar la contraseña");
+            return;
+        }
+        long start = System.nanoTime();
+        try (PreparedStatement stmt = pool.prepareStatement(con, actualizarPassword)) {
+            stmt.setString(1, hash);
+            stmt.setString(2, login);
+            stmt.executeUpdate();
+            pool.markWritten(login);
+        } catch (SQLException ex) {
+            logger.info("Error de conexion SQL al actualizar la contraseña");
+        } finally {
+            Metrics.recordDb(Metrics.DbOperation.REHASH, start);
+            pool.releaseConnection(con);
+        }
+    }
+
+    /**
+     * Este metodo crea un usuario con los datos de la fila actual
+     * @param rs resultado de la query buscar usuario
+     * @return objeto User con los datos de la fila
+     * @throws SQLException Error al leer la fila
+     */
+    private User leerUser(ResultSet rs) throws SQLException {
+        //asignar valores al objeto usuario
+        User user = new User();
+        user.setId(rs.getInt("id"));
+        user.setLogin(rs.getString("login"));
+        user.setEmail(rs.getString("email"));
+        user.setPassword(rs.getString("password"));
+        user.setFullName(rs.getString("fullName"));
+        user.setPrivilege(UserPrivilege.USER);
+        user.setStatus(UserStatus.ENABLED);
         return user;
     }
+
+    /**
+     * Este metodo guarda el inicio de sesion en el registro de los 10 ultimos
+     * @param con conexion con la base de datos
+     * @param login login del usuario
+     * @throws SQLException Error con la base de datos
+     */
+    private void registrarSignIn(Connection con, String login) throws SQLException {
+        long start = System.nanoTime();
+        try (CallableStatement stmt = pool.prepareCall(con, procedimientoSignIn)) {
+            stmt.setString(1, login);
+            stmt.executeUpdate();
+        } finally {
+            Metrics.recordDb(Metrics.DbOperation.AUDIT, start);
+        }
+    }
 }
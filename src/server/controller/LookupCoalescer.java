@@ -0,0 +1,112 @@
+package server.controller;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import lib.dataModel.User;
+import lib.exceptions.ConnectException;
+
+/**
+ * Esta clase pretende juntar las busquedas de un mismo login que llegan a la
+ * vez. La primera hace la consulta a la base de datos y las demas esperan a
+ * que termine y se quedan con su resultado, asi que en una avalancha de
+ * reintentos solo se usa una conexion del pool por login. No se guarda nada
+ * despues de la consulta: la siguiente busqueda vuelve a la base de datos,
+ * por lo que el resultado nunca es mas antiguo que una consulta en curso.
+ *
+ * @author Steven Arce
+ */
+public class LookupCoalescer {
+
+    private final ConcurrentHashMap<String, CompletableFuture<User>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Consulta a la base de datos de un login.
+     */
+    public interface Loader {
+
+        /**
+         * @return el usuario encontrado, o null si no existe.
+         * @throws ConnectException Hay un error de conexion con la base de
+         * datos
+         */
+        User load() throws ConnectException;
+    }
+
+    /**
+     * Este metodo pretende buscar un login, uniendose a la consulta que haya
+     * en curso para ese mismo login o haciendola si no hay ninguna.
+     *
+     * @param login login buscado
+     * @param loader consulta a la base de datos
+     * @return el usuario encontrado, o null si no existe. Los que se unen a
+     * una consulta reciben el mismo objeto, que no se debe modificar.
+     * @throws ConnectException Si la consulta falla; se lanza a todos los que
+     * la esperaban.
+     */
+    public User find(String login, Loader loader) throws ConnectException {
+        CompletableFuture<User> mine = new CompletableFuture<>();
+        CompletableFuture<User> running = inFlight.putIfAbsent(login, mine);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+        queries.increment();
+        try {
+            User user = loader.load();
+            mine.complete(user);
+            return user;
+        } catch (ConnectException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(login, mine);
+        }
+    }
+
+    private static User await(CompletableFuture<User> running) throws ConnectException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return running.get();
+                } catch (InterruptedException ex) {
+                    //La consulta esta limitada por el tiempo de espera del pool
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof ConnectException) {
+                        throw (ConnectException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new ConnectException("error de conexion a base de datos");
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return numero de consultas hechas a la base de datos.
+     */
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    /**
+     * @return numero de busquedas que se han unido a una consulta en curso en
+     * vez de hacer la suya.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+}
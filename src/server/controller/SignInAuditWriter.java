@@ -0,0 +1,259 @@
+package server.controller;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import lib.exceptions.ConnectException;
+import server.metrics.Metrics;
+import server.pool.Pool;
+
+/**
+ * Esta clase pretende guardar los inicios de sesion en el registro de los 10
+ * ultimos sin que el cliente tenga que esperar. Los logins se encolan y un hilo
+ * aparte los manda a la base de datos por lotes, cuando hay batchSize logins o
+ * cuando pasan flushInterval milisegundos. Si la cola esta llena, se espera un
+ * poco y, si sigue llena, el login se guarda en el momento, asi la cola nunca
+ * crece sin limite.
+ * <p>
+ * Si un lote falla se vuelve a intentar hasta MAX_ATTEMPTS veces, esperando
+ * cada vez un poco mas, para aguantar un corte corto de la base de datos. Si
+ * sigue fallando el lote se descarta y se cuenta en {@link #getFailedCount()}:
+ * este registro es informativo y no debe frenar los inicios de sesion ni
+ * llenar la memoria mientras la base de datos esta caida. El hilo es daemon;
+ * lo que quede en la cola al cerrar lo guarda {@link #shutdown(long)}, que se
+ * llama desde el cierre del servidor.
+ *
+ * @author Steven Arce
+ */
+public class SignInAuditWriter {
+
+    private final static Logger logger = Logger.getLogger("server.controller.Audit");
+    //Intentos de guardar un lote antes de descartarlo
+    private static final int MAX_ATTEMPTS = 3;
+    private final Pool pool;
+    private final BlockingQueue<String> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    private final long offerTimeout;
+    private final Thread flusher;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder synchronous = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * Constructor del escritor, arranca el hilo que vacia la cola.
+     *
+     * @param pool pool de conexiones
+     * @param queueSize numero maximo de logins en la cola
+     * @param batchSize numero maximo de logins por lote
+     * @param flushInterval milisegundos maximos que espera un login en la cola
+     * @param offerTimeout milisegundos que se espera si la cola esta llena
+     */
+    public SignInAuditWriter(Pool pool, int queueSize, int batchSize, long flushInterval, long offerTimeout) {
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.offerTimeout = offerTimeout;
+        this.flusher = new Thread(this::run, "server-audit-writer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Este metodo pretende registrar un inicio de sesion.
+     *
+     * @param login login del usuario
+     * @throws ConnectException Si la cola esta llena y falla el guardado en el
+     * momento.
+     */
+    public void record(String login) throws ConnectException {
+        try {
+            if (running && queue.offer(login, offerTimeout, TimeUnit.MILLISECONDS)) {
+                queued.increment();
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        //Cola llena o cerrada: se guarda en el momento
+        synchronous.increment();
+        List<String> one = new ArrayList<>(1);
+        one.add(login);
+        try {
+            write(one);
+        } catch (SQLException ex) {
+            failed.increment();
+            logger.info("Error al guardar el inicio de sesion");
+            throw new ConnectException("error de conexion a base de datos");
+        }
+    }
+
+    /**
+     * Este metodo pretende parar el hilo y guardar todo lo que queda en la
+     * cola. Se llama al cerrar el servidor, antes de cerrar el pool.
+     *
+     * @param timeoutMillis milisegundos maximos que se espera al hilo
+     */
+    public void shutdown(long timeoutMillis) {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(timeoutMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+        logger.info("Registro de inicios de sesion vaciado");
+    }
+
+    /**
+     * @return numero de logins que esperan en la cola.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return numero de logins encolados.
+     */
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    /**
+     * @return numero de logins guardados en la base de datos.
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return numero de lotes mandados a la base de datos.
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * @return numero de logins guardados en el momento porque la cola estaba
+     * llena.
+     */
+    public long getSynchronousCount() {
+        return synchronous.sum();
+    }
+
+    /**
+     * @return numero de logins que no se han podido guardar.
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Bucle del hilo: espera el primer login y junta los que lleguen durante
+     * flushInterval o hasta llenar el lote.
+     */
+    private void run() {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                String first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long left = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || left <= 0) {
+                        break;
+                    }
+                    String next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                //Se esta cerrando: lo que quede se guarda en shutdown
+            }
+            writeWithRetries(batch);
+        }
+        writeQuietly(batch);
+    }
+
+    private void flushAll() {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            writeQuietly(batch);
+        }
+    }
+
+    /**
+     * Guarda un lote reintentando si falla, mientras no se este cerrando.
+     */
+    private void writeWithRetries(List<String> batch) {
+        for (int attempt = 1; attempt < MAX_ATTEMPTS && running && !batch.isEmpty(); attempt++) {
+            try {
+                write(batch);
+                batch.clear();
+                return;
+            } catch (ConnectException | SQLException ex) {
+                logger.info("Error al guardar un lote de " + batch.size() + " inicios de sesion, se reintenta");
+            }
+            try {
+                Thread.sleep(flushInterval * attempt);
+            } catch (InterruptedException ex) {
+                //Se esta cerrando: ultimo intento
+                break;
+            }
+        }
+        writeQuietly(batch);
+    }
+
+    private void writeQuietly(List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            write(batch);
+        } catch (ConnectException | SQLException ex) {
+            failed.add(batch.size());
+            logger.info("Error al guardar un lote de " + batch.size() + " inicios de sesion");
+        }
+        batch.clear();
+    }
+
+    /**
+     * Guarda los logins en un solo lote JDBC.
+     */
+    private void write(List<String> logins) throws ConnectException, SQLException {
+        Connection con = pool.getConnection();
+        long start = System.nanoTime();
+        try (CallableStatement stmt = pool.prepareCall(con, DAOableImplementation.procedimientoSignIn)) {
+            for (String login : logins) {
+                stmt.setString(1, login);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            written.add(logins.size());
+            batches.increment();
+        } finally {
+            Metrics.recordDb(Metrics.DbOperation.AUDIT_BATCH, start);
+            pool.releaseConnection(con);
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+package server.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import lib.dataModel.User;
+
+/**
+ * Esta clase pretende guardar en memoria los usuarios buscados por login, para
+ * no ir a la base de datos en cada inicio de sesion. Tambien se guarda que un
+ * login no existe, durante menos tiempo, para que los intentos con usuarios
+ * inventados no lleguen a la base de datos. Se guardan como mucho maxSize
+ * logins y se descarta el que lleve mas tiempo sin usarse.
+ * <p>
+ * Cada login tiene una generacion, que sube al olvidarlo. Quien consulta la
+ * base de datos lee la generacion antes y la pasa al guardar el resultado; si
+ * ha cambiado, el login se ha olvidado durante la consulta y el resultado no
+ * se guarda. Para no guardar una generacion por login se reparten en
+ * GENERATIONS contadores por el hash del login, asi que olvidar un login
+ * tambien descarta a veces el resultado de otro, que solo cuesta repetir su
+ * consulta la proxima vez.
+ *
+ * @author Steven Arce
+ */
+public class UserCache {
+
+    private static final int GENERATIONS = 1024;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LinkedHashMap<String, CachedUser> users;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Resultado de buscar un login en la cache.
+     */
+    public static final class Lookup {
+
+        private final boolean found;
+        private final User user;
+
+        private Lookup(boolean found, User user) {
+            this.found = found;
+            this.user = user;
+        }
+
+        /**
+         * @return true si el login estaba en la cache, aunque sea como
+         * inexistente.
+         */
+        public boolean isFound() {
+            return found;
+        }
+
+        /**
+         * @return el usuario guardado, o null si el login no existe.
+         */
+        public User getUser() {
+            return user;
+        }
+    }
+
+    private static final Lookup MISS = new Lookup(false, null);
+
+    /**
+     * Constructor de la cache.
+     *
+     * @param maxSize numero maximo de logins guardados
+     * @param ttlMillis milisegundos que se guarda un usuario encontrado
+     * @param negativeTtlMillis milisegundos que se guarda un login que no
+     * existe
+     */
+    public UserCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.users = new LinkedHashMap<String, CachedUser>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+                if (size() > UserCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Este metodo pretende buscar un login en la cache.
+     *
+     * @param login login del usuario
+     * @return el resultado; si no esta o ha caducado, isFound() es false.
+     */
+    public Lookup get(String login) {
+        CachedUser cached;
+        synchronized (users) {
+            cached = users.get(login);
+            if (cached != null && System.nanoTime() - cached.expiresAt > 0) {
+                users.remove(login);
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            misses.increment();
+            return MISS;
+        }
+        if (cached.user == null) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return new Lookup(true, cached.user);
+    }
+
+    /**
+     * Este metodo pretende leer la generacion de un login antes de buscarlo en
+     * la base de datos.
+     *
+     * @param login login que se va a buscar
+     * @return la generacion, para pasarla a {@link #put(String, User, long)}.
+     */
+    public long generation(String login) {
+        return generations.get(slot(login));
+    }
+
+    /**
+     * Este metodo pretende guardar el resultado de buscar un login en la base
+     * de datos, si el login no se ha olvidado desde que se leyo su
+     * generacion.
+     *
+     * @param login login buscado
+     * @param user usuario encontrado, o null si no existe
+     * @param generation generacion leida antes de la consulta
+     */
+    public void put(String login, User user, long generation) {
+        long ttl = user == null ? negativeTtlNanos : ttlNanos;
+        if (ttl <= 0) {
+            return;
+        }
+        CachedUser cached = new CachedUser(user, System.nanoTime() + ttl);
+        synchronized (users) {
+            if (generations.get(slot(login)) != generation) {
+                //Se ha olvidado durante la consulta, el resultado puede ser de antes
+                return;
+            }
+            users.put(login, cached);
+        }
+    }
+
+    /**
+     * Este metodo pretende olvidar un login, por ejemplo cuando se acaba de
+     * registrar o ha cambiado. Las consultas de ese login que esten en curso
+     * ya no guardaran su resultado.
+     *
+     * @param login login a olvidar
+     */
+    public void invalidate(String login) {
+        synchronized (users) {
+            generations.incrementAndGet(slot(login));
+            users.remove(login);
+        }
+    }
+
+    private static int slot(String login) {
+        return (login.hashCode() & 0x7fffffff) % GENERATIONS;
+    }
+
+    /**
+     * @return numero de logins guardados.
+     */
+    public int size() {
+        synchronized (users) {
+            return users.size();
+        }
+    }
+
+    /**
+     * @return numero de busquedas que han encontrado un usuario.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return numero de busquedas de logins guardados como inexistentes.
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * @return numero de busquedas que han tenido que ir a la base de datos.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return numero de logins descartados por falta de sitio.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return proporcion de busquedas resueltas sin ir a la base de datos.
+     */
+    public double getHitRate() {
+        long found = hits.sum() + negativeHits.sum();
+        long total = found + misses.sum();
+        return total == 0 ? 0 : (double) found / total;
+    }
+
+    /**
+     * Usuario guardado y cuando caduca.
+     */
+    private static final class CachedUser {
+
+        private final User user;
+        private final long expiresAt;
+
+        CachedUser(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
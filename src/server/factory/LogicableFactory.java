@@ -1,14 +1,41 @@
 package server.factory;
 
+import java.util.ResourceBundle;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import lib.exceptions.ConnectException;
 import lib.interfaces.Logicable;
+import server.Config;
+import server.controller.CachedDAOableImplementation;
 import server.controller.DAOableImplementation;
+import server.controller.LookupCoalescer;
+import server.controller.SignInAuditWriter;
+import server.controller.UserCache;
+import server.pool.Pool;
+import server.security.PasswordHasher;
+import server.security.PasswordVerifier;
+import server.security.Pbkdf2PasswordHasher;
+import server.security.PlainPasswordHasher;
 
 /**
- * Esta clase es la factoria que crea un DAO
+ * Esta clase es la factoria que crea un DAO. Segun el archivo FactoryConfig
+ * el DAO lleva delante una cache de usuarios o va siempre a la base de datos,
+ * y guarda los inicios de sesion en el momento o en segundo plano.
  * @author Unai Urtiaga
  */
 public class LogicableFactory {
     
+    private static final Logger logger = Logger.getLogger("server.factory.LogicableFactory");
+    //Espera de una contraseña en la cola si las peticiones no tienen plazo
+    private static final long PASSWORDDEADLINE = 10000;
+    //El DAO no guarda estado, asi que todos los hilos comparten la misma instancia
+    private static volatile Logicable dao;
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static volatile UserCache userCache;
+    private static volatile SignInAuditWriter auditWriter;
+    private static volatile LookupCoalescer lookupCoalescer;
+    private static volatile PasswordVerifier passwordVerifier;
+    
     /**
      * Metodo de la factoria de la parte del servidor para implementar la clase 
      * DAOableImplementation
@@ -18,9 +45,131 @@ public class LogicableFactory {
     
     public Logicable getDao(){
         
-        Logicable dao = new DAOableImplementation();
+        if (dao == null) {
+            lock.lock();
+            try {
+                if (dao == null) {
+                    dao = crearDao();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
         
         return dao;
     }
     
+    /**
+     * Metodo que devuelve la cache de usuarios del DAO
+     * @return la cache de usuarios, o null si esta desactivada
+     */
+    public static UserCache getUserCache() {
+        return userCache;
+    }
+    
+    /**
+     * Metodo que devuelve el escritor en segundo plano del registro de
+     * inicios de sesion
+     * @return el escritor, o null si esta desactivado
+     */
+    public static SignInAuditWriter getAuditWriter() {
+        return auditWriter;
+    }
+    
+    /**
+     * Metodo que devuelve las busquedas en curso compartidas del DAO
+     * @return las busquedas compartidas, o null si estan desactivadas
+     */
+    public static LookupCoalescer getLookupCoalescer() {
+        return lookupCoalescer;
+    }
+    
+    /**
+     * Metodo que devuelve el verificador de contraseñas del DAO
+     * @return el verificador, o null si todavia no se ha creado el DAO
+     */
+    public static PasswordVerifier getPasswordVerifier() {
+        return passwordVerifier;
+    }
+    
+    /**
+     * Metodo que crea el DAO y lo calienta antes de aceptar clientes
+     * @throws ConnectException Hay un error de conexion con la base de datos
+     */
+    public static void warmUp() throws ConnectException {
+        Logicable logicable = new LogicableFactory().getDao();
+        if (logicable instanceof DAOableImplementation) {
+            ((DAOableImplementation) logicable).warmUp();
+        }
+    }
+    
+    /**
+     * Metodo que guarda los inicios de sesion pendientes antes de cerrar el
+     * servidor. Hay que llamarlo antes de cerrar el pool.
+     */
+    public static void shutDownAudit() {
+        SignInAuditWriter writer = auditWriter;
+        if (writer != null) {
+            writer.shutdown(5000);
+        }
+    }
+    
+    /**
+     * Metodo que crea el calculo de contraseñas segun el archivo de
+     * configuracion. Con PLAIN se guardan en claro, como al principio, y se
+     * comprueban en el propio hilo; con PBKDF2 se usa un pool de hilos aparte,
+     * y otro de menos prioridad para el registro masivo. Con PASSWORDQUEUESIZE
+     * a 0 la cola es de las contraseñas que da tiempo a calcular dentro de
+     * REQUESTDEADLINE, midiendo el coste configurado al arrancar.
+     * @param configFile archivo de configuracion de la factoria
+     * @return el verificador de contraseñas
+     */
+    private static PasswordVerifier crearPasswordVerifier(ResourceBundle configFile) {
+        String hasher = configFile.getString("PASSWORDHASHER").trim().toUpperCase();
+        if ("PLAIN".equals(hasher)) {
+            return new PasswordVerifier(new PlainPasswordHasher());
+        }
+        if (!"PBKDF2".equals(hasher)) {
+            throw new IllegalArgumentException("PASSWORDHASHER desconocido: " + hasher);
+        }
+        PasswordHasher pbkdf2 = new Pbkdf2PasswordHasher(Integer.valueOf(configFile.getString("PASSWORDCOST")));
+        int threads = Integer.valueOf(configFile.getString("PASSWORDTHREADS"));
+        int queueSize = Integer.valueOf(configFile.getString("PASSWORDQUEUESIZE"));
+        if (queueSize <= 0) {
+            //Lo que se calcula dentro de REQUESTDEADLINE con el coste configurado
+            long deadline = Long.valueOf(Config.load("server.serverSocket.ServerProperties").getString("REQUESTDEADLINE"));
+            queueSize = PasswordVerifier.queueSizeFor(pbkdf2, threads, deadline > 0 ? deadline : PASSWORDDEADLINE);
+            logger.info("Cola de contraseñas de " + queueSize);
+        }
+        return new PasswordVerifier(pbkdf2, threads, queueSize,
+                Integer.valueOf(configFile.getString("PASSWORDBULKTHREADS")),
+                Integer.valueOf(configFile.getString("PASSWORDBULKQUEUESIZE")));
+    }
+    
+    /**
+     * Metodo que crea el DAO segun el archivo de configuracion de la factoria
+     * @return el DAO configurado
+     */
+    private static Logicable crearDao() {
+        ResourceBundle configFile = Config.load("server.factory.FactoryConfig");
+        if (Boolean.parseBoolean(configFile.getString("AUDITWRITEBEHIND").trim())) {
+            auditWriter = new SignInAuditWriter(Pool.getInstance(),
+                    Integer.valueOf(configFile.getString("AUDITQUEUESIZE")),
+                    Integer.valueOf(configFile.getString("AUDITBATCHSIZE")),
+                    Long.valueOf(configFile.getString("AUDITFLUSHINTERVAL")),
+                    Long.valueOf(configFile.getString("AUDITOFFERTIMEOUT")));
+        }
+        if (Boolean.parseBoolean(configFile.getString("COALESCELOOKUPS").trim())) {
+            lookupCoalescer = new LookupCoalescer();
+        }
+        passwordVerifier = crearPasswordVerifier(configFile);
+        if (!Boolean.parseBoolean(configFile.getString("USERCACHE").trim())) {
+            return new DAOableImplementation(auditWriter, lookupCoalescer, passwordVerifier);
+        }
+        userCache = new UserCache(Integer.valueOf(configFile.getString("USERCACHEMAXSIZE")),
+                Long.valueOf(configFile.getString("USERCACHETTL")),
+                Long.valueOf(configFile.getString("USERCACHENEGATIVETTL")));
+        return new CachedDAOableImplementation(userCache, auditWriter, lookupCoalescer, passwordVerifier);
+    }
+    
 }
\ No newline at end of file
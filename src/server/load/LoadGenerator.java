@@ -0,0 +1,348 @@
+package server.load;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import lib.message.Message;
+import lib.message.Msg;
+import server.Config;
+import server.Server;
+import server.metrics.LatencyHistogram;
+
+/**
+ * Esta clase pretende reproducir en local una avalancha de inicios de sesion.
+ * Abre CLIENTS clientes a la vez, cada uno con su socket, que mandan mensajes
+ * SIGNIN y SIGNUP como el cliente de verdad (serializacion de Java). Los
+ * clientes arrancan repartidos a lo largo de RAMPUP milisegundos y esperan
+ * THINKTIME milisegundos entre mensaje y mensaje. Al terminar se imprime el
+ * throughput, los percentiles de latencia y cuantos clientes se han rechazado
+ * con TOOMANYUSERSEXCEPTION.
+ * <p>
+ * La configuracion esta en LoadConfig.properties y cada valor se puede cambiar
+ * al arrancar, por ejemplo -Dserver.load.LoadConfig.CLIENTS=500. Con
+ * EMBEDDEDSERVER=true el servidor se arranca en la misma JVM contra la base de
+ * datos embebida, asi que no hace falta ningun servicio externo.
+ *
+ * @author Steven Arce
+ */
+public class LoadGenerator {
+
+    private final static Logger logger = Logger.getLogger("server.load.LoadGenerator");
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final long rampUpMillis;
+    private final long durationMillis;
+    private final long thinkTimeMillis;
+    private final int signUpPercent;
+    private final int users;
+    private final boolean keepAlive;
+    private final int timeout;
+    private final String runId = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private final AtomicLong nextSignUp = new AtomicLong();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final Map<Msg, LatencyHistogram> latencies = new EnumMap<>(Msg.class);
+    private final Map<Msg, LongAdder> replies = new EnumMap<>(Msg.class);
+    private final LongAdder networkErrors = new LongAdder();
+    private volatile boolean recording;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor del generador de carga.
+     *
+     * @param configFile configuracion de la prueba
+     */
+    public LoadGenerator(ResourceBundle configFile) {
+        this.host = configFile.getString("HOST");
+        this.port = Integer.valueOf(configFile.getString("PORT"));
+        this.clients = Integer.valueOf(configFile.getString("CLIENTS"));
+        this.rampUpMillis = Long.valueOf(configFile.getString("RAMPUP"));
+        this.durationMillis = Long.valueOf(configFile.getString("DURATION"));
+        this.thinkTimeMillis = Long.valueOf(configFile.getString("THINKTIME"));
+        this.signUpPercent = Integer.valueOf(configFile.getString("SIGNUPPERCENT"));
+        this.users = Integer.valueOf(configFile.getString("USERS"));
+        this.keepAlive = Boolean.parseBoolean(configFile.getString("KEEPALIVE").trim());
+        this.timeout = Integer.valueOf(configFile.getString("TIMEOUT"));
+        latencies.put(Msg.SIGNIN, new LatencyHistogram());
+        latencies.put(Msg.SIGNUP, new LatencyHistogram());
+        for (Msg msg : Msg.values()) {
+            replies.put(msg, new LongAdder());
+        }
+    }
+
+    /**
+     * Este metodo pretende ejecutar la prueba de carga.
+     *
+     * @param args no se usa, la configuracion va en LoadConfig.properties
+     * @throws InterruptedException si se interrumpe la espera de los clientes
+     */
+    public static void main(String[] args) throws InterruptedException {
+        ResourceBundle configFile = Config.load("server.load.LoadConfig");
+        if (Boolean.parseBoolean(configFile.getString("EMBEDDEDSERVER").trim())) {
+            startEmbeddedServer(configFile.getString("PORT"));
+        }
+        LoadGenerator generator = new LoadGenerator(configFile);
+        generator.prepareUsers();
+        generator.run();
+        generator.printReport(System.out);
+        System.exit(0);
+    }
+
+    /**
+     * Este metodo pretende arrancar el servidor en esta misma JVM, contra la
+     * base de datos embebida, y esperar a que acepte conexiones.
+     *
+     * @param port puerto del servidor
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    private static void startEmbeddedServer(String port) throws InterruptedException {
+        System.setProperty("server.pool.BDconfig.embedded", "true");
+        System.setProperty("server.serverSocket.ServerProperties.PORT", port);
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[0]);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "load-embedded-server");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", Integer.valueOf(port)), 1000);
+                return;
+            } catch (IOException ex) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("El servidor embebido no ha arrancado en el puerto " + port);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Este metodo pretende registrar los usuarios que luego inician sesion.
+     * Si ya existen de una prueba anterior se aprovechan.
+     */
+    void prepareUsers() {
+        Client client = new Client();
+        int prepared = 0;
+        for (int i = 0; i < users; i++) {
+            try {
+                Msg reply = client.send(message(Msg.SIGNUP, "load" + i));
+                if (reply == Msg.OK || reply == Msg.USEREXISTEXCEPTION) {
+                    prepared++;
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                client.close();
+            }
+        }
+        client.close();
+        System.out.println("Usuarios preparados: " + prepared + "/" + users);
+    }
+
+    /**
+     * Este metodo pretende lanzar los clientes, medir durante DURATION
+     * milisegundos despues de la subida y esperar a que terminen.
+     *
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    void run() throws InterruptedException {
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            long delay = clients > 1 ? rampUpMillis * i / (clients - 1) : 0;
+            threads[i] = new Thread(() -> runClient(start + TimeUnit.MILLISECONDS.toNanos(delay)), "load-client-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        TimeUnit.MILLISECONDS.sleep(rampUpMillis);
+        recording = true;
+        TimeUnit.MILLISECONDS.sleep(durationMillis);
+        recording = false;
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.join(timeout + 1000L);
+        }
+    }
+
+    /**
+     * Este metodo pretende ejecutar uno de los clientes: espera su turno de
+     * arranque y manda mensajes hasta que termina la prueba.
+     *
+     * @param startAt instante de System.nanoTime() en el que arranca
+     */
+    private void runClient(long startAt) {
+        Client client = new Client();
+        try {
+            sleepNanos(startAt - System.nanoTime());
+            while (!stopped) {
+                boolean signUp = ThreadLocalRandom.current().nextInt(100) < signUpPercent;
+                Msg type = signUp ? Msg.SIGNUP : Msg.SIGNIN;
+                String login = signUp
+                        ? "l" + runId + "x" + nextSignUp.incrementAndGet()
+                        : "load" + ThreadLocalRandom.current().nextInt(Math.max(1, users));
+                long begin = System.nanoTime();
+                try {
+                    Msg reply = client.send(message(type, login));
+                    if (recording) {
+                        long elapsed = System.nanoTime() - begin;
+                        total.record(elapsed);
+                        latencies.get(type).record(elapsed);
+                        replies.get(reply).increment();
+                    }
+                } catch (IOException | ClassNotFoundException ex) {
+                    client.close();
+                    if (recording) {
+                        networkErrors.increment();
+                    }
+                }
+                sleepNanos(TimeUnit.MILLISECONDS.toNanos(thinkTimeMillis));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Este metodo pretende imprimir el resultado de la prueba.
+     *
+     * @param out donde se imprime
+     */
+    void printReport(PrintStream out) {
+        long count = total.getCount();
+        long rejected = replies.get(Msg.TOOMANYUSERSEXCEPTION).sum();
+        out.printf("Clientes: %d  Duracion: %.1f s  Peticiones: %d  Throughput: %.1f pet/s%n",
+                clients, durationMillis / 1000.0, count, count * 1000.0 / Math.max(1, durationMillis));
+        out.printf("%-8s %10s %10s %10s %10s %10s%n", "Latencia", "count", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        printLatency(out, "SIGNIN", latencies.get(Msg.SIGNIN));
+        printLatency(out, "SIGNUP", latencies.get(Msg.SIGNUP));
+        printLatency(out, "TOTAL", total);
+        StringBuilder summary = new StringBuilder("Respuestas:");
+        for (Map.Entry<Msg, LongAdder> entry : replies.entrySet()) {
+            if (entry.getValue().sum() > 0) {
+                summary.append(' ').append(entry.getKey()).append('=').append(entry.getValue().sum());
+            }
+        }
+        out.println(summary);
+        out.printf("Rechazos TOOMANYUSERSEXCEPTION: %d (%.2f %%)%n", rejected, rejected * 100.0 / Math.max(1, count));
+        out.println("Errores de red: " + networkErrors.sum());
+    }
+
+    private static void printLatency(PrintStream out, String name, LatencyHistogram histogram) {
+        out.printf("%-8s %10d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getCount(),
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static void sleepNanos(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    private static Message message(Msg type, String login) {
+        User user = new User();
+        user.setLogin(login);
+        user.setEmail(login + "@susi.com");
+        user.setFullName("Load " + login);
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setPassword("abcd1234");
+        Message message = new Message();
+        message.setMsg(type);
+        message.setUser(user);
+        return message;
+    }
+
+    /**
+     * Conexion de un cliente. Con KEEPALIVE=true reutiliza el socket mientras
+     * el servidor lo mantenga abierto; si no, abre uno por mensaje.
+     */
+    private class Client {
+
+        private Socket socket;
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+
+        /**
+         * Este metodo pretende mandar un mensaje y leer la respuesta. Si el
+         * servidor ha cerrado una conexion reutilizada (por tiempo de espera o
+         * por el maximo de mensajes por conexion) se reintenta una vez con una
+         * conexion nueva.
+         *
+         * @param message mensaje a mandar
+         * @return tipo de la respuesta
+         * @throws IOException si falla la conexion
+         * @throws ClassNotFoundException si la respuesta no es un Message
+         */
+        Msg send(Message message) throws IOException, ClassNotFoundException {
+            boolean reused = socket != null;
+            try {
+                return exchange(message);
+            } catch (IOException ex) {
+                close();
+                if (!reused) {
+                    throw ex;
+                }
+                return exchange(message);
+            }
+        }
+
+        private Msg exchange(Message message) throws IOException, ClassNotFoundException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                in = new ObjectInputStream(socket.getInputStream());
+            }
+            out.writeObject(message);
+            out.flush();
+            out.reset();
+            Msg reply = ((Message) in.readObject()).getMsg();
+            if (!keepAlive || reply == Msg.TOOMANYUSERSEXCEPTION) {
+                //Al rechazar, el servidor cierra la conexion
+                close();
+            }
+            return reply;
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Error al cerrar el socket", ex);
+                }
+                socket = null;
+                out = null;
+                in = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Este paquete contiene el generador de carga para probar el servidor
+ */
+package server.load;
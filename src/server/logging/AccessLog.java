@@ -0,0 +1,65 @@
+package server.logging;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lib.message.Msg;
+import server.metrics.Metrics;
+
+/**
+ * Esta clase pretende dejar constancia de cada peticion atendida en una sola
+ * linea, con campos clave=valor faciles de buscar y de procesar:
+ * <pre>
+ * remote=127.0.0.1:51234 msg=SIGNIN outcome=OK latency_us=1830
+ * </pre>
+ * Ademas registra la latencia en Metrics. La linea solo se construye si el
+ * logger server.access esta activo.
+ *
+ * @author Steven Arce
+ */
+public class AccessLog {
+
+    private final static Logger logger = Logger.getLogger("server.access");
+
+    private AccessLog() {
+    }
+
+    /**
+     * Este metodo pretende activar o desactivar el registro de accesos.
+     *
+     * @param enabled true para escribir una linea por peticion
+     */
+    static void setEnabled(boolean enabled) {
+        logger.setLevel(enabled ? Level.INFO : Level.OFF);
+    }
+
+    /**
+     * Este metodo pretende registrar una peticion ya contestada.
+     *
+     * @param remote direccion del cliente
+     * @param type tipo de la peticion, o null si no se sabe
+     * @param outcome tipo de la respuesta, o null si no se sabe
+     * @param startNanos instante de System.nanoTime() desde el que se mide
+     */
+    public static void request(SocketAddress remote, Msg type, Msg outcome, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        Metrics.recordRequest(type, elapsed);
+        if (logger.isLoggable(Level.INFO)) {
+            StringBuilder line = new StringBuilder(96).append("remote=");
+            if (remote instanceof InetSocketAddress) {
+                InetSocketAddress address = (InetSocketAddress) remote;
+                line.append(address.getAddress() == null ? address.getHostString() : address.getAddress().getHostAddress())
+                        .append(':').append(address.getPort());
+            } else {
+                line.append(remote);
+            }
+            line.append(" msg=").append(type)
+                    .append(" outcome=").append(outcome)
+                    .append(" latency_us=").append(TimeUnit.NANOSECONDS.toMicros(elapsed));
+            logger.info(line.toString());
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package server.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Esta clase pretende escribir los logs en un hilo aparte, para que los hilos
+ * que atienden a los clientes no esperen a la consola ni compitan por su
+ * bloqueo. Los registros se guardan en una cola acotada; si esta llena, el
+ * registro se descarta y se cuenta, en vez de frenar al cliente.
+ * <p>
+ * Como el registro se escribe desde otro hilo, no se busca la clase que hizo
+ * el log (seria la del hilo equivocado y ademas es caro): en su lugar sale el
+ * nombre del logger.
+ *
+ * @author Steven Arce
+ */
+public class AsyncHandler extends Handler {
+
+    private static final int DRAIN_BATCH = 256;
+    private final Handler target;
+    private final BlockingQueue<LogRecord> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Constructor del handler asincrono.
+     *
+     * @param target handler que escribe de verdad los registros
+     * @param queueSize numero maximo de registros esperando a escribirse
+     */
+    public AsyncHandler(Handler target, int queueSize) {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        setLevel(target.getLevel());
+        this.writer = new Thread(this::drain, "server-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        //Evita que se busque la clase que hizo el log desde el otro hilo
+        record.setSourceClassName(null);
+        if (!queue.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    /**
+     * Este metodo pretende escribir lo que queda en la cola y cerrar el
+     * handler de destino.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writeAll();
+        target.close();
+    }
+
+    /**
+     * @return numero de registros descartados porque la cola estaba llena.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        List<LogRecord> batch = new ArrayList<>(DRAIN_BATCH);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            queue.drainTo(batch, DRAIN_BATCH - 1);
+            for (LogRecord record : batch) {
+                target.publish(record);
+            }
+            batch.clear();
+            target.flush();
+        }
+    }
+
+    private void writeAll() {
+        LogRecord record;
+        while ((record = queue.poll()) != null) {
+            target.publish(record);
+        }
+        target.flush();
+    }
+
+}
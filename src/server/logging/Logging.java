@@ -0,0 +1,60 @@
+package server.logging;
+
+import java.util.ResourceBundle;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende configurar los logs del servidor a partir del archivo
+ * de configuracion: el nivel de los loggers del servidor, si los registros se
+ * escriben en un hilo aparte (AsyncHandler) y si se escribe el registro de
+ * accesos (AccessLog).
+ *
+ * @author Steven Arce
+ */
+public class Logging {
+
+    private static volatile AsyncHandler asyncHandler;
+
+    private Logging() {
+    }
+
+    /**
+     * Este metodo pretende aplicar la configuracion de los logs. Los handlers
+     * de la raiz (normalmente la consola) se sustituyen por un AsyncHandler
+     * que escribe en ellos.
+     *
+     * @param configFile archivo de configuracion del servidor
+     */
+    public static void configure(ResourceBundle configFile) {
+        Level level = Level.parse(configFile.getString("LOGLEVEL").trim().toUpperCase());
+        Logger.getLogger("server").setLevel(level);
+        AccessLog.setEnabled(Boolean.parseBoolean(configFile.getString("ACCESSLOG").trim()));
+        Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            if (handler.getLevel().intValue() > level.intValue()) {
+                handler.setLevel(level);
+            }
+        }
+        if (Boolean.parseBoolean(configFile.getString("LOGASYNC").trim()) && asyncHandler == null) {
+            int queueSize = Integer.valueOf(configFile.getString("LOGQUEUESIZE"));
+            for (Handler handler : root.getHandlers()) {
+                root.removeHandler(handler);
+                AsyncHandler async = new AsyncHandler(handler, queueSize);
+                root.addHandler(async);
+                asyncHandler = async;
+            }
+        }
+    }
+
+    /**
+     * @return numero de registros descartados porque la cola del
+     * AsyncHandler estaba llena.
+     */
+    public static long getDroppedCount() {
+        AsyncHandler async = asyncHandler;
+        return async == null ? 0 : async.getDroppedCount();
+    }
+
+}
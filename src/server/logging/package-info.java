@@ -0,0 +1,4 @@
+/**
+ * Este paquete contiene la configuracion de los logs del servidor
+ */
+package server.logging;
@@ -0,0 +1,128 @@
+package server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Esta clase pretende guardar la distribucion de las latencias, en
+ * nanosegundos, sin crear objetos al registrar cada valor. Los valores se
+ * reparten en cubos logaritmicos: cada potencia de dos se divide en 32 cubos,
+ * asi que un percentil se calcula con un error de como mucho un 3%. Varios
+ * hilos pueden registrar valores a la vez.
+ *
+ * @author Steven Arce
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Este metodo pretende registrar una latencia.
+     *
+     * @param nanos latencia en nanosegundos; los valores negativos cuentan
+     * como cero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return numero de valores registrados.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return suma de los valores registrados, en nanosegundos.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return mayor valor registrado, en nanosegundos.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Este metodo pretende calcular un percentil de los valores registrados.
+     *
+     * @param percentile percentil entre 0 y 100, por ejemplo 99.9
+     * @return el valor mas alto del cubo donde cae el percentil, en
+     * nanosegundos, o 0 si no hay valores.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Este metodo pretende contar cuantos valores hay por debajo de un limite,
+     * como hacen los cubos de un histograma de Prometheus.
+     *
+     * @param nanos limite en nanosegundos
+     * @return numero de valores registrados menores o iguales que el limite,
+     * redondeando el limite al cubo que lo contiene.
+     */
+    public long getCountAtOrBelow(long nanos) {
+        int last = index(Math.max(0, nanos));
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+}
@@ -0,0 +1,234 @@
+package server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import lib.message.Msg;
+
+/**
+ * Esta clase pretende guardar las metricas del camino de cada peticion: la
+ * latencia desde que se acepta al cliente hasta que se le contesta, el tiempo
+ * en la base de datos, la espera por una conexion del pool, los clientes
+ * rechazados, las conexiones cortadas por tiempo y las respuestas de cada
+ * tipo. Los contadores y los histogramas
+ * se crean al arrancar, asi que registrar un valor no crea objetos. Las lee
+ * MetricsServer para publicarlas.
+ *
+ * @author Steven Arce
+ */
+public final class Metrics {
+
+    /**
+     * Operaciones con la base de datos que se miden por separado.
+     */
+    public enum DbOperation {
+        /**
+         * Busqueda del usuario por login.
+         */
+        LOOKUP,
+        /**
+         * Insert del usuario en signUp.
+         */
+        INSERT,
+        /**
+         * Llamada a last_ten_sign_in de un inicio de sesion.
+         */
+        AUDIT,
+        /**
+         * Actualizacion de la contraseña guardada con un algoritmo o coste
+         * antiguo.
+         */
+        REHASH,
+        /**
+         * Lote de llamadas a last_ten_sign_in del registro en segundo plano.
+         */
+        AUDIT_BATCH,
+        /**
+         * Busqueda de los logins que ya existen de un bloque del registro
+         * masivo.
+         */
+        BULK_LOOKUP,
+        /**
+         * Insert en lote de un bloque del registro masivo.
+         */
+        BULK_INSERT
+    }
+
+    /**
+     * Motivos por los que se rechaza a un cliente con TOOMANYUSERSEXCEPTION.
+     */
+    public enum Rejection {
+        /**
+         * Limite de peticiones por segundo de su direccion.
+         */
+        RATE_LIMIT,
+        /**
+         * Limite de conexiones a la vez.
+         */
+        CONNECTIONS,
+        /**
+         * Pool de hilos saturado.
+         */
+        WORKERS,
+        /**
+         * Registro masivo demasiado grande o de un cliente sin permiso.
+         */
+        BULK_SIGNUP
+    }
+
+    /**
+     * Motivos por los que el servidor corta una conexion que tarda demasiado.
+     */
+    public enum Timeout {
+        /**
+         * El cliente no termina de mandar la peticion a tiempo.
+         */
+        READ,
+        /**
+         * El cliente no recoge la respuesta a tiempo.
+         */
+        WRITE,
+        /**
+         * La peticion entera supera su plazo.
+         */
+        DEADLINE
+    }
+
+    private static final Msg[] MSGS = Msg.values();
+    private static final LatencyHistogram[] requests = new LatencyHistogram[MSGS.length];
+    private static final LongAdder[] replies = new LongAdder[MSGS.length];
+    private static final LatencyHistogram[] db = new LatencyHistogram[DbOperation.values().length];
+    private static final LongAdder[] rejections = new LongAdder[Rejection.values().length];
+    private static final LongAdder[] timeouts = new LongAdder[Timeout.values().length];
+    private static final LatencyHistogram poolWait = new LatencyHistogram();
+
+    static {
+        requests[Msg.SIGNIN.ordinal()] = new LatencyHistogram();
+        requests[Msg.SIGNUP.ordinal()] = new LatencyHistogram();
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new LongAdder();
+        }
+        for (int i = 0; i < db.length; i++) {
+            db[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Este metodo pretende registrar lo que ha tardado una peticion, desde que
+     * se acepto al cliente (o se leyo la peticion, si la conexion ya estaba
+     * abierta) hasta que se escribio la respuesta.
+     *
+     * @param type tipo de la peticion; las que no son SIGNIN ni SIGNUP no se
+     * miden
+     * @param nanos latencia en nanosegundos
+     */
+    public static void recordRequest(Msg type, long nanos) {
+        if (type != null && requests[type.ordinal()] != null) {
+            requests[type.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Este metodo pretende registrar lo que ha tardado una operacion con la
+     * base de datos.
+     *
+     * @param operation operacion
+     * @param startNanos instante de System.nanoTime() en el que empezo
+     */
+    public static void recordDb(DbOperation operation, long startNanos) {
+        db[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Este metodo pretende registrar lo que se ha esperado por una conexion
+     * del pool.
+     *
+     * @param nanos espera en nanosegundos
+     */
+    public static void recordPoolWait(long nanos) {
+        poolWait.record(nanos);
+    }
+
+    /**
+     * Este metodo pretende contar una respuesta mandada al cliente. Las que no
+     * son OK son los errores de cada tipo de excepcion.
+     *
+     * @param reply tipo de la respuesta
+     */
+    public static void countReply(Msg reply) {
+        replies[reply.ordinal()].increment();
+    }
+
+    /**
+     * Este metodo pretende contar un cliente rechazado.
+     *
+     * @param reason motivo del rechazo
+     */
+    public static void countRejection(Rejection reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    /**
+     * Este metodo pretende contar una conexion cortada por tiempo.
+     *
+     * @param reason plazo que se ha agotado
+     */
+    public static void countTimeout(Timeout reason) {
+        timeouts[reason.ordinal()].increment();
+    }
+
+    /**
+     * @param type tipo de peticion
+     * @return el histograma de latencia de ese tipo, o null si no se mide.
+     */
+    public static LatencyHistogram getRequestLatency(Msg type) {
+        return requests[type.ordinal()];
+    }
+
+    /**
+     * @param operation operacion con la base de datos
+     * @return el histograma de tiempo de esa operacion.
+     */
+    public static LatencyHistogram getDbLatency(DbOperation operation) {
+        return db[operation.ordinal()];
+    }
+
+    /**
+     * @return el histograma de espera por una conexion del pool.
+     */
+    public static LatencyHistogram getPoolWait() {
+        return poolWait;
+    }
+
+    /**
+     * @param reply tipo de respuesta
+     * @return numero de respuestas de ese tipo.
+     */
+    public static long getReplyCount(Msg reply) {
+        return replies[reply.ordinal()].sum();
+    }
+
+    /**
+     * @param reason motivo del rechazo
+     * @return numero de clientes rechazados por ese motivo.
+     */
+    public static long getRejectionCount(Rejection reason) {
+        return rejections[reason.ordinal()].sum();
+    }
+
+    /**
+     * @param reason plazo que se ha agotado
+     * @return numero de conexiones cortadas por ese motivo.
+     */
+    public static long getTimeoutCount(Timeout reason) {
+        return timeouts[reason.ordinal()].sum();
+    }
+
+}
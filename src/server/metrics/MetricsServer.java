@@ -0,0 +1,245 @@
+package server.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lib.message.Msg;
+import server.Lifecycle;
+import server.Server;
+import server.admission.AdmissionController;
+import server.admission.LeasedAdmissionController;
+import server.controller.LookupCoalescer;
+import server.controller.SignInAuditWriter;
+import server.controller.UserCache;
+import server.factory.LogicableFactory;
+import server.logging.Logging;
+import server.pool.Pool;
+import server.pool.ReadReplicas;
+import server.security.PasswordVerifier;
+import server.serverSocket.RateLimiter;
+import server.serverSocket.WorkerPool;
+
+/**
+ * Esta clase pretende publicar las metricas del servidor en un pequeño
+ * servidor HTTP local, en la ruta /metrics y con el formato de texto de
+ * Prometheus. Ademas de lo que guarda Metrics, publica los contadores del
+ * pool de conexiones, del pool de hilos, de la cache de usuarios y del
+ * registro de inicios de sesion. Las metricas solo se calculan cuando alguien
+ * las pide, asi que no cuestan nada al atender a los clientes.
+ * <p>
+ * En la ruta /ready contesta 200 si el servidor esta aceptando clientes y 503
+ * mientras arranca o se esta cerrando, para que un balanceador solo le mande
+ * clientes cuando esta listo. En la ruta /load contesta la carga del
+ * servidor, los clientes que atiende entre el maximo, para que el balanceador
+ * mande los nuevos a los servidores menos cargados.
+ *
+ * @author Steven Arce
+ */
+public class MetricsServer {
+
+    private final static Logger logger = Logger.getLogger("server.metrics");
+    private final HttpServer http;
+
+    private MetricsServer(HttpServer http) {
+        this.http = http;
+    }
+
+    /**
+     * Este metodo pretende arrancar el servidor de metricas segun el archivo
+     * de configuracion del servidor.
+     *
+     * @param configFile archivo de configuracion del servidor
+     * @return el servidor de metricas, o null si esta desactivado o no se ha
+     * podido abrir el puerto.
+     */
+    public static MetricsServer fromConfig(ResourceBundle configFile) {
+        if (!Boolean.parseBoolean(configFile.getString("METRICSENABLED").trim())) {
+            return null;
+        }
+        String host = configFile.getString("METRICSHOST").trim();
+        int port = Integer.valueOf(configFile.getString("METRICSPORT"));
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+            http.createContext("/metrics", MetricsServer::handle);
+            http.createContext("/ready", MetricsServer::handleReady);
+            http.createContext("/load", MetricsServer::handleLoad);
+            http.start();
+            logger.info("Metricas en http://" + host + ":" + port + "/metrics, /ready y /load");
+            return new MetricsServer(http);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "No se ha podido arrancar el servidor de metricas", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Este metodo pretende cerrar el servidor de metricas.
+     */
+    public void shutdown() {
+        http.stop(0);
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void handleReady(HttpExchange exchange) throws IOException {
+        Lifecycle.State state = Lifecycle.getState();
+        byte[] body = (state.name() + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(state == Lifecycle.State.READY ? 200 : 503, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void handleLoad(HttpExchange exchange) throws IOException {
+        AdmissionController admission = Server.getAdmissionController();
+        int inUse = admission == null ? 0 : admission.getInUse();
+        int max = admission == null ? 0 : admission.getMaxSlots();
+        String load = max > 0 ? String.format(Locale.ROOT, "%.3f", (double) inUse / max) : "1.000";
+        byte[] body = ("load " + load + "\nin_use " + inUse + "\nmax " + max + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Este metodo pretende escribir todas las metricas del servidor.
+     *
+     * @return las metricas en el formato de texto de Prometheus.
+     */
+    public static String render() {
+        PrometheusWriter w = new PrometheusWriter();
+        for (Lifecycle.State state : Lifecycle.State.values()) {
+            w.gauge("server_state", "Fase del servidor: 1 en la actual y 0 en las demas.",
+                    "state=\"" + state.name().toLowerCase(Locale.ROOT) + "\"", Lifecycle.getState() == state ? 1 : 0);
+        }
+        for (Msg type : new Msg[]{Msg.SIGNIN, Msg.SIGNUP}) {
+            w.histogram("server_request_duration_seconds",
+                    "Tiempo desde que se acepta al cliente hasta que se le contesta.",
+                    "type=\"" + type + "\"", Metrics.getRequestLatency(type));
+        }
+        for (Msg reply : Msg.values()) {
+            w.counter("server_replies_total", "Respuestas mandadas a los clientes, por tipo.",
+                    "msg=\"" + reply + "\"", Metrics.getReplyCount(reply));
+        }
+        for (Metrics.DbOperation operation : Metrics.DbOperation.values()) {
+            w.histogram("server_db_duration_seconds", "Tiempo en la base de datos, por operacion.",
+                    "operation=\"" + operation.name().toLowerCase(Locale.ROOT) + "\"",
+                    Metrics.getDbLatency(operation));
+        }
+        w.histogram("server_pool_wait_seconds", "Espera por una conexion del pool.", null, Metrics.getPoolWait());
+        for (Metrics.Rejection reason : Metrics.Rejection.values()) {
+            w.counter("server_connections_rejected_total", "Clientes rechazados con TOOMANYUSERSEXCEPTION.",
+                    "reason=\"" + reason.name().toLowerCase(Locale.ROOT) + "\"", Metrics.getRejectionCount(reason));
+        }
+        for (Metrics.Timeout reason : Metrics.Timeout.values()) {
+            w.counter("server_connections_timed_out_total", "Conexiones cortadas por tardar demasiado.",
+                    "reason=\"" + reason.name().toLowerCase(Locale.ROOT) + "\"", Metrics.getTimeoutCount(reason));
+        }
+        AdmissionController admission = Server.getAdmissionController();
+        if (admission != null) {
+            w.gauge("server_connections_active", "Clientes conectados.", null, admission.getInUse());
+            w.gauge("server_connections_max", "Maximo de clientes conectados a la vez.", null, admission.getMaxSlots());
+        }
+        if (admission instanceof LeasedAdmissionController) {
+            LeasedAdmissionController leased = (LeasedAdmissionController) admission;
+            w.gauge("server_admission_leased", "Huecos alquilados al coordinador del cluster.", null, leased.getHeld());
+            w.gauge("server_cluster_connections_active", "Clientes conectados en todo el cluster.",
+                    null, leased.getClusterInUse());
+            w.gauge("server_cluster_connections_max", "Maximo de clientes conectados a la vez en el cluster.",
+                    null, leased.getClusterLimit());
+            w.counter("server_admission_lease_failures_total", "Veces que el coordinador no ha contestado.",
+                    null, leased.getLeaseFailureCount());
+        }
+        RateLimiter rateLimiter = Server.getRateLimiter();
+        if (rateLimiter != null) {
+            w.counter("server_rate_limited_total", "Conexiones por encima del limite por direccion.",
+                    null, rateLimiter.getLimitedCount());
+        }
+        WorkerPool workers = Server.getWorkerPool();
+        if (workers != null) {
+            w.gauge("server_workers_active", "Tareas ejecutandose en el pool de hilos.", null, workers.getActiveCount());
+            w.gauge("server_workers_queued", "Tareas esperando en la cola del pool de hilos.", null, workers.getQueueSize());
+            w.counter("server_workers_completed_total", "Tareas terminadas.", null, workers.getCompletedCount());
+            w.counter("server_workers_rejected_total", "Tareas rechazadas por el pool de hilos.", null, workers.getRejectedCount());
+        }
+        Pool pool = Pool.getInstanceIfCreated();
+        if (pool != null) {
+            w.gauge("server_pool_active", "Conexiones a la base de datos prestadas.", null, pool.getActiveCount());
+            w.gauge("server_pool_idle", "Conexiones a la base de datos libres.", null, pool.getIdleCount());
+            w.gauge("server_pool_waiters", "Hilos esperando una conexion.", null, pool.getWaiterCount());
+            w.counter("server_pool_timeouts_total", "Esperas por una conexion que han superado borrowTimeout.",
+                    null, pool.getTimeoutCount());
+            w.counter("server_pool_created_total", "Conexiones abiertas.", null, pool.getCreatedCount());
+            w.counter("server_pool_evicted_total", "Conexiones descartadas.", null, pool.getEvictedCount());
+            w.counter("server_statement_cache_hits_total", "Statements reutilizados.", null, pool.getStatementCacheHits());
+            w.counter("server_statement_cache_misses_total", "Statements preparados de nuevo.", null, pool.getStatementCacheMisses());
+            ReadReplicas replicas = pool.getReadReplicas();
+            if (replicas != null) {
+                for (int r = 0; r < replicas.getReplicaCount(); r++) {
+                    w.gauge("server_replica_up", "Replica de lectura en uso: 1 sana y 0 caida.",
+                            "replica=\"" + r + "\"", replicas.isHealthy(r) ? 1 : 0);
+                }
+                for (int r = 0; r < replicas.getReplicaCount(); r++) {
+                    w.gauge("server_replica_pool_active", "Conexiones a la replica prestadas.",
+                            "replica=\"" + r + "\"", replicas.getReplica(r).getActiveCount());
+                }
+                w.counter("server_reads_total", "Busquedas de usuario segun donde se han leido.",
+                        "target=\"primary\"", replicas.getPrimaryReadCount());
+                w.counter("server_reads_total", "Busquedas de usuario segun donde se han leido.",
+                        "target=\"replica\"", replicas.getReplicaReadCount());
+                w.counter("server_replica_failovers_total", "Veces que una replica se ha dejado de usar por fallar.",
+                        null, replicas.getFailoverCount());
+            }
+        }
+        UserCache cache = LogicableFactory.getUserCache();
+        if (cache != null) {
+            w.counter("server_user_cache_hits_total", "Usuarios encontrados en la cache.", null, cache.getHitCount());
+            w.counter("server_user_cache_negative_hits_total", "Usuarios inexistentes encontrados en la cache.",
+                    null, cache.getNegativeHitCount());
+            w.counter("server_user_cache_misses_total", "Busquedas que han ido a la base de datos.", null, cache.getMissCount());
+        }
+        LookupCoalescer coalescer = LogicableFactory.getLookupCoalescer();
+        if (coalescer != null) {
+            w.counter("server_user_lookup_queries_total", "Busquedas de usuario hechas en la base de datos.",
+                    null, coalescer.getQueryCount());
+            w.counter("server_user_lookup_coalesced_total", "Busquedas que se han unido a una consulta en curso.",
+                    null, coalescer.getCoalescedCount());
+        }
+        PasswordVerifier passwords = LogicableFactory.getPasswordVerifier();
+        if (passwords != null) {
+            w.gauge("server_password_queue_size", "Contraseñas esperando a calcularse o comprobarse.",
+                    null, passwords.getQueueSize());
+            w.counter("server_password_rejected_total", "Contraseñas rechazadas por la cola llena.",
+                    null, passwords.getRejectedCount());
+        }
+        SignInAuditWriter audit = LogicableFactory.getAuditWriter();
+        if (audit != null) {
+            w.gauge("server_audit_queue_size", "Inicios de sesion esperando a guardarse.", null, audit.getQueueSize());
+            w.counter("server_audit_written_total", "Inicios de sesion guardados.", null, audit.getWrittenCount());
+            w.counter("server_audit_synchronous_total", "Inicios de sesion guardados en el momento por cola llena.",
+                    null, audit.getSynchronousCount());
+            w.counter("server_audit_failed_total", "Inicios de sesion que no se han podido guardar.", null, audit.getFailedCount());
+        }
+        w.counter("server_log_dropped_total", "Registros de log descartados por la cola llena.",
+                null, Logging.getDroppedCount());
+        return w.toString();
+    }
+
+}
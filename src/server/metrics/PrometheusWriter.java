@@ -0,0 +1,95 @@
+package server.metrics;
+
+/**
+ * Esta clase pretende escribir metricas en el formato de texto de Prometheus.
+ * Los histogramas se publican en segundos, con unos cubos fijos que van de
+ * medio milisegundo a diez segundos.
+ *
+ * @author Steven Arce
+ */
+class PrometheusWriter {
+
+    private static final double[] BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private final StringBuilder out = new StringBuilder(8192);
+    private String lastFamily;
+
+    /**
+     * Este metodo pretende escribir un contador.
+     *
+     * @param name nombre de la metrica, terminado en _total
+     * @param help descripcion
+     * @param labels etiquetas, por ejemplo reason="connections", o null
+     * @param value valor
+     */
+    void counter(String name, String help, String labels, long value) {
+        family(name, help, "counter");
+        sample(name, labels, Long.toString(value));
+    }
+
+    /**
+     * Este metodo pretende escribir un valor que sube y baja.
+     *
+     * @param name nombre de la metrica
+     * @param help descripcion
+     * @param labels etiquetas, o null
+     * @param value valor
+     */
+    void gauge(String name, String help, String labels, double value) {
+        family(name, help, "gauge");
+        sample(name, labels, format(value));
+    }
+
+    /**
+     * Este metodo pretende escribir un histograma de latencias.
+     *
+     * @param name nombre de la metrica, terminado en _seconds
+     * @param help descripcion
+     * @param labels etiquetas, o null
+     * @param histogram histograma en nanosegundos
+     */
+    void histogram(String name, String help, String labels, LatencyHistogram histogram) {
+        family(name, help, "histogram");
+        String prefix = labels == null ? "" : labels + ",";
+        for (double bucket : BUCKETS) {
+            long count = histogram.getCountAtOrBelow((long) (bucket * 1e9));
+            sample(name + "_bucket", prefix + "le=\"" + format(bucket) + "\"", Long.toString(count));
+        }
+        sample(name + "_bucket", prefix + "le=\"+Inf\"", Long.toString(histogram.getCount()));
+        sample(name + "_sum", labels, format(histogram.getSum() / 1e9));
+        sample(name + "_count", labels, Long.toString(histogram.getCount()));
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    /**
+     * Escribe HELP y TYPE la primera vez que aparece cada metrica, para que
+     * las distintas etiquetas de una misma metrica vayan juntas.
+     */
+    private void family(String name, String help, String type) {
+        if (!name.equals(lastFamily)) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            lastFamily = name;
+        }
+    }
+
+    private void sample(String name, String labels, String value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+}
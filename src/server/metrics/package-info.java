@@ -0,0 +1,4 @@
+/**
+ * Este paquete contiene las metricas del servidor
+ */
+package server.metrics;
@@ -0,0 +1,154 @@
+package server.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende atender la lectura y escritura de muchas conexiones con
+ * un solo hilo, mediante un Selector. Las tareas que vienen de otros hilos se
+ * encolan y se ejecutan dentro del propio bucle, asi cada conexion solo la
+ * toca su hilo. Un error inesperado al atender una conexion (un mensaje que
+ * no se puede decodificar, una pila desbordada) solo cierra esa conexion, el
+ * bucle sigue con las demas.
+ *
+ * @author Steven Arce
+ */
+class EventLoop implements Runnable {
+
+    private final static Logger logger = Logger.getLogger("server.nio");
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final NioServer server;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor del bucle de eventos.
+     *
+     * @param server servidor al que pertenece
+     * @throws IOException Si no se puede abrir el Selector.
+     */
+    EventLoop(NioServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Este metodo pretende entregar un canal aceptado a este bucle.
+     *
+     * @param channel canal del cliente
+     * @param acceptedAt instante de System.nanoTime() en el que se acepto
+     */
+    void register(SocketChannel channel, long acceptedAt) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, server, acceptedAt);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                connection.start();
+            } catch (IOException ex) {
+                logger.log(Level.INFO, "Error al registrar el cliente", ex);
+                server.connectionClosed();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.info("Error al cerrar el canal");
+                }
+            }
+        });
+    }
+
+    /**
+     * Este metodo pretende ejecutar una tarea dentro del hilo de este bucle.
+     *
+     * @param task tarea a ejecutar
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Este metodo pretende cerrar, desde el hilo del bucle, las conexiones que
+     * no tienen ninguna peticion a medias y dejar que las demas se cierren al
+     * terminarla.
+     */
+    void drain() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).drain();
+            }
+        });
+    }
+
+    /**
+     * Este metodo pretende parar el bucle.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextIdleCheck = System.currentTimeMillis() + 1000;
+        while (running) {
+            try {
+                selector.select(1000);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException | StackOverflowError ex) {
+                        logger.log(Level.SEVERE, "Error en una tarea del bucle", ex);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (RuntimeException | StackOverflowError ex) {
+                        logger.log(Level.WARNING, "Error al atender una conexion, se cierra", ex);
+                        connection.close();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextIdleCheck) {
+                    nextIdleCheck = now + 1000;
+                    long nowNanos = System.nanoTime();
+                    for (SelectionKey key : selector.keys()) {
+                        ((NioConnection) key.attachment()).checkTimeouts(nowNanos);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, null, ex);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            logger.info("Error al cerrar el Selector");
+        }
+    }
+
+}
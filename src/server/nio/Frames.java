@@ -0,0 +1,47 @@
+package server.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import server.codec.MessageCodec;
+import server.codec.StaticReplies;
+
+/**
+ * Esta clase pretende convertir los mensajes en tramas. Cada trama lleva
+ * delante un entero de 4 bytes con la longitud del contenido, y el contenido
+ * es el mensaje convertido con el MessageCodec acordado con el cliente. Las
+ * respuestas de StaticReplies no se convierten, se usa su trama ya
+ * codificada.
+ *
+ * @author Steven Arce
+ */
+public class Frames {
+
+    /**
+     * Longitud en bytes de la cabecera de cada trama.
+     */
+    public static final int HEADER_SIZE = 4;
+
+    private Frames() {
+    }
+
+    /**
+     * Este metodo pretende crear la trama de un mensaje.
+     *
+     * @param codec formato acordado con el cliente
+     * @param message mensaje a mandar
+     * @return buffer listo para escribir en el canal
+     * @throws IOException Si el mensaje no se puede convertir.
+     */
+    public static ByteBuffer encode(MessageCodec codec, Object message) throws IOException {
+        byte[] encoded = StaticReplies.frame(codec, message);
+        if (encoded != null) {
+            return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+        }
+        byte[] payload = codec.encode(message);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(payload.length).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+}
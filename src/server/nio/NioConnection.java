@@ -0,0 +1,457 @@
+package server.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lib.message.Msg;
+import server.RequestDeadline;
+import server.codec.BinaryCodec;
+import server.codec.Handshake;
+import server.codec.MessageCodec;
+import server.codec.StaticReplies;
+import server.logging.AccessLog;
+import server.metrics.Metrics;
+import server.serverSocket.MessageHandler;
+import server.serverSocket.RateLimiter;
+import server.serverSocket.SocketSettings;
+import server.serverSocket.Worker;
+
+/**
+ * Esta clase pretende guardar el estado de una conexion del servidor NIO: la
+ * trama que se esta leyendo, el formato acordado con el cliente y las
+ * respuestas que quedan por escribir. Solo atiende a los clientes binarios;
+ * los antiguos se pasan a un Worker nada mas reconocerlos. Los
+ * mensajes de una misma conexion se atienden de uno en uno, para que las
+ * respuestas salgan en el mismo orden que las peticiones. Solo la usa el hilo
+ * de su EventLoop, que revisa cada segundo los plazos de la conexion (ver
+ * SocketSettings): la trama que se esta leyendo, la respuesta que no se
+ * termina de escribir y la peticion entera.
+ * <p>
+ * La conexion solo ocupa hueco de cliente (ver NioServer) mientras atiende un
+ * mensaje: lo pide al tenerlo completo y lo devuelve al tener la respuesta.
+ *
+ * @author Steven Arce
+ */
+class NioConnection {
+
+    private final static Logger logger = Logger.getLogger("server.nio");
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final NioServer server;
+    private final ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private SelectionKey key;
+    private ByteBuffer body;
+    private MessageCodec codec;
+    private boolean awaitingVersion;
+    private long lastActivity = System.nanoTime();
+    private int requests;
+    private boolean inFlight;
+    private boolean holdsSlot;
+    private Msg requestType;
+    private Msg outcome;
+    private final SocketAddress remote;
+    private final int maxFrameSize;
+    private long requestStart;
+    private long readUntil;
+    private long writeUntil = Long.MAX_VALUE;
+    private long deadlineAt = Long.MAX_VALUE;
+    private boolean closing;
+    private boolean closed;
+
+    NioConnection(SocketChannel channel, EventLoop loop, NioServer server, long acceptedAt) {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.requestStart = acceptedAt;
+        //La primera peticion tiene readTimeout desde que se acepto al cliente
+        this.readUntil = SocketSettings.deadline(acceptedAt, server.getSettings().getReadTimeout());
+        this.remote = channel.socket().getRemoteSocketAddress();
+        this.maxFrameSize = server.getHandshake().getMaxFrameSize(channel.socket().getInetAddress());
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Este metodo pretende empezar la negociacion como la empieza
+     * Handshake.open, mandando la cabecera de la serializacion de Java.
+     */
+    void start() {
+        outbound.add(ByteBuffer.wrap(Handshake.JAVA_HEADER).asReadOnlyBuffer());
+        onWritable();
+    }
+
+    /**
+     * Este metodo pretende leer la trama que esta llegando y, cuando esta
+     * completa, mandar el mensaje al pool de hilos.
+     */
+    void onReadable() {
+        try {
+            int read;
+            if (body == null) {
+                read = channel.read(header);
+                if (read >= 0 && !header.hasRemaining() && codec == null) {
+                    negotiate();
+                    return;
+                }
+                if (read >= 0 && codec != null && !header.hasRemaining()) {
+                    header.flip();
+                    int length = header.getInt();
+                    header.clear();
+                    if (length <= 0 || length > maxFrameSize) {
+                        logger.info("Trama con longitud invalida: " + length);
+                        close();
+                        return;
+                    }
+                    body = ByteBuffer.allocate(length);
+                    read = channel.read(body);
+                }
+            } else {
+                read = channel.read(body);
+            }
+            if (read < 0) {
+                //El cliente ha cerrado su parte, se termina cuando acabe lo pendiente
+                closing = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            if (read > 0 && readUntil == Long.MAX_VALUE) {
+                //Empieza una peticion en una conexion abierta
+                readUntil = SocketSettings.deadline(lastActivity, server.getSettings().getReadTimeout());
+            }
+            if (body != null && !body.hasRemaining()) {
+                byte[] payload = body.array();
+                body = null;
+                dispatch(codec.decode(payload));
+            }
+        } catch (IOException ex) {
+            logClientError("Error al leer del cliente", ex);
+            close();
+        }
+    }
+
+    /**
+     * Acuerda el formato con los primeros bytes del cliente, igual que
+     * Handshake.open. Si son Handshake.MAGIC se lee un byte mas con la
+     * version y se contesta. Si son la cabecera de la serializacion de Java
+     * es un cliente antiguo y se pasa a un Worker. Si no, se cierra.
+     */
+    private void negotiate() {
+        Handshake handshake = server.getHandshake();
+        if (awaitingVersion) {
+            int version = header.get(0);
+            byte chosen = handshake.isBinaryAllowed() && version >= 1
+                    ? (byte) Math.min(version, BinaryCodec.VERSION) : 0;
+            header.clear();
+            awaitingVersion = false;
+            outbound.add(ByteBuffer.wrap(Handshake.reply(chosen)));
+            if (chosen == 0) {
+                logger.info("Version del formato binario no admitida: " + version);
+                closing = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                codec = BinaryCodec.INSTANCE;
+            }
+            onWritable();
+            return;
+        }
+        if (Arrays.equals(header.array(), Handshake.MAGIC)) {
+            header.clear();
+            header.limit(1);
+            awaitingVersion = true;
+            return;
+        }
+        if (!Arrays.equals(header.array(), Handshake.JAVA_HEADER)) {
+            logger.info("El cliente no empieza con ninguna cabecera conocida");
+            close();
+            return;
+        }
+        if (!handshake.isJavaAllowed()) {
+            logger.info("La serializacion de Java esta desactivada");
+            close();
+            return;
+        }
+        handOff(header.array().clone());
+    }
+
+    /**
+     * Pasa un cliente antiguo a un Worker, que sigue con el socket en modo
+     * bloqueante. El canal tiene que salir del Selector antes de cambiarlo de
+     * modo, y eso pasa en el siguiente select(), asi que se hace en una tarea
+     * del bucle. El Worker pide hueco de cliente para cada peticion.
+     *
+     * @param start bytes ya leidos del cliente
+     */
+    private void handOff(byte[] start) {
+        closed = true;
+        key.cancel();
+        server.connectionClosed();
+        loop.execute(() -> {
+            try {
+                channel.configureBlocking(true);
+                //Como mucho queda la cabecera, que cabe de sobra en el buffer del socket
+                for (ByteBuffer buffer : outbound) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                Socket socket = channel.socket();
+                if (server.getWorkers().execute(new Worker(socket, server.getHandshake(), start,
+                        server.getSettings(), server.getWatchdog(), server.getIdleTimeout(),
+                        server.getMaxRequests(), requestStart))) {
+                    logger.fine("Cliente con serializacion de Java entregado al pool de hilos");
+                    return;
+                }
+                logger.fine("Cliente rechazado por el pool de hilos saturado");
+                Metrics.countRejection(Metrics.Rejection.WORKERS);
+                ByteBuffer reply = ByteBuffer.wrap(
+                        StaticReplies.javaStream(StaticReplies.get(Msg.TOOMANYUSERSEXCEPTION)));
+                while (reply.hasRemaining()) {
+                    channel.write(reply);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.INFO, "Error al pasar el cliente a un Worker", ex);
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.info("Error al cerrar el canal");
+            }
+        });
+    }
+
+    /**
+     * Deja de leer mientras se atiende el mensaje y lo entrega al pool de
+     * hilos. La respuesta vuelve a este bucle para escribirla.
+     */
+    private void dispatch(Object request) {
+        if (requests > 0) {
+            //En una conexion abierta se mide desde que llega la peticion
+            requestStart = System.nanoTime();
+        }
+        requests++;
+        requestType = MessageHandler.typeOf(request);
+        inFlight = true;
+        readUntil = Long.MAX_VALUE;
+        deadlineAt = SocketSettings.deadline(requestStart, server.getSettings().getRequestDeadline(request));
+        long deadline = deadlineAt;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        InetAddress client = remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+        RateLimiter rateLimiter = server.getRateLimiter();
+        if (rateLimiter != null && client != null && !rateLimiter.tryAcquire(client)) {
+            //Como al rechazar un cliente nuevo, se contesta y se cierra la conexion
+            logger.fine("Peticion rechazada por el limite de peticiones por segundo");
+            Metrics.countRejection(Metrics.Rejection.RATE_LIMIT);
+            closing = true;
+            reject(request);
+            return;
+        }
+        if (!server.tryAcquireSlot()) {
+            //Igual que el Worker de una conexion abierta sin hueco
+            logger.fine("Peticion rechazada por el limite de conexiones");
+            Metrics.countRejection(Metrics.Rejection.CONNECTIONS);
+            closing = true;
+            reject(request);
+            return;
+        }
+        holdsSlot = true;
+        boolean accepted = server.getWorkers().execute(() -> {
+            ByteBuffer reply;
+            Msg replyType = null;
+            if (deadline != Long.MAX_VALUE) {
+                RequestDeadline.set(deadline);
+            }
+            try {
+                Object response = MessageHandler.handleRequest(request, client);
+                replyType = MessageHandler.typeOf(response);
+                reply = Frames.encode(codec, response);
+            } catch (IOException | RuntimeException ex) {
+                logger.log(Level.INFO, "Error al atender la peticion", ex);
+                reply = null;
+            } finally {
+                RequestDeadline.clear();
+            }
+            ByteBuffer frame = reply;
+            Msg frameType = replyType;
+            loop.execute(() -> onReply(frame, frameType));
+        });
+        if (!accepted) {
+            logger.fine("Peticion rechazada por el pool de hilos saturado");
+            Metrics.countRejection(Metrics.Rejection.WORKERS);
+            reject(request);
+        }
+    }
+
+    /**
+     * Contesta TOOMANYUSERSEXCEPTION a una peticion que no se atiende, con el
+     * mismo tipo que la peticion (ver MessageHandler.reject).
+     */
+    private void reject(Object request) {
+        ByteBuffer frame;
+        try {
+            frame = Frames.encode(codec, MessageHandler.reject(request));
+        } catch (IOException ex) {
+            logger.log(Level.INFO, "Error al rechazar la peticion", ex);
+            frame = null;
+        }
+        onReply(frame, Msg.TOOMANYUSERSEXCEPTION);
+    }
+
+    /**
+     * Encola la respuesta y vuelve a leer si se admiten mas mensajes.
+     */
+    private void onReply(ByteBuffer frame, Msg replyType) {
+        inFlight = false;
+        if (holdsSlot) {
+            //Aunque la conexion ya se haya cerrado, el hueco se ha ocupado hasta ahora
+            holdsSlot = false;
+            server.releaseSlot();
+        }
+        outcome = replyType;
+        if (closed) {
+            return;
+        }
+        if (frame == null) {
+            close();
+            return;
+        }
+        outbound.add(frame);
+        if (requests >= server.getMaxRequests()) {
+            closing = true;
+        } else if (!closing) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        onWritable();
+    }
+
+    /**
+     * Este metodo pretende escribir las respuestas pendientes hasta que el
+     * canal no admita mas datos.
+     */
+    void onWritable() {
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    if (writeUntil == Long.MAX_VALUE) {
+                        //El cliente no recoge lo que se le manda
+                        writeUntil = SocketSettings.deadline(System.nanoTime(), server.getSettings().getWriteTimeout());
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                lastActivity = System.nanoTime();
+            }
+            writeUntil = Long.MAX_VALUE;
+            if (requestType != null && !inFlight) {
+                AccessLog.request(remote, requestType, outcome, requestStart);
+                requestType = null;
+                deadlineAt = Long.MAX_VALUE;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        } catch (IOException ex) {
+            logClientError("Error al escribir al cliente", ex);
+            close();
+        }
+    }
+
+    /**
+     * Cierra la conexion si se ha pasado de alguno de sus plazos o lleva
+     * demasiado tiempo sin actividad.
+     *
+     * @param now instante actual de System.nanoTime()
+     */
+    void checkTimeouts(long now) {
+        Metrics.Timeout reason = null;
+        if (isPast(deadlineAt, now)) {
+            reason = Metrics.Timeout.DEADLINE;
+        } else if (isPast(writeUntil, now)) {
+            reason = Metrics.Timeout.WRITE;
+        } else if (isPast(readUntil, now)) {
+            reason = Metrics.Timeout.READ;
+        }
+        if (reason != null) {
+            Metrics.countTimeout(reason);
+            Metrics.Timeout expired = reason;
+            logger.fine(() -> "Conexion cortada por el plazo " + expired);
+            close();
+            return;
+        }
+        int idleTimeout = server.getIdleTimeout();
+        if (idleTimeout > 0 && !inFlight && outbound.isEmpty()
+                && now - lastActivity > TimeUnit.MILLISECONDS.toNanos(idleTimeout)) {
+            logger.fine("Conexion cerrada por inactividad");
+            close();
+        }
+    }
+
+    private static boolean isPast(long until, long now) {
+        return until != Long.MAX_VALUE && now - until >= 0;
+    }
+
+    /**
+     * Deja de admitir peticiones porque el servidor se esta cerrando. Si no
+     * hay ninguna a medias se cierra ya; si no, al escribir su respuesta.
+     */
+    void drain() {
+        closing = true;
+        if (!inFlight && outbound.isEmpty() && body == null && header.position() == 0 && !awaitingVersion) {
+            close();
+        }
+    }
+
+    private void closeIfDone() {
+        if (closing && !inFlight && outbound.isEmpty()) {
+            close();
+        }
+    }
+
+    /**
+     * Este metodo pretende cerrar el canal. Si hay una peticion en curso su
+     * hueco se libera al llegar la respuesta (ver onReply).
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.info("Error al cerrar el canal");
+        }
+        server.connectionClosed();
+        logger.fine("Conexion cerrada");
+    }
+
+    /**
+     * Un cliente que corta la conexion es lo normal y no un error del
+     * servidor: se apunta con FINE, y con la traza solo si esta activo FINEST.
+     */
+    private static void logClientError(String message, IOException ex) {
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.log(Level.FINEST, message, ex);
+        } else {
+            logger.fine(() -> message + ": " + ex);
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+package server.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lib.message.Msg;
+import server.admission.AdmissionController;
+import server.codec.Handshake;
+import server.codec.StaticReplies;
+import server.metrics.Metrics;
+import server.serverSocket.ConnectionWatchdog;
+import server.serverSocket.RateLimiter;
+import server.serverSocket.SocketSettings;
+import server.serverSocket.WorkerPool;
+
+/**
+ * Esta clase pretende ser una alternativa al ServerSocket con un hilo por
+ * cliente. Las conexiones se reparten entre unos pocos EventLoop que leen y
+ * escriben sin bloquearse, y los mensajes ya leidos se atienden en el
+ * WorkerPool. Asi un cliente lento solo ocupa memoria, no un hilo.
+ * <p>
+ * La negociacion es la misma que con un Worker por cliente (ver Handshake):
+ * nada mas aceptar se manda la cabecera de la serializacion de Java. Un
+ * cliente que contesta con {@link Handshake#MAGIC} y una version usa el
+ * formato binario, con tramas con la longitud delante (ver Frames). Un
+ * cliente antiguo, que contesta con {@link Handshake#JAVA_HEADER}, se pasa a
+ * un Worker con el socket bloqueante y ocupa un hilo mientras dura su
+ * conexion, igual que sin NIO.
+ * <p>
+ * Hay dos limites. maxOpenConnections es el numero de sockets abiertos, que
+ * solo cuestan memoria y pueden ser miles. El AdmissionController
+ * (MAXCONNECTIONS) cuenta las peticiones que se estan atendiendo: una
+ * conexion pide hueco al llegar un mensaje completo y lo devuelve al
+ * contestar, como el Worker entre peticiones de una conexion abierta. Los
+ * clientes antiguos dejan de contar como sockets abiertos al pasar a un
+ * Worker, porque ya los limita el pool de hilos.
+ *
+ * @author Steven Arce
+ */
+public class NioServer {
+
+    private final static Logger logger = Logger.getLogger("server.nio");
+    private final int port;
+    private final Handshake handshake;
+    private final int idleTimeout;
+    private final int maxRequests;
+    private final SocketSettings settings;
+    private final AdmissionController admission;
+    private final int maxOpenConnections;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final RateLimiter rateLimiter;
+    private final WorkerPool workers;
+    private final ConnectionWatchdog watchdog;
+    private final EventLoop[] loops;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean draining;
+
+    /**
+     * Constructor del servidor NIO.
+     *
+     * @param port puerto en el que se aceptan conexiones
+     * @param eventLoops numero de hilos que atienden la red
+     * @param handshake formatos admitidos y longitud maxima de una trama
+     * @param idleTimeout milisegundos sin actividad antes de cerrar una
+     * conexion, 0 para no cerrarla nunca
+     * @param maxRequests numero maximo de mensajes por conexion
+     * @param settings opciones de los sockets y plazos de cada conexion
+     * @param admission control de las peticiones en curso
+     * @param maxOpenConnections numero maximo de conexiones abiertas a la vez
+     * @param rateLimiter limitador por cliente, o null si esta desactivado
+     * @param workers pool de hilos que atiende los mensajes
+     * @param watchdog vigilante de los plazos de los clientes antiguos, o
+     * null si no hay plazos
+     * @throws IOException Si no se pueden abrir los Selector.
+     */
+    public NioServer(int port, int eventLoops, Handshake handshake, int idleTimeout, int maxRequests,
+            SocketSettings settings, AdmissionController admission, int maxOpenConnections, RateLimiter rateLimiter,
+            WorkerPool workers, ConnectionWatchdog watchdog) throws IOException {
+        this.port = port;
+        this.handshake = handshake;
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = maxRequests;
+        this.settings = settings;
+        this.admission = admission;
+        this.maxOpenConnections = maxOpenConnections;
+        this.rateLimiter = rateLimiter;
+        this.workers = workers;
+        this.watchdog = watchdog;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(this);
+        }
+    }
+
+    /**
+     * Este metodo pretende abrir el puerto del servidor sin aceptar todavia
+     * conexiones, que se quedan esperando en el backlog hasta llamar a run().
+     *
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public void bind() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            settings.bind(server, port);
+        } catch (IOException ex) {
+            server.close();
+            throw ex;
+        }
+        serverChannel = server;
+        logger.info("Servidor NIO escuchando en el puerto " + port);
+    }
+
+    /**
+     * Este metodo pretende arrancar los EventLoop y aceptar conexiones hasta
+     * que se cierre el servidor. Si no se ha llamado antes a bind() se abre
+     * aqui el puerto.
+     *
+     * @throws IOException Si hay un error con el socket del servidor.
+     */
+    public void run() throws IOException {
+        if (serverChannel == null) {
+            bind();
+        }
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "server-nio-" + (i + 1));
+            t.start();
+        }
+        int next = 0;
+        ServerSocketChannel server = serverChannel;
+        try {
+            while (server.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException ex) {
+                    //Se ha cerrado el servidor
+                    break;
+                }
+                long acceptedAt = System.nanoTime();
+                logger.fine("Cliente aceptado");
+                settings.apply(channel);
+                //El limite de peticiones en curso y el de peticiones por segundo se aplican a cada peticion
+                if (openConnections.incrementAndGet() > maxOpenConnections) {
+                    openConnections.decrementAndGet();
+                    logger.fine("Cliente rechazado por el limite de conexiones");
+                    Metrics.countRejection(Metrics.Rejection.CONNECTIONS);
+                    reject(channel);
+                } else {
+                    loops[next].register(channel, acceptedAt);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } finally {
+            //Con drain() los EventLoop siguen hasta que terminen las peticiones en curso
+            if (!draining) {
+                shutdown();
+            }
+        }
+    }
+
+    /**
+     * Este metodo pretende dejar de aceptar conexiones, cerrar las que no
+     * tienen ninguna peticion a medias y cerrar las demas en cuanto se
+     * conteste a su peticion. Los EventLoop siguen hasta llamar a shutdown().
+     */
+    public void drain() {
+        draining = true;
+        closeServerChannel();
+        for (EventLoop loop : loops) {
+            loop.drain();
+        }
+    }
+
+    /**
+     * Este metodo pretende dejar de aceptar conexiones y parar los EventLoop.
+     */
+    public void shutdown() {
+        closeServerChannel();
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private void closeServerChannel() {
+        ServerSocketChannel server = serverChannel;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException ex) {
+                logger.info("Error al cerrar el ServerSocketChannel");
+            }
+        }
+    }
+
+    /**
+     * Contesta desde el hilo que acepta conexiones, con el canal todavia en
+     * modo bloqueante, y lo cierra. Es la misma respuesta que manda
+     * Worker.reject, la cabecera de la serializacion de Java y el mensaje.
+     */
+    private void reject(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            ByteBuffer reply = ByteBuffer.wrap(StaticReplies.java(Msg.TOOMANYUSERSEXCEPTION)).asReadOnlyBuffer();
+            while (reply.hasRemaining()) {
+                c.write(reply);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.INFO, "Error al rechazar al cliente", ex);
+        }
+    }
+
+    boolean tryAcquireSlot() {
+        return admission.tryAcquire();
+    }
+
+    void releaseSlot() {
+        admission.release();
+    }
+
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    /**
+     * @return numero de conexiones abiertas en los EventLoop.
+     */
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    WorkerPool getWorkers() {
+        return workers;
+    }
+
+    ConnectionWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    Handshake getHandshake() {
+        return handshake;
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    int getMaxRequests() {
+        return maxRequests;
+    }
+
+    SocketSettings getSettings() {
+        return settings;
+    }
+
+}
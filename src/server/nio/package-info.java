@@ -0,0 +1,4 @@
+/**
+ * Este paquete contiene el servidor NIO no bloqueante
+ */
+package server.nio;
@@ -0,0 +1,81 @@
+package server.pool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende preparar una base de datos H2 en memoria, dentro del
+ * propio proceso, con las mismas tablas y el mismo procedimiento
+ * last_ten_sign_in que la base de datos MySQL. Sirve para arrancar el servidor
+ * y las pruebas de carga en una sola maquina, sin servicios externos. El jar
+ * de H2 tiene que estar en el classpath.
+ *
+ * @author Steven Arce
+ */
+public class EmbeddedDatabase {
+
+    private final static Logger logger = Logger.getLogger("server.pool.EmbeddedDatabase");
+
+    private EmbeddedDatabase() {
+    }
+
+    /**
+     * Este metodo pretende crear las tablas y el procedimiento si todavia no
+     * existen.
+     *
+     * @param url url de H2, en modo MySQL y con DB_CLOSE_DELAY=-1 para que la
+     * base de datos no se borre al cerrar la ultima conexion
+     * @param user usuario de la base de datos
+     * @param passwd contraseña de la base de datos
+     * @throws SQLException si no se puede crear el esquema
+     */
+    static void create(String url, String user, String passwd) throws SQLException {
+        try (Connection con = DriverManager.getConnection(url, user, passwd);
+                Statement stmt = con.createStatement()) {
+            //En modo MySQL los auto_increment de H2 repiten ids con insert simultaneos, se usan secuencias
+            stmt.execute("create sequence if not exists user_seq");
+            stmt.execute("create sequence if not exists signin_seq");
+            stmt.execute("create table if not exists user (id int default next value for user_seq primary key,"
+                    + " login varchar(50) not null unique, email varchar(50), fullName varchar(50),"
+                    + " status varchar(10), privilege varchar(10), password varchar(200),"
+                    + " lastPasswordChange timestamp)");
+            stmt.execute("create table if not exists signin (id int default next value for signin_seq primary key,"
+                    + " login varchar(50) not null, lastSignIn timestamp default current_timestamp)");
+            stmt.execute("create index if not exists signin_login on signin (login, id)");
+            //Tablas de server.admission.DatabaseCoordinator
+            stmt.execute("create table if not exists admission_lock (id int primary key)");
+            stmt.execute("merge into admission_lock key (id) values (1)");
+            stmt.execute("create table if not exists admission_lease (node varchar(100) primary key,"
+                    + " held int not null, in_use int not null, expires bigint not null)");
+            stmt.execute("create alias if not exists last_ten_sign_in for \""
+                    + EmbeddedDatabase.class.getName() + ".lastTenSignIn\"");
+        }
+        logger.info("Base de datos embebida preparada");
+    }
+
+    /**
+     * Procedimiento last_ten_sign_in de la base de datos embebida: guarda el
+     * inicio de sesion y deja solo los diez ultimos de cada usuario. H2 lo
+     * llama pasando la conexion de la propia llamada.
+     *
+     * @param con conexion desde la que se llama al procedimiento
+     * @param login usuario que inicia sesion
+     * @throws SQLException si falla alguna sentencia
+     */
+    public static void lastTenSignIn(Connection con, String login) throws SQLException {
+        try (PreparedStatement insert = con.prepareStatement("insert into signin (login) values (?)");
+                PreparedStatement delete = con.prepareStatement("delete from signin where login = ? and id not in"
+                        + " (select id from signin where login = ? order by id desc limit 10)")) {
+            insert.setString(1, login);
+            insert.executeUpdate();
+            delete.setString(1, login);
+            delete.setString(2, login);
+            delete.executeUpdate();
+        }
+    }
+
+}
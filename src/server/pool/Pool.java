@@ -1,77 +1,335 @@
 package server.pool;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import lib.exceptions.ConnectException;
+import server.Config;
+import server.RequestDeadline;
+import server.metrics.Metrics;
 
 /**
  * Esta clase pretende crear conexiones con la base de datos, estas conexiones
  * puedes ser reutilizadas por los diferentes usuarios.
+ * <p>
+ * El pool tiene un tamaño minimo, que se abre al arrancar, y un maximo que no
+ * se supera nunca. Si no hay conexiones libres se espera como mucho
+ * borrowTimeout milisegundos. Las conexiones que llevan tiempo sin usarse se
+ * validan antes de entregarlas, y las que superan maxLifetime se cierran y se
+ * sustituyen. Pedir y devolver una conexion no usa bloqueos, solo un Semaphore
+ * para el limite y una cola concurrente con las conexiones libres. Cada
+ * conexion guarda sus statements preparados (ver StatementCache), que se
+ * cierran cuando se cierra la conexion. Si el hilo atiende una peticion con
+ * plazo (ver RequestDeadline), ni la espera por una conexion ni las querys
+ * duran mas que lo que le queda.
+ * <p>
+ * Si se configuran replicas de solo lectura, cada una tiene su propio Pool y
+ * las busquedas piden la conexion con {@link #getReadConnection(String)}, que
+ * las reparte entre ellas (ver ReadReplicas). Las conexiones de las replicas
+ * se devuelven y se usan con los mismos metodos que las del primario.
  *
  * @author Steven Arce
  */
 public class Pool {
 
     private final static Logger logger = Logger.getLogger("server.pool");
-    private static Pool instance;
-    private static Stack<Connection> pool = new Stack<>();
-    private Connection con;
+    private static volatile Pool instance;
+    //No se usa synchronized para no bloquear hilos virtuales mientras se abren conexiones
+    private static final ReentrantLock instanceLock = new ReentrantLock();
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Map<Connection, PooledConnection> connections = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final ScheduledExecutorService maintenance;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+    private volatile boolean closed;
+    private final AtomicBoolean suspended = new AtomicBoolean();
+    private ReadReplicas replicas;
     private String driver;
     private String url;
     private String user;
     private String passwd;
+    private int minSize;
+    private int maxSize;
+    private long borrowTimeout;
+    private int validationTimeout;
+    private long idleValidationNanos;
+    private long maxLifetimeNanos;
+    private int statementCacheSize;
     private ResourceBundle configFile;
 
     /**
      * Para que solo haya una sola instancia, el constructor es privado para
-     * impedir la creacion de nuevas instancias.
+     * impedir la creacion de nuevas instancias. Abre las conexiones minimas,
+     * arranca la tarea que revisa las conexiones libres y crea los pools de
+     * las replicas si las hay.
      */
     private Pool() {
-        this.configFile = ResourceBundle.getBundle("server.pool.BDconfig");
+        this(Config.load("server.pool.BDconfig"), null);
+        this.replicas = createReplicas();
+    }
+
+    /**
+     * Constructor de un pool contra una base de datos concreta, con los
+     * tamaños y plazos del archivo de configuracion.
+     *
+     * @param configFile archivo de configuracion del pool
+     * @param replicaUrl url de una replica, o null para el primario
+     */
+    private Pool(ResourceBundle configFile, String replicaUrl) {
+        this.configFile = configFile;
         this.driver = this.configFile.getString("driver");
-        this.url = this.configFile.getString("url");
+        this.url = replicaUrl != null ? replicaUrl : this.configFile.getString("url");
         this.user = this.configFile.getString("user");
         this.passwd = this.configFile.getString("passwd");
+        this.maxSize = Integer.valueOf(this.configFile.getString("maxSize"));
+        this.minSize = Math.min(Integer.valueOf(this.configFile.getString("minSize")), maxSize);
+        this.borrowTimeout = Long.valueOf(this.configFile.getString("borrowTimeout"));
+        this.validationTimeout = Integer.valueOf(this.configFile.getString("validationTimeout"));
+        this.idleValidationNanos = TimeUnit.MILLISECONDS.toNanos(Long.valueOf(this.configFile.getString("idleValidation")));
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(Long.valueOf(this.configFile.getString("maxLifetime")));
+        this.statementCacheSize = Integer.valueOf(this.configFile.getString("statementCacheSize"));
+        if (Boolean.parseBoolean(this.configFile.getString("embedded").trim())) {
+            if (replicaUrl == null) {
+                this.url = this.configFile.getString("embeddedUrl");
+            }
+            try {
+                EmbeddedDatabase.create(this.url, this.user, this.passwd);
+            } catch (SQLException ex) {
+                logger.severe("No se ha podido preparar la base de datos embebida: " + ex.getMessage());
+            }
+        }
+        this.permits = new Semaphore(maxSize);
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-pool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        fillToMinimum();
+        long period = Math.max(1000, TimeUnit.NANOSECONDS.toMillis(idleValidationNanos));
+        maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Este metodo pretende crear una instancia de esta clase, asegurando que
-     * solo haya una unica instacia de esta misma.
+     * solo haya una unica instacia de esta misma aunque varios hilos la pidan
+     * a la vez.
      *
      * @return Si el Pool ya fue instanciado anteriormente, devuelve la
      * referencia al creado anteriormente. De lo contrario, crea una nueva
      * instancia.
      */
     public static Pool getInstance() {
-        if (instance == null) {
-            instance = new Pool();
+        Pool pool = instance;
+        if (pool == null) {
+            instanceLock.lock();
+            try {
+                pool = instance;
+                if (pool == null) {
+                    pool = new Pool();
+                    instance = pool;
+                }
+            } finally {
+                instanceLock.unlock();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Crea un pool por cada replica configurada. Con la base de datos embebida
+     * se usan las de embeddedReplicaUrls, que son bases de datos H2 aparte.
+     *
+     * @return las replicas, o null si no hay ninguna.
+     */
+    private ReadReplicas createReplicas() {
+        boolean embedded = Boolean.parseBoolean(this.configFile.getString("embedded").trim());
+        String urls = this.configFile.getString(embedded ? "embeddedReplicaUrls" : "replicaUrls").trim();
+        if (urls.isEmpty()) {
+            return null;
         }
+        String[] list = urls.split(",");
+        Pool[] pools = new Pool[list.length];
+        for (int i = 0; i < list.length; i++) {
+            pools[i] = new Pool(this.configFile, list[i].trim());
+        }
+        logger.info("Lecturas repartidas entre " + pools.length + " replicas");
+        return new ReadReplicas(this, pools, Long.valueOf(this.configFile.getString("readYourWritesWindow")),
+                Long.valueOf(this.configFile.getString("replicaCheckInterval")));
+    }
+
+    /**
+     * Este metodo pretende devolver el pool sin crearlo, para consultar sus
+     * contadores.
+     *
+     * @return el pool, o null si todavia no se ha creado.
+     */
+    public static Pool getInstanceIfCreated() {
         return instance;
     }
 
     /**
-     * Este metodo pretende obtener una conexion con la base de datos y añadir
-     * la conexion a la coleccion pool.
+     * Este metodo pretende obtener una conexion libre del pool. Si no hay
+     * ninguna y no se ha llegado al maximo se crea una nueva; si se ha llegado
+     * al maximo se espera a que se devuelva alguna, como mucho borrowTimeout o
+     * lo que le quede a la peticion del hilo.
      *
-     * @return Devuelve una conexion de la coleccion pool.
+     * @return Devuelve una conexion valida con la base de datos.
      * @throws lib.exceptions.ConnectException Si hay un error con el acceso a
-     * la base de datos.
+     * la base de datos o se agota el tiempo de espera.
      */
-    public synchronized Connection getConnection() throws ConnectException {
-        if (pool.isEmpty()) {
-            try {
-                con = DriverManager.getConnection(this.url, this.user, this.passwd);
-            } catch (SQLException ex) {
-                logger.info("");
-                throw new ConnectException("Error al crear una conexion con la base de datos");
+    public Connection getConnection() throws ConnectException {
+        long start = System.nanoTime();
+        if (RequestDeadline.remainingNanos() <= 0) {
+            throw new ConnectException("Se ha agotado el plazo de la peticion");
+        }
+        waiters.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(RequestDeadline.limitMillis(borrowTimeout), TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                logger.info("Tiempo de espera agotado al pedir una conexion del pool");
+                throw new ConnectException("No hay conexiones libres con la base de datos");
             }
-            pool.push(con);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ConnectException("Interrumpido al pedir una conexion con la base de datos");
+        } finally {
+            waiters.decrementAndGet();
         }
-        return pool.pop();
+        return take(start);
+    }
+
+    /**
+     * Este metodo pretende obtener una conexion sin esperar: si todas estan
+     * prestadas no se espera a que se devuelva ninguna. Es para las replicas,
+     * que si estan ocupadas pasan la lectura a la siguiente en vez de tenerla
+     * esperando borrowTimeout en cada una.
+     *
+     * @return una conexion valida, o null si estan todas prestadas.
+     * @throws ConnectException Si no se consigue abrir una conexion con la
+     * base de datos.
+     */
+    Connection tryGetConnection() throws ConnectException {
+        long start = System.nanoTime();
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+        return take(start);
+    }
+
+    /**
+     * Presta una conexion libre o una nueva, con el permiso ya cogido.
+     */
+    private Connection take(long start) throws ConnectException {
+        try {
+            PooledConnection pc = takeIdle();
+            if (pc == null) {
+                pc = create();
+            }
+            active.incrementAndGet();
+            borrows.increment();
+            long waited = System.nanoTime() - start;
+            waitNanos.add(waited);
+            Metrics.recordPoolWait(waited);
+            return pc.getConnection();
+        } catch (ConnectException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Este metodo pretende obtener una conexion para leer los datos de un
+     * login. Si hay replicas se usa una de ellas, salvo que el login se haya
+     * escrito hace poco (ver {@link #markWritten(String)}) o que no quede
+     * ninguna sana; sin replicas es lo mismo que {@link #getConnection()}.
+     *
+     * @param login login que se va a leer
+     * @return Devuelve una conexion valida, que se devuelve con
+     * releaseConnection.
+     * @throws lib.exceptions.ConnectException Si hay un error con el acceso a
+     * la base de datos o se agota el tiempo de espera.
+     */
+    public Connection getReadConnection(String login) throws ConnectException {
+        return replicas == null ? getConnection() : replicas.getConnection(login);
+    }
+
+    /**
+     * Este metodo pretende avisar de que se acaba de escribir un login en el
+     * primario, para que sus lecturas no vayan a las replicas hasta que les
+     * haya dado tiempo a tenerlo.
+     *
+     * @param login login escrito
+     */
+    public void markWritten(String login) {
+        if (replicas != null) {
+            replicas.markWritten(login);
+        }
+    }
+
+    /**
+     * Este metodo pretende avisar de que una lectura ha fallado. Si la
+     * conexion es de una replica y lo que ha fallado es la conexion (SQLState
+     * de la clase 08, o la conexion ya no es valida), la replica se deja de
+     * usar hasta que se recupere y sus conexiones se cierran al devolverlas.
+     * Una query que se pasa del plazo de la peticion no tira la replica.
+     *
+     * @param con conexion con la que ha fallado la lectura
+     * @param ex error de la lectura
+     * @return si la conexion era de una replica, y por tanto se puede repetir
+     * la lectura en el primario.
+     */
+    public boolean reportReadFailure(Connection con, SQLException ex) {
+        Pool replica = replicas == null ? null : replicas.owner(con);
+        if (replica == null) {
+            return false;
+        }
+        if (!(ex instanceof SQLTimeoutException) && (isConnectionFailure(ex) || !replica.isValid(con))) {
+            replicas.markDown(con);
+        }
+        return true;
+    }
+
+    /**
+     * Este metodo pretende saber si un error es de la conexion con la base de
+     * datos y no de la query, por su SQLState.
+     *
+     * @param ex error de JDBC
+     * @return si el SQLState es de la clase 08 (excepcion de conexion).
+     */
+    static boolean isConnectionFailure(SQLException ex) {
+        for (SQLException e = ex; e != null; e = e.getNextException()) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("08")) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -80,8 +338,134 @@ public class Pool {
      *
      * @param con Conexion devuelta por el usuario.
      */
-    public synchronized void releaseConnection(Connection con) {
-        pool.push(con);
+    public void releaseConnection(Connection con) {
+        PooledConnection pc = connections.get(con);
+        if (pc == null) {
+            Pool replica = replicas == null ? null : replicas.owner(con);
+            if (replica != null) {
+                replica.releaseConnection(con);
+                return;
+            }
+            logger.info("Se ha devuelto una conexion que no es del pool");
+            return;
+        }
+        active.decrementAndGet();
+        if (closed || suspended.get() || pc.age(System.nanoTime()) > maxLifetimeNanos) {
+            discard(pc);
+        } else {
+            pc.touch();
+            idle.offerFirst(pc);
+        }
+        permits.release();
+    }
+
+    /**
+     * Este metodo pretende preparar una query en una conexion prestada por el
+     * pool, reutilizando el statement si ya se preparo antes en esa conexion.
+     * Al cerrar el statement vuelve a la cache en vez de cerrarse. La query
+     * no puede durar mas que lo que le queda a la peticion del hilo.
+     *
+     * @param con conexion prestada por el pool
+     * @param sql query a preparar
+     * @return el statement preparado
+     * @throws SQLException Si hay un error al preparar la query.
+     */
+    public PreparedStatement prepareStatement(Connection con, String sql) throws SQLException {
+        PooledConnection pc = pooled(con);
+        PreparedStatement stmt = pc == null ? con.prepareStatement(sql)
+                : pc.getStatements().get(PreparedStatement.class, sql, () -> con.prepareStatement(sql));
+        return withDeadline(stmt);
+    }
+
+    /**
+     * Este metodo pretende preparar la llamada a un procedimiento en una
+     * conexion prestada por el pool, reutilizandola si ya se preparo antes en
+     * esa conexion. Al cerrarla vuelve a la cache en vez de cerrarse. La
+     * llamada no puede durar mas que lo que le queda a la peticion del hilo.
+     *
+     * @param con conexion prestada por el pool
+     * @param sql llamada al procedimiento
+     * @return la llamada preparada
+     * @throws SQLException Si hay un error al preparar la llamada.
+     */
+    public CallableStatement prepareCall(Connection con, String sql) throws SQLException {
+        PooledConnection pc = pooled(con);
+        CallableStatement stmt = pc == null ? con.prepareCall(sql)
+                : pc.getStatements().get(CallableStatement.class, sql, () -> con.prepareCall(sql));
+        return withDeadline(stmt);
+    }
+
+    /**
+     * Busca una conexion prestada en este pool o en el de su replica.
+     */
+    private PooledConnection pooled(Connection con) {
+        PooledConnection pc = connections.get(con);
+        if (pc == null && replicas != null) {
+            Pool replica = replicas.owner(con);
+            if (replica != null) {
+                pc = replica.connections.get(con);
+            }
+        }
+        return pc;
+    }
+
+    /**
+     * Este metodo pretende limitar la duracion de un statement a lo que le
+     * queda a la peticion del hilo. Se pone siempre, tambien sin plazo, porque
+     * el statement de la cache guarda el limite de su ultimo uso.
+     *
+     * @param stmt statement recien preparado o sacado de la cache
+     * @return el mismo statement
+     * @throws SQLException Si el driver no admite el limite; el statement se
+     * cierra antes de lanzarla.
+     */
+    private static <T extends Statement> T withDeadline(T stmt) throws SQLException {
+        try {
+            stmt.setQueryTimeout(RequestDeadline.queryTimeoutSeconds());
+        } catch (SQLException ex) {
+            stmt.close();
+            throw ex;
+        }
+        return stmt;
+    }
+
+    /**
+     * Este metodo pretende preparar de antemano unas querys en las conexiones
+     * minimas, para que las primeras peticiones ya encuentren los statements
+     * en la cache de su conexion. Las conexiones se piden todas a la vez para
+     * que sean distintas. Tambien se preparan en las replicas; la que falla se
+     * deja de usar.
+     *
+     * @param queries querys a preparar con prepareStatement
+     * @param calls llamadas a procedimientos a preparar con prepareCall
+     * @return numero de conexiones preparadas.
+     * @throws ConnectException Si hay un error con la base de datos.
+     */
+    public int warmUp(String[] queries, String[] calls) throws ConnectException {
+        List<Connection> borrowed = new ArrayList<>(minSize);
+        try {
+            for (int i = 0; i < minSize; i++) {
+                borrowed.add(getConnection());
+            }
+            for (Connection con : borrowed) {
+                for (String sql : queries) {
+                    prepareStatement(con, sql).close();
+                }
+                for (String sql : calls) {
+                    prepareCall(con, sql).close();
+                }
+            }
+        } catch (SQLException ex) {
+            throw new ConnectException("Error al preparar las querys: " + ex.getMessage());
+        } finally {
+            for (Connection con : borrowed) {
+                releaseConnection(con);
+            }
+        }
+        if (replicas != null) {
+            replicas.warmUp(queries, calls);
+        }
+        return borrowed.size();
     }
 
     /**
@@ -89,14 +473,283 @@ public class Pool {
      * servidor se vaya a cerrar.
      */
     public static void shutDownPool() {
-        for (Connection c : pool) {
+        Pool pool = instance;
+        if (pool != null) {
+            pool.close();
+        }
+        logger.info("Se ha cerrado todas las conexiones del pool");
+    }
+
+    /**
+     * @return las replicas de lectura, o null si no hay.
+     */
+    public ReadReplicas getReadReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return numero de conexiones prestadas en este momento.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return numero de conexiones libres en el pool.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return numero de hilos esperando una conexion.
+     */
+    public int getWaiterCount() {
+        return waiters.get();
+    }
+
+    /**
+     * @return numero maximo de conexiones del pool.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return numero de conexiones prestadas desde que se arranco el pool.
+     */
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    /**
+     * @return nanosegundos esperados en total para conseguir una conexion.
+     */
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * @return numero de peticiones que no consiguieron conexion a tiempo.
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return numero de conexiones creadas desde que se arranco el pool.
+     */
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    /**
+     * @return numero de conexiones cerradas por no ser validas o por viejas.
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return numero de statements reutilizados de la cache.
+     */
+    public long getStatementCacheHits() {
+        return statementHits.sum();
+    }
+
+    /**
+     * @return numero de statements que se han tenido que preparar.
+     */
+    public long getStatementCacheMisses() {
+        return statementMisses.sum();
+    }
+
+    /**
+     * Este metodo pretende contar los statements de la cache que no se han
+     * cerrado, en las conexiones libres. Solo tiene sentido con el pool
+     * parado, porque la cache de una conexion prestada la usa otro hilo.
+     *
+     * @return numero de statements sin cerrar.
+     */
+    int getStatementsInUse() {
+        int count = 0;
+        for (PooledConnection pc : idle) {
+            count += pc.getStatements().inUse();
+        }
+        return count;
+    }
+
+    /**
+     * Saca la conexion libre usada mas recientemente, descartando las que ya
+     * no sirven.
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            long now = System.nanoTime();
+            if (pc.age(now) > maxLifetimeNanos) {
+                discard(pc);
+            } else if (pc.idleTime(now) <= idleValidationNanos) {
+                return pc;
+            } else if (isValid(pc)) {
+                pc.touch();
+                return pc;
+            } else {
+                logger.info("Conexion del pool no valida, se descarta");
+                discard(pc);
+            }
+        }
+        return null;
+    }
+
+    private PooledConnection create() throws ConnectException {
+        try {
+            PooledConnection pc = new PooledConnection(DriverManager.getConnection(this.url, this.user, this.passwd),
+                    new StatementCache(statementCacheSize, statementHits, statementMisses));
+            connections.put(pc.getConnection(), pc);
+            created.increment();
+            return pc;
+        } catch (SQLException ex) {
+            logger.info("Error al crear una conexion con la base de datos");
+            throw new ConnectException("Error al crear una conexion con la base de datos");
+        }
+    }
+
+    private boolean isValid(PooledConnection pc) {
+        return isValid(pc.getConnection());
+    }
+
+    private boolean isValid(Connection con) {
+        try {
+            return con.isValid(validationTimeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pc) {
+        connections.remove(pc.getConnection());
+        evicted.increment();
+        pc.getStatements().closeAll();
+        try {
+            pc.getConnection().close();
+        } catch (SQLException ex) {
+            logger.info("Error al cerrar la conexion del pool");
+        }
+    }
+
+    /**
+     * Abre conexiones hasta tener el minimo, siempre que haya sitio.
+     */
+    private void fillToMinimum() {
+        while (!closed && !suspended.get() && connections.size() < minSize && permits.tryAcquire()) {
             try {
-                c.close();
-            } catch (SQLException ex) {
-                logger.info("Error al cerrar la conexion del pool");
+                idle.offerLast(create());
+            } catch (ConnectException ex) {
+                logger.info("No se han podido abrir las conexiones minimas del pool");
+                return;
+            } finally {
+                permits.release();
             }
         }
-        logger.info("Se ha cerrado todas las conexiones del pool");
+    }
+
+    /**
+     * Revisa las conexiones libres: cierra las viejas, valida las que llevan
+     * tiempo sin usarse y vuelve a abrir las que falten hasta el minimo.
+     */
+    private void maintain() {
+        int count = idle.size();
+        for (int i = 0; i < count && !closed; i++) {
+            if (!permits.tryAcquire()) {
+                break;
+            }
+            try {
+                PooledConnection pc = takeIdle();
+                if (pc == null) {
+                    break;
+                }
+                idle.offerLast(pc);
+            } finally {
+                permits.release();
+            }
+        }
+        fillToMinimum();
+    }
+
+    /**
+     * Este metodo pretende saber si una conexion prestada es de este pool.
+     *
+     * @param con conexion prestada
+     * @return si la conexion es de este pool.
+     */
+    boolean owns(Connection con) {
+        return connections.containsKey(con);
+    }
+
+    /**
+     * Este metodo pretende dejar de usar el pool de una replica caida: cierra
+     * las conexiones libres y las prestadas se cierran al devolverlas.
+     *
+     * @return si el pool estaba en uso.
+     */
+    boolean suspend() {
+        if (!suspended.compareAndSet(false, true)) {
+            return false;
+        }
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            discard(pc);
+        }
+        return true;
+    }
+
+    /**
+     * Este metodo pretende volver a usar el pool de una replica recuperada.
+     */
+    void resume() {
+        suspended.set(false);
+    }
+
+    /**
+     * @return si el pool se ha dejado de usar por estar caida su replica.
+     */
+    boolean isSuspended() {
+        return suspended.get();
+    }
+
+    /**
+     * Este metodo pretende comprobar que la base de datos responde, con una
+     * conexion nueva si el pool esta suspendido.
+     *
+     * @return si se ha conseguido una conexion valida.
+     */
+    boolean ping() {
+        Connection con;
+        try {
+            con = getConnection();
+        } catch (ConnectException ex) {
+            return false;
+        }
+        try {
+            return con.isValid(validationTimeout);
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            releaseConnection(con);
+        }
+    }
+
+    void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        if (replicas != null) {
+            replicas.close();
+        }
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            discard(pc);
+        }
     }
 
 }
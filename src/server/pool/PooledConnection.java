@@ -0,0 +1,60 @@
+package server.pool;
+
+import java.sql.Connection;
+
+/**
+ * Esta clase pretende guardar una conexion del pool junto con sus statements
+ * preparados y los datos que hacen falta para saber si sigue siendo valida:
+ * cuando se creo y cuando se uso por ultima vez.
+ *
+ * @author Steven Arce
+ */
+class PooledConnection {
+
+    private final Connection connection;
+    private final StatementCache statements;
+    private final long createdAt;
+    private volatile long lastUsed;
+
+    /**
+     * Constructor de la conexion del pool.
+     *
+     * @param connection conexion con la base de datos
+     * @param statements cache de statements de la conexion
+     */
+    PooledConnection(Connection connection, StatementCache statements) {
+        this.connection = connection;
+        this.statements = statements;
+        this.createdAt = System.nanoTime();
+        this.lastUsed = createdAt;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    StatementCache getStatements() {
+        return statements;
+    }
+
+    /**
+     * @param now hora actual en nanosegundos
+     * @return nanosegundos desde que se creo la conexion.
+     */
+    long age(long now) {
+        return now - createdAt;
+    }
+
+    /**
+     * @param now hora actual en nanosegundos
+     * @return nanosegundos desde que se devolvio la conexion al pool.
+     */
+    long idleTime(long now) {
+        return now - lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+}
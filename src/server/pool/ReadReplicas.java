@@ -0,0 +1,247 @@
+package server.pool;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import lib.exceptions.ConnectException;
+import server.RequestDeadline;
+
+/**
+ * Esta clase pretende repartir las lecturas entre las replicas de solo
+ * lectura de la base de datos, cada una con su propio Pool. Se van turnando
+ * las replicas sanas; la que no consigue abrir una conexion o pierde la
+ * conexion en una query se marca como caida y se deja de usar hasta que un
+ * hilo la vuelve a comprobar cada checkInterval milisegundos. Una replica con
+ * todas sus conexiones prestadas no esta caida: la lectura pasa a la
+ * siguiente sin esperar. Si no queda ninguna sana y libre se lee del
+ * primario.
+ * <p>
+ * Las replicas van por detras del primario, asi que despues de escribir un
+ * login (ver {@link #markWritten(String)}) sus lecturas van al primario
+ * durante readYourWritesWindow milisegundos, para que un cliente que se acaba
+ * de registrar pueda iniciar sesion enseguida. Esto solo vale para las
+ * escrituras hechas en este mismo servidor.
+ *
+ * @author Steven Arce
+ */
+public class ReadReplicas {
+
+    private final static Logger logger = Logger.getLogger("server.pool");
+    private final Pool primary;
+    private final Pool[] replicas;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+    private final long windowNanos;
+    private final ScheduledExecutorService checker;
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    /**
+     * Constructor de las replicas, arranca el hilo que comprueba las caidas.
+     *
+     * @param primary pool del primario
+     * @param replicas pools de las replicas, al menos una
+     * @param readYourWritesWindow milisegundos que las lecturas de un login
+     * van al primario despues de escribirlo
+     * @param checkInterval milisegundos entre comprobaciones de las replicas
+     */
+    ReadReplicas(Pool primary, Pool[] replicas, long readYourWritesWindow, long checkInterval) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesWindow);
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-pool-replicas");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Este metodo pretende dar una conexion para leer los datos de un login:
+     * del primario si se ha escrito hace poco, o de la siguiente replica sana
+     * con alguna conexion libre.
+     *
+     * @param login login que se va a leer, o null si no importa
+     * @return una conexion de un pool, que se devuelve con
+     * Pool.releaseConnection.
+     * @throws ConnectException Si no se consigue conexion ni con las replicas
+     * ni con el primario.
+     */
+    Connection getConnection(String login) throws ConnectException {
+        //Sin plazo el primario contesta que se ha agotado, sin tocar las replicas
+        if (RequestDeadline.remainingNanos() > 0 && (login == null || !isRecentlyWritten(login))) {
+            int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+            for (int i = 0; i < replicas.length; i++) {
+                int r = (start + i) % replicas.length;
+                if (replicas[r].isSuspended()) {
+                    continue;
+                }
+                try {
+                    Connection con = replicas[r].tryGetConnection();
+                    if (con != null) {
+                        replicaReads.increment();
+                        return con;
+                    }
+                } catch (ConnectException ex) {
+                    markDown(r);
+                }
+            }
+        }
+        primaryReads.increment();
+        return primary.getConnection();
+    }
+
+    /**
+     * Este metodo pretende mandar al primario las lecturas de un login durante
+     * un rato, hasta que las replicas tengan lo que se acaba de escribir.
+     *
+     * @param login login escrito
+     */
+    void markWritten(String login) {
+        recentWrites.put(login, System.nanoTime() + windowNanos);
+    }
+
+    /**
+     * Este metodo pretende buscar el pool de la replica de una conexion.
+     *
+     * @param con conexion prestada
+     * @return el pool de la replica, o null si la conexion no es de ninguna.
+     */
+    Pool owner(Connection con) {
+        for (Pool replica : replicas) {
+            if (replica.owns(con)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Este metodo pretende dejar de usar la replica de una conexion que ha
+     * fallado.
+     *
+     * @param con conexion de la replica
+     */
+    void markDown(Connection con) {
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i].owns(con)) {
+                markDown(i);
+                return;
+            }
+        }
+    }
+
+    private void markDown(int r) {
+        if (replicas[r].suspend()) {
+            failovers.increment();
+            logger.warning("Replica " + r + " caida, sus lecturas van a las demas");
+        }
+    }
+
+    private boolean isRecentlyWritten(String login) {
+        Long until = recentWrites.get(login);
+        if (until == null) {
+            return false;
+        }
+        if (until - System.nanoTime() > 0) {
+            return true;
+        }
+        recentWrites.remove(login, until);
+        return false;
+    }
+
+    /**
+     * Vuelve a comprobar las replicas caidas y olvida las escrituras que ya
+     * han pasado la ventana.
+     */
+    private void check() {
+        for (int r = 0; r < replicas.length; r++) {
+            if (replicas[r].isSuspended() && replicas[r].ping()) {
+                replicas[r].resume();
+                logger.info("Replica " + r + " recuperada");
+            }
+        }
+        long now = System.nanoTime();
+        recentWrites.values().removeIf(until -> until - now <= 0);
+    }
+
+    /**
+     * Este metodo pretende cerrar las conexiones de todas las replicas y parar
+     * el hilo que las comprueba.
+     */
+    void close() {
+        checker.shutdownNow();
+        for (Pool replica : replicas) {
+            replica.close();
+        }
+    }
+
+    /**
+     * Este metodo pretende preparar de antemano unas querys en cada replica.
+     *
+     * @param queries querys a preparar con prepareStatement
+     * @param calls llamadas a procedimientos a preparar con prepareCall
+     */
+    void warmUp(String[] queries, String[] calls) {
+        for (int r = 0; r < replicas.length; r++) {
+            try {
+                replicas[r].warmUp(queries, calls);
+            } catch (ConnectException ex) {
+                markDown(r);
+            }
+        }
+    }
+
+    /**
+     * @return numero de replicas.
+     */
+    public int getReplicaCount() {
+        return replicas.length;
+    }
+
+    /**
+     * @param r numero de replica
+     * @return si la replica se esta usando.
+     */
+    public boolean isHealthy(int r) {
+        return !replicas[r].isSuspended();
+    }
+
+    /**
+     * @param r numero de replica
+     * @return el pool de la replica, para consultar sus contadores.
+     */
+    public Pool getReplica(int r) {
+        return replicas[r];
+    }
+
+    /**
+     * @return numero de lecturas que han ido al primario.
+     */
+    public long getPrimaryReadCount() {
+        return primaryReads.sum();
+    }
+
+    /**
+     * @return numero de lecturas que han ido a una replica.
+     */
+    public long getReplicaReadCount() {
+        return replicaReads.sum();
+    }
+
+    /**
+     * @return numero de veces que una replica se ha marcado como caida.
+     */
+    public long getFailoverCount() {
+        return failovers.sum();
+    }
+
+}
@@ -0,0 +1,200 @@
+package server.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende guardar los statements ya preparados de una conexion del
+ * pool, para no volver a preparar la misma query cada vez. Se guardan como
+ * mucho maxSize statements y, si hace falta sitio, se cierra el que lleve mas
+ * tiempo sin usarse.
+ * <p>
+ * Los statements se entregan envueltos: al cerrarlos no se cierran de verdad,
+ * solo se limpian sus parametros y lotes y vuelven a la cache. Una conexion solo la usa
+ * un hilo a la vez, asi que la cache no necesita bloqueos.
+ *
+ * @author Steven Arce
+ */
+class StatementCache {
+
+    private final static Logger logger = Logger.getLogger("server.pool");
+    private final int maxSize;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    /**
+     * Crea una sentencia en la base de datos.
+     *
+     * @param <T> tipo de statement
+     */
+    interface Preparer<T extends PreparedStatement> {
+
+        T prepare() throws SQLException;
+    }
+
+    /**
+     * Constructor de la cache.
+     *
+     * @param maxSize numero maximo de statements guardados, 0 para no guardar
+     * ninguno
+     * @param hits contador de statements encontrados en la cache
+     * @param misses contador de statements que se han tenido que preparar
+     */
+    StatementCache(int maxSize, LongAdder hits, LongAdder misses) {
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() > StatementCache.this.maxSize) {
+                    eldest.getValue().evict();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Este metodo pretende devolver el statement guardado para una query, o
+     * prepararlo y guardarlo si no estaba.
+     *
+     * @param <T> tipo de statement
+     * @param type interfaz del statement, PreparedStatement o
+     * CallableStatement
+     * @param sql query del statement
+     * @param preparer forma de preparar el statement si no esta guardado
+     * @return el statement; al cerrarlo vuelve a la cache
+     * @throws SQLException Si hay un error al preparar el statement.
+     */
+    <T extends PreparedStatement> T get(Class<T> type, String sql, Preparer<T> preparer) throws SQLException {
+        String key = type.getSimpleName() + ":" + sql;
+        CachedStatement entry = statements.get(key);
+        if (entry != null && !entry.inUse) {
+            hits.increment();
+            entry.inUse = true;
+            return type.cast(entry.proxy);
+        }
+        misses.increment();
+        T statement = preparer.prepare();
+        if (maxSize <= 0 || entry != null) {
+            //Sin cache, o la misma query ya se esta usando: statement normal
+            return statement;
+        }
+        entry = new CachedStatement(type, statement);
+        statements.put(key, entry);
+        entry.inUse = true;
+        return type.cast(entry.proxy);
+    }
+
+    /**
+     * Este metodo pretende cerrar todos los statements guardados, antes de
+     * cerrar su conexion.
+     */
+    void closeAll() {
+        Iterator<CachedStatement> it = statements.values().iterator();
+        while (it.hasNext()) {
+            it.next().evict();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return numero de statements guardados.
+     */
+    int size() {
+        return statements.size();
+    }
+
+    /**
+     * @return numero de statements guardados que se han entregado y todavia
+     * no se han cerrado.
+     */
+    int inUse() {
+        int count = 0;
+        for (CachedStatement entry : statements.values()) {
+            if (entry.inUse) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Statement guardado y su envoltorio.
+     */
+    private class CachedStatement implements InvocationHandler {
+
+        private final PreparedStatement statement;
+        private final Object proxy;
+        private boolean inUse;
+        private boolean evicted;
+
+        CachedStatement(Class<? extends PreparedStatement> type, PreparedStatement statement) {
+            this.statement = statement;
+            this.proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this);
+        }
+
+        /**
+         * Saca el statement de la cache. Si se esta usando se cerrara cuando
+         * lo cierre quien lo tiene.
+         */
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException ex) {
+                logger.info("Error al cerrar el preparedStatement");
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!inUse) {
+                        return null;
+                    }
+                    inUse = false;
+                    if (evicted) {
+                        closeQuietly();
+                    } else {
+                        try {
+                            statement.clearParameters();
+                            statement.clearBatch();
+                        } catch (SQLException ex) {
+                            statements.values().remove(this);
+                            evict();
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return !inUse || statement.isClosed();
+                default:
+                    try {
+                        return method.invoke(statement, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package server.security;
+
+/**
+ * Esta interfaz pretende separar como se guardan las contraseñas del resto
+ * del DAO, para poder cambiar de algoritmo o de coste sin tocarlo. Cada
+ * implementacion tiene que saber reconocer los valores guardados con otros
+ * formatos o costes, y decir si hay que volver a calcularlos.
+ *
+ * @author Steven Arce
+ */
+public interface PasswordHasher {
+
+    /**
+     * Este metodo pretende calcular el valor que se guarda en la base de
+     * datos para una contraseña.
+     *
+     * @param password contraseña en claro
+     * @return el valor a guardar
+     */
+    String hash(String password);
+
+    /**
+     * Este metodo pretende comprobar una contraseña contra el valor guardado,
+     * tardando lo mismo coincidan o no.
+     *
+     * @param password contraseña en claro recibida del cliente
+     * @param stored valor guardado en la base de datos
+     * @return true si la contraseña es correcta
+     */
+    boolean verify(String password, String stored);
+
+    /**
+     * Este metodo pretende saber si un valor guardado esta en un formato o
+     * con un coste distinto del actual, y hay que sustituirlo la proxima vez
+     * que se sepa la contraseña.
+     *
+     * @param stored valor guardado en la base de datos
+     * @return true si hay que volver a calcularlo
+     */
+    boolean needsRehash(String stored);
+
+}
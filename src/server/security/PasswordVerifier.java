@@ -0,0 +1,272 @@
+package server.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import lib.exceptions.TooManyUsersException;
+import server.RequestDeadline;
+
+/**
+ * Esta clase pretende calcular y comprobar contraseñas en un pool de hilos
+ * propio, del tamaño de los procesadores y con una cola acotada. Con un
+ * PasswordHasher caro, el trabajo de CPU queda aparte de los hilos que
+ * atienden a los clientes, que solo esperan el resultado; si la cola se
+ * llena, se contesta al cliente con TOOMANYUSERSEXCEPTION en vez de acumular
+ * trabajo.
+ * <p>
+ * Quien espera una contraseña no espera mas que el plazo de su peticion: si
+ * se agota se cancela si no ha empezado y se contesta TOOMANYUSERSEXCEPTION.
+ * <p>
+ * Las contraseñas del registro masivo van a otro pool, con sus propios hilos
+ * de prioridad minima y su propia cola, para que una importacion no llene la
+ * cola de los inicios de sesion ni les quite los procesadores. Se dejan de
+ * esperar, y las que no han empezado no se calculan, cuando se agota el plazo
+ * de la peticion (ver server.RequestDeadline).
+ *
+ * @author Steven Arce
+ */
+public class PasswordVerifier {
+
+    private final PasswordHasher hasher;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor bulkExecutor;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Constructor del verificador con sus propios pools de hilos.
+     *
+     * @param hasher algoritmo de las contraseñas
+     * @param threads numero de hilos, 0 para uno por procesador
+     * @param queueSize numero maximo de contraseñas esperando
+     * @param bulkThreads numero de hilos del registro masivo, 0 para la mitad
+     * de los procesadores
+     * @param bulkQueueSize numero maximo de contraseñas del registro masivo
+     * esperando
+     */
+    public PasswordVerifier(PasswordHasher hasher, int threads, int queueSize, int bulkThreads, int bulkQueueSize) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.hasher = hasher;
+        this.executor = createExecutor("server-password-", threads > 0 ? threads : processors,
+                queueSize, Thread.NORM_PRIORITY);
+        this.bulkExecutor = createExecutor("server-password-bulk-",
+                bulkThreads > 0 ? bulkThreads : Math.max(1, processors / 2), bulkQueueSize, Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Constructor del verificador que trabaja en el hilo que lo llama, para
+     * algoritmos baratos.
+     *
+     * @param hasher algoritmo de las contraseñas
+     */
+    public PasswordVerifier(PasswordHasher hasher) {
+        this.hasher = hasher;
+        this.executor = null;
+        this.bulkExecutor = null;
+    }
+
+    /**
+     * Este metodo pretende calcular cuantas contraseñas pueden esperar en la
+     * cola sin que la ultima se pase del plazo de la peticion: los hilos por
+     * el numero de contraseñas que calcula cada uno en ese plazo, midiendo lo
+     * que tarda el algoritmo en esta maquina.
+     *
+     * @param hasher algoritmo de las contraseñas
+     * @param threads numero de hilos, 0 para uno por procesador
+     * @param deadlineMillis milisegundos que puede durar una peticion
+     * @return el tamaño de la cola, como poco el numero de hilos.
+     */
+    public static int queueSizeFor(PasswordHasher hasher, int threads, long deadlineMillis) {
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        //La primera vuelta carga clases y compila, no cuenta
+        hasher.hash("calentamiento");
+        long start = System.nanoTime();
+        hasher.hash("calentamiento");
+        long hashMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return (int) Math.max(size, Math.min(Integer.MAX_VALUE, size * deadlineMillis / hashMillis));
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int size, int queueSize, int priority) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, name + count.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(priority);
+                    return t;
+                });
+    }
+
+    /**
+     * Este metodo pretende comprobar una contraseña contra el valor guardado.
+     *
+     * @param password contraseña en claro recibida del cliente
+     * @param stored valor guardado en la base de datos
+     * @return true si la contraseña es correcta
+     * @throws TooManyUsersException Si hay demasiadas contraseñas esperando
+     * o se agota el plazo de la peticion antes de tenerla.
+     */
+    public boolean verify(String password, String stored) throws TooManyUsersException {
+        return run(() -> hasher.verify(password, stored));
+    }
+
+    /**
+     * Este metodo pretende calcular el valor que se guarda para una
+     * contraseña.
+     *
+     * @param password contraseña en claro
+     * @return el valor a guardar
+     * @throws TooManyUsersException Si hay demasiadas contraseñas esperando
+     * o se agota el plazo de la peticion antes de tenerla.
+     */
+    public String hash(String password) throws TooManyUsersException {
+        return run(() -> hasher.hash(password));
+    }
+
+    /**
+     * Este metodo pretende calcular a la vez los valores de varias
+     * contraseñas, repartidas entre los hilos del registro masivo. Las que no
+     * caben en la cola se quedan sin calcular en vez de rechazar todas, y si
+     * se agota el plazo de la peticion se cancelan las que faltan.
+     *
+     * @param passwords contraseñas en claro
+     * @return los valores a guardar, en el mismo orden, con null en las que
+     * no cabian en la cola o no se han calculado a tiempo.
+     */
+    public String[] hashAll(String[] passwords) {
+        String[] hashes = new String[passwords.length];
+        if (executor == null) {
+            for (int i = 0; i < passwords.length; i++) {
+                hashes[i] = hasher.hash(passwords[i]);
+            }
+            return hashes;
+        }
+        List<Future<String>> futures = new ArrayList<>(passwords.length);
+        for (String password : passwords) {
+            try {
+                futures.add(bulkExecutor.submit(() -> hasher.hash(password)));
+            } catch (RejectedExecutionException ex) {
+                rejected.increment();
+                futures.add(null);
+            }
+        }
+        for (int i = 0; i < passwords.length; i++) {
+            if (futures.get(i) == null) {
+                continue;
+            }
+            try {
+                hashes[i] = awaitUntilDeadline(futures.get(i));
+            } catch (TimeoutException ex) {
+                //El cliente ya no espera, no se calcula lo que falta
+                for (int j = i; j < passwords.length; j++) {
+                    if (futures.get(j) != null) {
+                        futures.get(j).cancel(false);
+                    }
+                }
+                break;
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @param stored valor guardado en la base de datos
+     * @return true si hay que volver a calcularlo con el algoritmo y coste
+     * actuales.
+     */
+    public boolean needsRehash(String stored) {
+        return hasher.needsRehash(stored);
+    }
+
+    /**
+     * Este metodo pretende dejar de aceptar trabajo.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            bulkExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @return numero de contraseñas esperando en la cola.
+     */
+    public int getQueueSize() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return numero de contraseñas rechazadas por la cola llena.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private <T> T run(Callable<T> task) throws TooManyUsersException {
+        if (executor == null) {
+            try {
+                return task.call();
+            } catch (Exception ex) {
+                throw propagate(ex);
+            }
+        }
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            throw new TooManyUsersException("Demasiadas contraseñas esperando");
+        }
+        try {
+            return awaitUntilDeadline(future);
+        } catch (TimeoutException ex) {
+            //Si no ha empezado no se calcula; si ya esta en marcha termina sola
+            future.cancel(false);
+            throw new TooManyUsersException("Se ha agotado el plazo de la peticion esperando la contraseña");
+        }
+    }
+
+    /**
+     * Espera el resultado como mucho lo que le queda a la peticion del hilo.
+     */
+    private static <T> T awaitUntilDeadline(Future<T> future) throws TimeoutException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long remaining = RequestDeadline.remainingNanos();
+                try {
+                    return remaining == Long.MAX_VALUE ? future.get()
+                            : future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ex) {
+                    //Se sigue esperando hasta el plazo
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    throw propagate(ex.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static RuntimeException propagate(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        return new IllegalStateException(ex);
+    }
+
+}
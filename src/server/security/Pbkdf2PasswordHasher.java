@@ -0,0 +1,97 @@
+package server.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Esta clase pretende guardar las contraseñas con PBKDF2-HMAC-SHA256 y una
+ * sal aleatoria por usuario. El coste es el numero de iteraciones: cuanto mas
+ * alto, mas caro es para un atacante probar contraseñas, pero tambien para el
+ * servidor comprobarlas. El valor guardado lleva el coste, asi que se pueden
+ * comprobar valores de costes anteriores:
+ * <pre>
+ * pbkdf2-sha256$iteraciones$sal$hash
+ * </pre>
+ * Los valores que no empiezan por pbkdf2-sha256$ son contraseñas en claro de
+ * antes de usar esta clase; se comprueban igual y se marcan para sustituirlos.
+ *
+ * @author Steven Arce
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    static final String PREFIX = "pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructor del hasher.
+     *
+     * @param iterations numero de iteraciones de PBKDF2 para los valores
+     * nuevos
+     */
+    public Pbkdf2PasswordHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("El numero de iteraciones tiene que ser positivo");
+        }
+        this.iterations = iterations;
+    }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + encoder.encodeToString(salt)
+                + "$" + encoder.encodeToString(derive(password, salt, iterations));
+    }
+
+    @Override
+    public boolean verify(String password, String stored) {
+        if (password == null || stored == null) {
+            return false;
+        }
+        if (!stored.startsWith(PREFIX)) {
+            return PlainPasswordHasher.equalsConstantTime(password, stored);
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[2]);
+            byte[] actual = derive(password, decoder.decode(parts[1]), Integer.parseInt(parts[0]));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException ex) {
+            //Valor guardado mal formado
+            return false;
+        }
+    }
+
+    @Override
+    public boolean needsRehash(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) {
+            return true;
+        }
+        int end = stored.indexOf('$', PREFIX.length());
+        return end < 0 || !Integer.toString(iterations).equals(stored.substring(PREFIX.length(), end));
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("PBKDF2 no disponible en esta JVM", ex);
+        }
+    }
+
+}
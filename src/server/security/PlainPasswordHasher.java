@@ -0,0 +1,60 @@
+package server.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende mantener el formato original, con las contraseñas
+ * guardadas en claro. Solo compara en tiempo constante.
+ * <p>
+ * Un valor que empieza por pbkdf2-sha256$ no es una contraseña en claro sino
+ * un hash de Pbkdf2PasswordHasher (por ejemplo, si se vuelve a PLAIN despues
+ * de usar PBKDF2). Nunca se da por buena, porque si no bastaria con mandar el
+ * hash leido de la base de datos para entrar, y se marca para sustituirla.
+ *
+ * @author Steven Arce
+ */
+public class PlainPasswordHasher implements PasswordHasher {
+
+    private final static Logger logger = Logger.getLogger("server.security.PlainPasswordHasher");
+
+    @Override
+    public String hash(String password) {
+        return password;
+    }
+
+    @Override
+    public boolean verify(String password, String stored) {
+        if (isHashed(stored)) {
+            logger.warning("Contraseña guardada con PBKDF2 y PASSWORDHASHER=PLAIN, no se puede comprobar");
+            return false;
+        }
+        return equalsConstantTime(password, stored);
+    }
+
+    @Override
+    public boolean needsRehash(String stored) {
+        return isHashed(stored);
+    }
+
+    private static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(Pbkdf2PasswordHasher.PREFIX);
+    }
+
+    /**
+     * Este metodo pretende comparar dos cadenas tardando lo mismo sin
+     * importar en que posicion se diferencian.
+     *
+     * @param a primera cadena
+     * @param b segunda cadena
+     * @return true si son iguales
+     */
+    static boolean equalsConstantTime(String a, String b) {
+        if (a == null || b == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Este paquete contiene el tratamiento de las contraseñas
+ */
+package server.security;
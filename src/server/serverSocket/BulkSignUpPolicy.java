@@ -0,0 +1,113 @@
+package server.serverSocket;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende decidir si se atiende una peticion de registro masivo.
+ * El servidor no tiene sesiones, asi que solo pueden hacerla los clientes de
+ * una lista de direcciones, pensada para los equipos de los administradores
+ * que migran usuarios; y cada peticion tiene un maximo de usuarios, para que
+ * una sola no pueda ocupar un hilo y las conexiones del pool durante minutos.
+ * <p>
+ * Una peticion binaria de BULKMAXUSERS usuarios no cabe en MAXFRAMESIZE, asi
+ * que los clientes de la lista pueden mandar tramas mas grandes (ver
+ * {@link #getMaxFrameSize(InetAddress, int)}); los demas siguen con
+ * MAXFRAMESIZE, que es lo que un cliente desconocido puede hacer reservar al
+ * servidor por conexion.
+ *
+ * @author Steven Arce
+ */
+public class BulkSignUpPolicy {
+
+    private final static Logger logger = Logger.getLogger("server.serverSocket.BulkSignUpPolicy");
+    /**
+     * Bytes que ocupa como mucho un usuario en una trama binaria, con login,
+     * email, nombre y contraseña del tamaño de las columnas (50 caracteres).
+     */
+    public static final int USER_FRAME_BYTES = 256;
+    //tipo de mensaje y numero de usuarios
+    private static final int BULK_FRAME_HEADER = 5;
+    private final int maxUsers;
+    private final Set<InetAddress> clients;
+
+    /**
+     * Constructor de la politica.
+     *
+     * @param maxUsers numero maximo de usuarios de una peticion
+     * @param clients direcciones de los clientes que pueden hacer registros
+     * masivos
+     */
+    public BulkSignUpPolicy(int maxUsers, Set<InetAddress> clients) {
+        this.maxUsers = maxUsers;
+        this.clients = new HashSet<>(clients);
+    }
+
+    /**
+     * Este metodo pretende crear la politica a partir del archivo de
+     * configuracion del servidor.
+     *
+     * @param configFile archivo de configuracion del servidor
+     * @return la politica.
+     */
+    public static BulkSignUpPolicy fromConfig(ResourceBundle configFile) {
+        Set<InetAddress> clients = new HashSet<>();
+        for (String client : configFile.getString("BULKSIGNUPCLIENTS").split(",")) {
+            if (client.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                clients.add(InetAddress.getByName(client.trim()));
+            } catch (UnknownHostException ex) {
+                logger.warning("Cliente de registro masivo desconocido: " + client.trim());
+            }
+        }
+        return new BulkSignUpPolicy(Integer.valueOf(configFile.getString("BULKMAXUSERS")), clients);
+    }
+
+    /**
+     * Este metodo pretende comprobar si se puede atender una peticion.
+     *
+     * @param request peticion de registro masivo
+     * @param client direccion remota del cliente
+     * @return el motivo por el que no se atiende, o null si se puede atender.
+     */
+    public BulkSignUpReply.Rejection check(BulkSignUpRequest request, InetAddress client) {
+        if (client == null || !clients.contains(client)) {
+            return BulkSignUpReply.Rejection.FORBIDDEN;
+        }
+        if (request.getUsers().size() > maxUsers) {
+            return BulkSignUpReply.Rejection.TOO_LARGE;
+        }
+        return null;
+    }
+
+    /**
+     * Este metodo pretende calcular la trama mas larga que se acepta de un
+     * cliente: la de una peticion de maxUsers usuarios para los clientes que
+     * pueden hacer registros masivos, y maxFrameSize para los demas.
+     *
+     * @param client direccion remota del cliente
+     * @param maxFrameSize longitud maxima de una trama (MAXFRAMESIZE)
+     * @return longitud maxima de una trama del cliente
+     */
+    public int getMaxFrameSize(InetAddress client, int maxFrameSize) {
+        if (client == null || !clients.contains(client)) {
+            return maxFrameSize;
+        }
+        long bulk = BULK_FRAME_HEADER + (long) maxUsers * USER_FRAME_BYTES;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(maxFrameSize, bulk));
+    }
+
+    /**
+     * @return numero maximo de usuarios de una peticion.
+     */
+    public int getMaxUsers() {
+        return maxUsers;
+    }
+
+}
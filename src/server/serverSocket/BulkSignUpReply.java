@@ -0,0 +1,85 @@
+package server.serverSocket;
+
+import java.io.Serializable;
+import lib.message.Msg;
+
+/**
+ * Esta clase pretende contestar a un BulkSignUpRequest con lo que ha pasado
+ * con cada usuario, en el mismo orden de la peticion: OK si se ha registrado,
+ * o el mismo error que habria devuelto su SIGNUP (USEREXISTEXCEPTION,
+ * CONNECTEXCEPTION, TOOMANYUSERSEXCEPTION...). Si la peticion entera se
+ * rechaza sin mirar los usuarios (ver BulkSignUpPolicy) no hay resultados y
+ * {@link #getRejection()} dice por que.
+ *
+ * @author Steven Arce
+ */
+public class BulkSignUpReply implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final Msg[] outcomes;
+    private final Rejection rejection;
+
+    /**
+     * Motivo por el que no se ha atendido una peticion de registro masivo.
+     */
+    public enum Rejection {
+        /**
+         * Tiene mas usuarios de los permitidos (BULKMAXUSERS).
+         */
+        TOO_LARGE,
+        /**
+         * El cliente no puede hacer registros masivos (BULKSIGNUPCLIENTS).
+         */
+        FORBIDDEN
+    }
+
+    /**
+     * Constructor de la respuesta.
+     *
+     * @param outcomes resultado de cada usuario
+     */
+    public BulkSignUpReply(Msg[] outcomes) {
+        this.outcomes = outcomes.clone();
+        this.rejection = null;
+    }
+
+    /**
+     * Constructor de la respuesta a una peticion rechazada, sin resultados.
+     *
+     * @param rejection motivo del rechazo
+     */
+    public BulkSignUpReply(Rejection rejection) {
+        this.outcomes = new Msg[0];
+        this.rejection = rejection;
+    }
+
+    /**
+     * @return el motivo por el que no se ha atendido la peticion, o null si
+     * se ha atendido.
+     */
+    public Rejection getRejection() {
+        return rejection;
+    }
+
+    /**
+     * @return resultado de cada usuario, en el orden de la peticion.
+     */
+    public Msg[] getOutcomes() {
+        return outcomes.clone();
+    }
+
+    /**
+     * @param outcome resultado
+     * @return numero de usuarios con ese resultado.
+     */
+    public int count(Msg outcome) {
+        int count = 0;
+        for (Msg o : outcomes) {
+            if (o == outcome) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,40 @@
+package server.serverSocket;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import lib.dataModel.User;
+
+/**
+ * Esta clase pretende pedir el registro de muchos usuarios en una sola
+ * peticion, para migrar cuentas sin mandar un SIGNUP por cada una. Se manda
+ * por el mismo socket que los Message, en lugar de uno de ellos, y se
+ * contesta con un BulkSignUpReply. Con el formato binario la peticion entera
+ * tiene que caber en MAXFRAMESIZE, asi que conviene mandar los usuarios de
+ * unos cientos en unos cientos.
+ *
+ * @author Steven Arce
+ */
+public class BulkSignUpRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final List<User> users;
+
+    /**
+     * Constructor de la peticion.
+     *
+     * @param users usuarios a registrar, con su contraseña en claro
+     */
+    public BulkSignUpRequest(List<User> users) {
+        this.users = new ArrayList<>(users);
+    }
+
+    /**
+     * @return usuarios a registrar, en el orden en que se mandaron.
+     */
+    public List<User> getUsers() {
+        return Collections.unmodifiableList(users);
+    }
+
+}
@@ -0,0 +1,68 @@
+package server.serverSocket;
+
+import java.util.concurrent.Semaphore;
+import server.admission.AdmissionController;
+
+/**
+ * Esta clase pretende controlar el numero maximo de clientes atendidos a la
+ * vez. Cada cliente aceptado ocupa un hueco que se libera en cuanto se le ha
+ * mandado la respuesta. Es segura para usarla desde varios hilos. Es el
+ * control de clientes de un servidor solo (ADMISSION=LOCAL).
+ *
+ * @author Steven Arce
+ */
+public class ConnectionSlots implements AdmissionController {
+
+    private final Semaphore slots;
+    private final int maxSlots;
+
+    /**
+     * Constructor de los huecos de conexion.
+     *
+     * @param maxSlots numero maximo de clientes atendidos a la vez
+     */
+    public ConnectionSlots(int maxSlots) {
+        this.maxSlots = maxSlots;
+        this.slots = new Semaphore(maxSlots);
+    }
+
+    /**
+     * Este metodo pretende ocupar un hueco sin esperar.
+     *
+     * @return true si habia un hueco libre, false si se ha superado el limite.
+     */
+    @Override
+    public boolean tryAcquire() {
+        return slots.tryAcquire();
+    }
+
+    /**
+     * Este metodo pretende liberar un hueco ocupado anteriormente.
+     */
+    @Override
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * @return numero de clientes que se estan atendiendo.
+     */
+    @Override
+    public int getInUse() {
+        return maxSlots - slots.availablePermits();
+    }
+
+    /**
+     * @return numero maximo de clientes atendidos a la vez.
+     */
+    @Override
+    public int getMaxSlots() {
+        return maxSlots;
+    }
+
+    @Override
+    public void shutdown() {
+        //No tiene nada reservado fuera de este servidor
+    }
+
+}
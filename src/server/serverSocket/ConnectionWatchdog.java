@@ -0,0 +1,96 @@
+package server.serverSocket;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Esta clase pretende cortar las conexiones del modo con un Worker por cliente
+ * que se pasan de su plazo. Un socket bloqueante solo tiene limite de tiempo
+ * en cada lectura, no en la peticion entera ni al escribir, asi que un cliente
+ * que manda o lee de byte en byte podria tener ocupado un hilo para siempre.
+ * Cada Worker apunta aqui cuando se agota la fase en la que esta, y un hilo
+ * revisa los Worker cada checkInterval milisegundos y cierra el socket de los
+ * que se han pasado, lo que despierta al hilo bloqueado con una excepcion.
+ * Apuntar un plazo solo escribe dos campos del Worker, no crea objetos.
+ * <p>
+ * Como conoce todas las conexiones abiertas, al cerrar el servidor tambien se
+ * usa para cerrar las que estan esperando la siguiente peticion.
+ *
+ * @author Steven Arce
+ */
+public class ConnectionWatchdog {
+
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService checker;
+
+    /**
+     * Constructor del vigilante, arranca el hilo que revisa los plazos.
+     *
+     * @param checkInterval milisegundos entre revisiones
+     */
+    public ConnectionWatchdog(long checkInterval) {
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Este metodo pretende empezar a vigilar un Worker.
+     *
+     * @param worker tarea de un cliente
+     */
+    void register(Worker worker) {
+        workers.add(worker);
+    }
+
+    /**
+     * Este metodo pretende dejar de vigilar un Worker que ya ha terminado.
+     *
+     * @param worker tarea de un cliente
+     */
+    void unregister(Worker worker) {
+        workers.remove(worker);
+    }
+
+    /**
+     * Este metodo pretende cortar los Worker que se han pasado de su plazo.
+     */
+    private void check() {
+        long now = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.expireIfLate(now);
+        }
+    }
+
+    /**
+     * Este metodo pretende cerrar las conexiones que estan esperando la
+     * siguiente peticion, sin tocar las que tienen una en curso. Se llama
+     * cuando el servidor se esta cerrando.
+     */
+    public void closeIdle() {
+        for (Worker worker : workers) {
+            worker.closeIfIdle();
+        }
+    }
+
+    /**
+     * @return numero de conexiones vigiladas.
+     */
+    public int getWatchedCount() {
+        return workers.size();
+    }
+
+    /**
+     * Este metodo pretende parar el hilo que revisa los plazos.
+     */
+    public void shutdown() {
+        checker.shutdownNow();
+    }
+
+}
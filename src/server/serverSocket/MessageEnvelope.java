@@ -0,0 +1,45 @@
+package server.serverSocket;
+
+import java.io.Serializable;
+import lib.message.Message;
+
+/**
+ * Esta clase pretende envolver un Message con un identificador, para que un
+ * cliente que manda varios mensajes seguidos por el mismo socket pueda saber a
+ * que peticion corresponde cada respuesta. La respuesta lleva el mismo
+ * identificador que la peticion.
+ *
+ * @author Steven Arce
+ */
+public class MessageEnvelope implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final long id;
+    private final Message message;
+
+    /**
+     * Constructor del sobre.
+     *
+     * @param id identificador de la peticion, elegido por el cliente
+     * @param message mensaje de la peticion o de la respuesta
+     */
+    public MessageEnvelope(long id, Message message) {
+        this.id = id;
+        this.message = message;
+    }
+
+    /**
+     * @return identificador de la peticion.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return mensaje de la peticion o de la respuesta.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+}
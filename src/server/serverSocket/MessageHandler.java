@@ -0,0 +1,169 @@
+package server.serverSocket;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import lib.dataModel.User;
+import lib.exceptions.ConnectException;
+import lib.exceptions.IncorrectEmailException;
+import lib.exceptions.IncorrectPasswordException;
+import lib.exceptions.IncorrectUserException;
+import lib.exceptions.PasswordDontMatchException;
+import lib.exceptions.TooManyUsersException;
+import lib.exceptions.UserDontExistException;
+import lib.exceptions.UserExistException;
+import lib.message.Message;
+import lib.message.Msg;
+import server.Server;
+import server.codec.StaticReplies;
+import server.controller.BulkSignUpable;
+import server.factory.LogicableFactory;
+import server.metrics.Metrics;
+
+/**
+ * Esta clase pretende atender un mensaje del cliente, sin importar por que
+ * medio haya llegado, haciendo la peticion correspondiente en la base de datos.
+ * La usan tanto el Worker como el servidor NIO.
+ *
+ * @author Steven Arce
+ */
+public class MessageHandler {
+
+    private final static Logger logger = Logger.getLogger("server.serverSocket.Hilo");
+
+    /**
+     * Este metodo pretende atender una peticion leida del cliente, que puede
+     * ser un Message suelto, un MessageEnvelope o un BulkSignUpRequest.
+     * @param request objeto recibido del cliente
+     * @param client direccion remota del cliente, para ver si puede hacer
+     * registros masivos
+     * @return la respuesta, del mismo tipo que la peticion o un
+     * BulkSignUpReply
+     * @throws ClassCastException Si el objeto recibido no es una peticion.
+     */
+    public static Object handleRequest(Object request, InetAddress client) {
+        if (request instanceof BulkSignUpRequest) {
+            BulkSignUpRequest bulk = (BulkSignUpRequest) request;
+            BulkSignUpPolicy policy = Server.getBulkSignUpPolicy();
+            //Sin servidor no hay politica y no se permite a nadie
+            BulkSignUpReply.Rejection rejection = policy == null
+                    ? BulkSignUpReply.Rejection.FORBIDDEN : policy.check(bulk, client);
+            if (rejection != null) {
+                logger.info("Registro masivo de " + bulk.getUsers().size() + " usuarios de " + client
+                        + " rechazado: " + rejection);
+                Metrics.countRejection(Metrics.Rejection.BULK_SIGNUP);
+                return new BulkSignUpReply(rejection);
+            }
+            return handleBulk(bulk);
+        }
+        if (request instanceof MessageEnvelope) {
+            MessageEnvelope envelope = (MessageEnvelope) request;
+            return new MessageEnvelope(envelope.getId(), handle(envelope.getMessage()));
+        }
+        return handle((Message) request);
+    }
+
+    /**
+     * Este metodo pretende hacer la peticion del mensaje en la base de datos y
+     * preparar la respuesta para el cliente. Las respuestas de error no llevan
+     * usuario y son las de StaticReplies, que ya estan codificadas.
+     * @param msg mensaje recibido del cliente
+     * @return el mensaje de respuesta
+     */
+    public static Message handle(Message msg) {
+        Msg error;
+        try {
+            User usu = null;
+            LogicableFactory log = new LogicableFactory();
+            switch (msg.getMsg()) {
+                case SIGNUP:
+                    usu = log.getDao().signUp(msg.getUser());
+                    break;
+                case SIGNIN:
+                    usu = log.getDao().signIn(msg.getUser());
+                    break;
+            }
+            logger.fine("Se ha hecho la peticion en la base de datos");
+            msg.setMsg(Msg.OK);
+            msg.setUser(usu);
+            Metrics.countReply(Msg.OK);
+            return msg;
+        } catch (IncorrectUserException ex) {
+            logger.fine("Usuario invalido");
+            error = Msg.INCORRECTUSEREXCEPTION;
+        } catch (IncorrectPasswordException ex) {
+            logger.fine("La contraseña no existe en la base de datos");
+            error = Msg.INCORRECTPASSWORDEXCEPTION;
+        } catch (IncorrectEmailException ex) {
+            logger.fine("Email no valido");
+            error = Msg.INCORRECTEMAILEXCEPTION;
+        } catch (UserExistException ex) {
+            logger.fine("El usuario ya existe");
+            error = Msg.USEREXISTEXCEPTION;
+        } catch (PasswordDontMatchException ex) {
+            logger.fine("La contraseña no coincide");
+            error = Msg.PASSWORDDONTMATCHEXCEPTION;
+        } catch (ConnectException ex) {
+            logger.fine("Se ha producido un error con la base de datos");
+            error = Msg.CONNECTEXCEPTION;
+        } catch (UserDontExistException ex) {
+            logger.fine("El usuario no existe");
+            error = Msg.USERDONTEXISTEXCEPTION;
+        } catch (TooManyUsersException ex) {
+            logger.fine("Se ha superado el limite maximo de clientes");
+            error = Msg.TOOMANYUSERSEXCEPTION;
+        }
+        Metrics.countReply(error);
+        return StaticReplies.get(error);
+    }
+
+    /**
+     * Este metodo pretende registrar todos los usuarios de una peticion de
+     * registro masivo.
+     * @param request usuarios a registrar
+     * @return el resultado de cada usuario
+     */
+    public static BulkSignUpReply handleBulk(BulkSignUpRequest request) {
+        BulkSignUpable dao = (BulkSignUpable) new LogicableFactory().getDao();
+        Msg[] outcomes = dao.signUpAll(request.getUsers());
+        logger.fine(() -> "Registro masivo de " + outcomes.length + " usuarios hecho");
+        return new BulkSignUpReply(outcomes);
+    }
+
+    /**
+     * Este metodo pretende preparar la respuesta a una peticion que no se
+     * atiende porque el servidor o el cliente han superado su limite. Es
+     * TOOMANYUSERSEXCEPTION, del mismo tipo que la peticion para que el
+     * cliente la pueda relacionar con ella.
+     * @param request objeto recibido del cliente
+     * @return la respuesta de rechazo
+     */
+    public static Object reject(Object request) {
+        Metrics.countReply(Msg.TOOMANYUSERSEXCEPTION);
+        if (request instanceof BulkSignUpRequest) {
+            Msg[] outcomes = new Msg[((BulkSignUpRequest) request).getUsers().size()];
+            Arrays.fill(outcomes, Msg.TOOMANYUSERSEXCEPTION);
+            return new BulkSignUpReply(outcomes);
+        }
+        if (request instanceof MessageEnvelope) {
+            return new MessageEnvelope(((MessageEnvelope) request).getId(),
+                    StaticReplies.get(Msg.TOOMANYUSERSEXCEPTION));
+        }
+        return StaticReplies.get(Msg.TOOMANYUSERSEXCEPTION);
+    }
+
+    /**
+     * Este metodo pretende saber el tipo de una peticion o de una respuesta.
+     * El de la peticion hay que leerlo antes de atenderla, porque al atenderla
+     * se cambia por el tipo de la respuesta.
+     * @param message Message suelto o MessageEnvelope
+     * @return el tipo del mensaje, o null si no es un mensaje.
+     */
+    public static Msg typeOf(Object message) {
+        if (message instanceof MessageEnvelope) {
+            message = ((MessageEnvelope) message).getMessage();
+        }
+        return message instanceof Message ? ((Message) message).getMsg() : null;
+    }
+
+}
@@ -0,0 +1,129 @@
+package server.serverSocket;
+
+import java.net.InetAddress;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Esta clase pretende limitar cuantas peticiones puede hacer cada cliente por
+ * segundo, con un cubo de fichas por cada direccion remota. Cada peticion
+ * gasta una ficha y las fichas se van recuperando con el tiempo, de modo que
+ * un cliente puede hacer rafagas cortas pero no abusar del servidor.
+ *
+ * @author Steven Arce
+ */
+public class RateLimiter {
+
+    private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final double capacity;
+    private final double refillPerNano;
+    private final long idleNanos;
+    private final LongAdder limited = new LongAdder();
+    private final AtomicLong nextCleanup;
+
+    /**
+     * Constructor del limitador.
+     *
+     * @param capacity numero maximo de peticiones seguidas de un cliente
+     * @param refillPerSecond fichas que recupera cada cliente por segundo
+     * @throws IllegalArgumentException Si la capacidad es menor que 1 o las
+     * fichas por segundo no son positivas.
+     */
+    public RateLimiter(int capacity, double refillPerSecond) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("RATELIMITCAPACITY tiene que ser al menos 1: " + capacity);
+        }
+        if (!(refillPerSecond > 0) || Double.isInfinite(refillPerSecond)) {
+            throw new IllegalArgumentException("RATELIMITREFILL tiene que ser mayor que 0: " + refillPerSecond);
+        }
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / 1_000_000_000d;
+        //Un cubo que lleva este tiempo sin usarse ya esta lleno y se puede borrar;
+        //acotado para que now + idleNanos no desborde
+        this.idleNanos = (long) Math.min(Math.ceil(capacity / refillPerNano), Long.MAX_VALUE / 4);
+        this.nextCleanup = new AtomicLong(System.nanoTime() + idleNanos);
+    }
+
+    /**
+     * Este metodo pretende crear el limitador a partir del archivo de
+     * configuracion del servidor.
+     *
+     * @param configFile archivo de configuracion del servidor
+     * @return el limitador, o null si esta desactivado.
+     */
+    public static RateLimiter fromConfig(ResourceBundle configFile) {
+        if (!Boolean.parseBoolean(configFile.getString("RATELIMITENABLED").trim())) {
+            return null;
+        }
+        return new RateLimiter(Integer.valueOf(configFile.getString("RATELIMITCAPACITY")),
+                Double.valueOf(configFile.getString("RATELIMITREFILL")));
+    }
+
+    /**
+     * Este metodo pretende gastar una ficha del cliente.
+     *
+     * @param address direccion remota del cliente
+     * @return true si el cliente puede ser atendido, false si ha superado su
+     * limite.
+     */
+    public boolean tryAcquire(InetAddress address) {
+        long now = System.nanoTime();
+        long cleanupAt = nextCleanup.get();
+        //Solo limpia el hilo que consigue mover la siguiente limpieza
+        if (now - cleanupAt > 0 && nextCleanup.compareAndSet(cleanupAt, now + idleNanos)) {
+            cleanUp(now);
+        }
+        Bucket bucket = buckets.computeIfAbsent(address, a -> new Bucket(now));
+        if (bucket.tryTake(now)) {
+            return true;
+        }
+        limited.increment();
+        return false;
+    }
+
+    /**
+     * @return numero de peticiones rechazadas por el limitador.
+     */
+    public long getLimitedCount() {
+        return limited.sum();
+    }
+
+    /**
+     * Borra los cubos de clientes que llevan tiempo sin conectarse, para que
+     * el mapa no crezca sin limite.
+     */
+    private void cleanUp(long now) {
+        buckets.values().removeIf(b -> b.idleSince(now) > idleNanos);
+    }
+
+    /**
+     * Cubo de fichas de un cliente.
+     */
+    private class Bucket {
+
+        private double tokens;
+        private long last;
+
+        Bucket(long now) {
+            this.tokens = capacity;
+            this.last = now;
+        }
+
+        synchronized boolean tryTake(long now) {
+            tokens = Math.min(capacity, tokens + (now - last) * refillPerNano);
+            last = now;
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized long idleSince(long now) {
+            return now - last;
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package server.serverSocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende guardar como se configuran los sockets del servidor y
+ * los plazos de cada conexion:
+ * <ul>
+ * <li>READTIMEOUT: milisegundos que tiene un cliente para mandar una peticion
+ * entera, contando desde que se le acepta o desde que se agota la espera del
+ * keep-alive.</li>
+ * <li>WRITETIMEOUT: milisegundos que tiene un cliente para recoger una
+ * respuesta.</li>
+ * <li>REQUESTDEADLINE: milisegundos que puede durar una peticion hasta que se
+ * termina de escribir la respuesta, contando como la latencia: desde que se
+ * acepta al cliente o, en una conexion abierta, desde que llega la peticion.
+ * Lo que le queda limita tambien la espera por una conexion del pool y las
+ * querys (ver server.RequestDeadline).</li>
+ * <li>BULKDEADLINE: lo mismo para una peticion de registro masivo, que
+ * calcula cientos de contraseñas y necesita mucho mas.</li>
+ * <li>ACCEPTBACKLOG: conexiones que el sistema deja esperando a que se
+ * acepten.</li>
+ * <li>TCPNODELAY: si se mandan las respuestas sin esperar a juntarlas con
+ * otras (algoritmo de Nagle desactivado).</li>
+ * <li>SENDBUFFERSIZE y RECEIVEBUFFERSIZE: tamaño en bytes de los buffers del
+ * socket.</li>
+ * </ul>
+ * Un 0 deja el valor sin limite o, en los buffers y el backlog, el del
+ * sistema.
+ *
+ * @author Steven Arce
+ */
+public class SocketSettings {
+
+    private final static Logger logger = Logger.getLogger("server.serverSocket");
+    private final int readTimeout;
+    private final int writeTimeout;
+    private final int requestDeadline;
+    private final int bulkDeadline;
+    private final int acceptBacklog;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+
+    /**
+     * Constructor de la configuracion de los sockets.
+     *
+     * @param readTimeout milisegundos para mandar una peticion, 0 sin limite
+     * @param writeTimeout milisegundos para recoger una respuesta, 0 sin
+     * limite
+     * @param requestDeadline milisegundos que puede durar una peticion, 0 sin
+     * limite
+     * @param bulkDeadline milisegundos que puede durar una peticion de registro
+     * masivo, 0 sin limite
+     * @param acceptBacklog conexiones pendientes de aceptar, 0 el del sistema
+     * @param tcpNoDelay si se desactiva el algoritmo de Nagle
+     * @param sendBufferSize bytes del buffer de envio, 0 el del sistema
+     * @param receiveBufferSize bytes del buffer de recepcion, 0 el del sistema
+     */
+    public SocketSettings(int readTimeout, int writeTimeout, int requestDeadline, int bulkDeadline,
+            int acceptBacklog, boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize) {
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        this.requestDeadline = requestDeadline;
+        this.bulkDeadline = bulkDeadline;
+        this.acceptBacklog = acceptBacklog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Este metodo pretende crear la configuracion de los sockets a partir del
+     * archivo de configuracion del servidor.
+     *
+     * @param configFile archivo de configuracion del servidor
+     * @return la configuracion de los sockets.
+     */
+    public static SocketSettings fromConfig(ResourceBundle configFile) {
+        return new SocketSettings(Integer.valueOf(configFile.getString("READTIMEOUT")),
+                Integer.valueOf(configFile.getString("WRITETIMEOUT")),
+                Integer.valueOf(configFile.getString("REQUESTDEADLINE")),
+                Integer.valueOf(configFile.getString("BULKDEADLINE")),
+                Integer.valueOf(configFile.getString("ACCEPTBACKLOG")),
+                Boolean.parseBoolean(configFile.getString("TCPNODELAY").trim()),
+                Integer.valueOf(configFile.getString("SENDBUFFERSIZE")),
+                Integer.valueOf(configFile.getString("RECEIVEBUFFERSIZE")));
+    }
+
+    /**
+     * Este metodo pretende abrir el ServerSocket del servidor. El buffer de
+     * recepcion se pone antes de abrir el puerto para que lo hereden los
+     * sockets aceptados.
+     *
+     * @param port puerto en el que se aceptan conexiones
+     * @return el ServerSocket ya escuchando.
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            if (receiveBufferSize > 0) {
+                serverSocket.setReceiveBufferSize(receiveBufferSize);
+            }
+            serverSocket.bind(new InetSocketAddress(port), acceptBacklog);
+        } catch (IOException ex) {
+            serverSocket.close();
+            throw ex;
+        }
+        return serverSocket;
+    }
+
+    /**
+     * Este metodo pretende abrir el puerto del servidor NIO.
+     *
+     * @param server canal del servidor sin abrir el puerto
+     * @param port puerto en el que se aceptan conexiones
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public void bind(ServerSocketChannel server, int port) throws IOException {
+        if (receiveBufferSize > 0) {
+            server.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        server.bind(new InetSocketAddress(port), acceptBacklog);
+    }
+
+    /**
+     * Este metodo pretende configurar un socket recien aceptado. Si el cliente
+     * ya se ha ido no se hace nada, el error saldra al usar el socket.
+     *
+     * @param socket socket del cliente
+     */
+    public void apply(Socket socket) {
+        try {
+            socket.setTcpNoDelay(tcpNoDelay);
+            if (sendBufferSize > 0) {
+                socket.setSendBufferSize(sendBufferSize);
+            }
+        } catch (SocketException ex) {
+            logger.log(Level.FINE, "No se ha podido configurar el socket del cliente", ex);
+        }
+    }
+
+    /**
+     * Este metodo pretende configurar un canal recien aceptado por el
+     * servidor NIO.
+     *
+     * @param channel canal del cliente
+     */
+    public void apply(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            if (sendBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "No se ha podido configurar el canal del cliente", ex);
+        }
+    }
+
+    /**
+     * Este metodo pretende calcular cuando se agota un plazo.
+     *
+     * @param startNanos instante de System.nanoTime() en el que empieza
+     * @param millis duracion del plazo, 0 sin limite
+     * @return instante de System.nanoTime() en el que se agota, o
+     * Long.MAX_VALUE si no tiene limite.
+     */
+    public static long deadline(long startNanos, int millis) {
+        return millis > 0 ? startNanos + TimeUnit.MILLISECONDS.toNanos(millis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return milisegundos para mandar una peticion, 0 sin limite.
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @return milisegundos para recoger una respuesta, 0 sin limite.
+     */
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * @return milisegundos que puede durar una peticion, 0 sin limite.
+     */
+    public int getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    /**
+     * @param request peticion leida del cliente
+     * @return milisegundos que puede durar esa peticion, BULKDEADLINE si es
+     * un registro masivo, 0 sin limite.
+     */
+    public int getRequestDeadline(Object request) {
+        return request instanceof BulkSignUpRequest ? bulkDeadline : requestDeadline;
+    }
+
+}
@@ -1,132 +1,359 @@
 package server.serverSocket;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import lib.dataModel.User;
-import lib.exceptions.ConnectException;
-import lib.exceptions.IncorrectEmailException;
-import lib.exceptions.IncorrectPasswordException;
-import lib.exceptions.IncorrectUserException;
-import lib.exceptions.PasswordDontMatchException;
-import lib.exceptions.TooManyUsersException;
-import lib.exceptions.UserDontExistException;
-import lib.exceptions.UserExistException;
-import lib.message.Message;
 import lib.message.Msg;
+import server.Lifecycle;
+import server.RequestDeadline;
+import server.Server;
 import static server.Server.returnThread;
-import server.factory.LogicableFactory;
+import server.codec.Handshake;
+import server.codec.MessageStream;
+import server.codec.StaticReplies;
+import server.logging.AccessLog;
+import server.metrics.Metrics;
 
 /**
  * Esta clase pretende recibir y enviar objetos de tipo Message entre el cliente
- * y el servidor mediante este hilo.
+ * y el servidor. Es una tarea que ejecuta uno de los hilos del WorkerPool.
+ * Si esta activado el modo keep-alive, el cliente puede mandar varios mensajes
+ * por el mismo socket, sueltos o dentro de un MessageEnvelope para poder
+ * relacionar cada respuesta con su peticion. Mientras espera el siguiente
+ * mensaje la conexion no ocupa hueco de cliente: lo devuelve al contestar y
+ * lo vuelve a pedir al llegar la siguiente peticion, y si no hay hueco
+ * contesta TOOMANYUSERSEXCEPTION y cierra.
+ * <p>
+ * Cada fase de la conexion tiene su plazo (ver SocketSettings): leer la
+ * peticion, atenderla y escribir la respuesta. Si hay un ConnectionWatchdog,
+ * el Worker le apunta cuando se agota la fase en la que esta y el vigilante
+ * cierra el socket si se pasa.
+ * <p>
+ * Cuando el servidor se esta cerrando (ver server.Lifecycle) se termina la
+ * peticion en curso y no se esperan mas; las conexiones que ya estaban
+ * esperando la siguiente las cierra el ConnectionWatchdog.
  * 
  * @author Steven Arce
  */
-public class Worker extends Thread {
+public class Worker implements Runnable {
 
     private final static Logger logger = Logger.getLogger("server.serverSocket.Hilo");
     private Socket socket;
-    private boolean maxThreads;
-    private Message msg;
-    ObjectInputStream ois = null;
-    ObjectOutputStream oos = null;
-    private User usu;
+    private int idleTimeout;
+    private int maxRequests;
+    private Object reply;
+    private Msg requestType;
+    private SocketAddress remote;
+    private long requestStart;
+    private Handshake handshake;
+    private byte[] start;
+    private MessageStream stream;
+    private SocketSettings settings;
+    private ConnectionWatchdog watchdog;
+    private long deadlineAt = Long.MAX_VALUE;
+    private volatile long watchUntil = Long.MAX_VALUE;
+    private volatile Metrics.Timeout watchReason;
+    private volatile Metrics.Timeout expired;
+    private volatile boolean idle;
+    private boolean holdsSlot = true;
+    private volatile boolean drained;
 
     /**
-     * Constructor para el hilo Worker.
+     * Constructor para la tarea Worker con el modo keep-alive.
      * @param clientSocket socket del cliente
-     * @param maxThreads numero maximo de clientes permitidos
+     * @param handshake negociacion del formato de los mensajes
+     * @param settings plazos de la conexion
+     * @param watchdog vigilante que corta la conexion si se pasa de un plazo,
+     * o null si no hay plazos
+     * @param idleTimeout milisegundos que se espera el siguiente mensaje antes
+     * de cerrar la conexion, 0 para esperar sin limite
+     * @param maxRequests numero maximo de mensajes por conexion
+     * @param acceptedAt instante de System.nanoTime() en el que se acepto al
+     * cliente, desde el que se mide la latencia de la primera peticion
      */
-    public Worker(Socket clientSocket, boolean maxThreads) {
+    public Worker(Socket clientSocket, Handshake handshake, SocketSettings settings, ConnectionWatchdog watchdog,
+            int idleTimeout, int maxRequests, long acceptedAt) {
         this.socket = clientSocket;
-        this.maxThreads = maxThreads;
+        this.requestStart = acceptedAt;
+        this.remote = clientSocket.getRemoteSocketAddress();
+        this.handshake = handshake;
+        this.settings = settings;
+        this.watchdog = watchdog;
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = maxRequests;
     }
 
     /**
-     * Este metodo pretende leer el mensaje recibido por el cliente, si no se ha
-     * superado el numero maximo de clientes permitidos, se hara una peticion a 
-     * la base de datos y mandara un mensaje diciendo que se ha hecho correctamente.
-     * En caso de haberse superado el limite, devolvera un mensaje al cliente 
-     * diciendo que se ha superado el limite de clientes.
+     * Constructor para la tarea Worker de un cliente antiguo que llega por el
+     * servidor NIO, al que ya se le ha mandado la cabecera de la
+     * serializacion de Java (ver Handshake.openJava). El servidor NIO no le
+     * ha dado hueco de cliente, lo pide al llegar la primera peticion.
+     * @param clientSocket socket del cliente, en modo bloqueante
+     * @param handshake negociacion del formato de los mensajes
+     * @param start bytes ya leidos del cliente, empezando por su cabecera
+     * @param settings plazos de la conexion
+     * @param watchdog vigilante que corta la conexion si se pasa de un plazo,
+     * o null si no hay plazos
+     * @param idleTimeout milisegundos que se espera el siguiente mensaje antes
+     * de cerrar la conexion, 0 para esperar sin limite
+     * @param maxRequests numero maximo de mensajes por conexion
+     * @param acceptedAt instante de System.nanoTime() en el que se acepto al
+     * cliente, desde el que se mide la latencia de la primera peticion
+     */
+    public Worker(Socket clientSocket, Handshake handshake, byte[] start, SocketSettings settings,
+            ConnectionWatchdog watchdog, int idleTimeout, int maxRequests, long acceptedAt) {
+        this(clientSocket, handshake, settings, watchdog, idleTimeout, maxRequests, acceptedAt);
+        this.start = start;
+        this.holdsSlot = false;
+    }
+
+    /**
+     * Este metodo pretende contestar a un cliente que no se puede atender
+     * porque se ha superado el limite de clientes. Se ejecuta en el hilo que
+     * acepta conexiones, sin leer el mensaje del cliente, para que rechazar
+     * sea lo mas barato posible: la respuesta ya esta codificada con la
+     * cabecera del stream (ver StaticReplies) y se manda con un solo write.
+     * @param clientSocket socket del cliente rechazado
+     */
+    public static void reject(Socket clientSocket) {
+        try (Socket s = clientSocket) {
+            s.getOutputStream().write(StaticReplies.java(Msg.TOOMANYUSERSEXCEPTION));
+        } catch (IOException ex) {
+            logger.info("Error al rechazar al cliente");
+        }
+    }
+
+    /**
+     * Este metodo pretende leer los mensajes recibidos por el cliente, hacer la
+     * peticion a la base de datos y mandar un mensaje diciendo que se ha hecho
+     * correctamente. En modo keep-alive sigue leyendo mensajes hasta que el
+     * cliente cierra el socket, pasa el tiempo de espera o se llega al maximo
+     * de mensajes por conexion.
      */
     @Override
     public void run() {
+        if (watchdog != null) {
+            watchdog.register(this);
+        }
+        int readTimeout = settings.getReadTimeout();
         try {
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
-            msg = (Message) ois.readObject();
-            logger.info("Se ha leido el objeto recibido");
-            if (!maxThreads) {
-                LogicableFactory log = new LogicableFactory();
-                switch (msg.getMsg()) {
-                    case SIGNUP:
-                        usu = log.getDao().signUp(msg.getUser());
-                        break;
-                    case SIGNIN:
-                        usu = log.getDao().signIn(msg.getUser());
+            //La primera peticion tiene readTimeout desde que se acepto al cliente, sin limite con 0
+            socket.setSoTimeout(readTimeout);
+            watch(SocketSettings.deadline(requestStart, readTimeout), Metrics.Timeout.READ);
+            stream = start == null ? handshake.open(socket) : handshake.openJava(socket, start);
+            int requests = 0;
+            while (requests < maxRequests) {
+                if (requests > 0) {
+                    idle = true;
+                    //El hueco queda para otros clientes mientras no llega la siguiente
+                    holdsSlot = false;
+                    returnThread();
+                    if (Lifecycle.isDraining()) {
+                        //El servidor se esta cerrando, no se esperan mas peticiones
                         break;
+                    }
+                    //Se espera el keep-alive y, si empieza a llegar, readTimeout mas para leerla entera
+                    socket.setSoTimeout(idleTimeout);
+                    watch(idleTimeout > 0 && readTimeout > 0
+                            ? SocketSettings.deadline(System.nanoTime(), idleTimeout + readTimeout)
+                            : Long.MAX_VALUE, Metrics.Timeout.READ);
+                }
+                Object request;
+                try {
+                    request = stream.read();
+                } catch (EOFException ex) {
+                    //El cliente ha terminado
+                    break;
+                } catch (SocketTimeoutException ex) {
+                    //El cliente lleva demasiado tiempo sin mandar nada
+                    if (requests == 0) {
+                        Metrics.countTimeout(Metrics.Timeout.READ);
+                    }
+                    break;
+                }
+                idle = false;
+                logger.fine("Se ha leido el objeto recibido");
+                if (!holdsSlot && !Server.getAdmissionController().tryAcquire()) {
+                    logger.fine("Peticion rechazada por el limite de conexiones");
+                    Metrics.countRejection(Metrics.Rejection.CONNECTIONS);
+                    rejectRequest(request, requests);
+                    break;
+                }
+                holdsSlot = true;
+                RateLimiter rateLimiter = Server.getRateLimiter();
+                if (rateLimiter != null && !rateLimiter.tryAcquire(socket.getInetAddress())) {
+                    //Cada peticion gasta una ficha, tambien las de una conexion abierta
+                    logger.fine("Peticion rechazada por el limite de peticiones por segundo");
+                    Metrics.countRejection(Metrics.Rejection.RATE_LIMIT);
+                    rejectRequest(request, requests);
+                    break;
+                }
+                if (requests > 0) {
+                    //En una conexion abierta se mide desde que llega la peticion
+                    requestStart = System.nanoTime();
+                }
+                requests++;
+                requestType = MessageHandler.typeOf(request);
+                deadlineAt = SocketSettings.deadline(requestStart, settings.getRequestDeadline(request));
+                watch(deadlineAt, Metrics.Timeout.DEADLINE);
+                if (deadlineAt != Long.MAX_VALUE) {
+                    RequestDeadline.set(deadlineAt);
                 }
-                logger.info("Se ha hecho la peticion en la base de datos");
-                msg.setMsg(Msg.OK);
-                msg.setUser(usu);
+                try {
+                    reply = MessageHandler.handleRequest(request, socket.getInetAddress());
+                } finally {
+                    RequestDeadline.clear();
+                }
+                if (requests < maxRequests) {
+                    writeReply();
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            //No ha llegado ni el principio de la primera peticion
+            Metrics.countTimeout(Metrics.Timeout.READ);
+            logger.fine("Conexion cerrada, el cliente no ha mandado nada");
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            if (expired != null) {
+                logger.fine(() -> "Conexion cortada por el plazo " + expired);
+            } else if (drained) {
+                logger.fine("Conexion cerrada al cerrar el servidor");
             } else {
-                msg = new Message();
-                msg.setMsg(Msg.TOOMANYUSERSEXCEPTION);
-                logger.info("Se ha superado el limite maximo de clientes");
+                Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
             }
-        } catch (IOException | ClassNotFoundException ex) {
-            Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IncorrectUserException ex) {
-            logger.info("Usuario invalido");
-            msg.setMsg(Msg.INCORRECTUSEREXCEPTION);
-        } catch (IncorrectPasswordException ex) {
-            logger.info("La contraseña no existe en la base de datos");
-            msg.setMsg(Msg.INCORRECTPASSWORDEXCEPTION);
-        } catch (IncorrectEmailException ex) {
-            logger.info("Email no valido");
-            msg.setMsg(Msg.INCORRECTEMAILEXCEPTION);
-        } catch (UserExistException ex) {
-            logger.info("El usuario ya existe");
-            msg.setMsg(Msg.USEREXISTEXCEPTION);
-        } catch (PasswordDontMatchException ex) {
-            logger.info("La contraseña no coincide");
-            msg.setMsg(Msg.PASSWORDDONTMATCHEXCEPTION);
-        } catch (ConnectException ex) {
-            logger.info("Se ha producido un error con la base de datos");
-            msg.setMsg(Msg.CONNECTEXCEPTION);
-        } catch (UserDontExistException ex) {
-            logger.info("El usuario no existe");
-            msg.setMsg(Msg.USERDONTEXISTEXCEPTION);
-        } catch (TooManyUsersException ex) {
-            logger.info("Se ha superado el limite maximo de clientes");
         } finally {
             closeReadWriteObject();
         }
     }
 
     /**
-     * Este metodo pretende devolver la respuesta del servidor al cliente mediante
-     * un mensaje. Ademas de cerrar el Output, Input y el socket del cliente.
+     * Este metodo pretende dejar como respuesta pendiente el rechazo de una
+     * peticion, que se manda al cerrar la conexion.
+     * @param request peticion rechazada
+     * @param requests peticiones ya atendidas en esta conexion
+     */
+    private void rejectRequest(Object request, int requests) {
+        if (requests > 0) {
+            requestStart = System.nanoTime();
+        }
+        requestType = MessageHandler.typeOf(request);
+        deadlineAt = Long.MAX_VALUE;
+        reply = MessageHandler.reject(request);
+    }
+
+    /**
+     * Este metodo pretende mandar la respuesta pendiente al cliente, con
+     * writeTimeout o lo que le quede a la peticion, lo que sea menor.
+     * @throws IOException Si hay un error al escribir en el socket.
+     */
+    private void writeReply() throws IOException {
+        logger.fine("Escribiendo el objeto para mandarlo al cliente");
+        long writeUntil = SocketSettings.deadline(System.nanoTime(), settings.getWriteTimeout());
+        if (writeUntil < deadlineAt) {
+            watch(writeUntil, Metrics.Timeout.WRITE);
+        } else {
+            watch(deadlineAt, Metrics.Timeout.DEADLINE);
+        }
+        stream.write(reply);
+        AccessLog.request(remote, requestType, MessageHandler.typeOf(reply), requestStart);
+        reply = null;
+        logger.fine("Devolviendo el objeto al cliente");
+    }
+
+    /**
+     * Este metodo pretende devolver la ultima respuesta del servidor al cliente
+     * mediante un mensaje. El hueco del cliente, si lo tiene, se libera en
+     * cuanto se ha mandado la respuesta, y despues se cierran el Output, Input
+     * y el socket del cliente.
      */
     public void closeReadWriteObject() {
         try {
-            logger.info("Escribiendo el objeto para mandarlo al cliente");
-            oos.writeObject(msg);
-            logger.info("Devolviendo el objeto al cliente");
-            oos.close();
-            ois.close();
-            if (!maxThreads) {
-                this.sleep(10000);
+            if (stream != null && reply != null && expired == null) {
+                writeReply();
+            }
+        } catch (IOException ex) {
+            if (expired != null) {
+                logger.fine(() -> "Conexion cortada por el plazo " + expired);
+            } else {
+                Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } finally {
+            if (watchdog != null) {
+                watchdog.unregister(this);
+            }
+            if (holdsSlot) {
+                holdsSlot = false;
                 returnThread();
             }
-            socket.close();
-            logger.info("Conexion cerrada");
-        } catch (InterruptedException | IOException ex) {
+        }
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (IOException ex) {
             Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            try {
+                socket.close();
+                logger.fine("Conexion cerrada");
+            } catch (IOException ex) {
+                Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Este metodo pretende apuntar cuando se agota la fase en la que esta la
+     * conexion.
+     * @param until instante de System.nanoTime() en el que se agota, o
+     * Long.MAX_VALUE si no tiene limite
+     * @param reason motivo que se cuenta si se agota
+     */
+    private void watch(long until, Metrics.Timeout reason) {
+        if (watchdog != null) {
+            watchReason = reason;
+            watchUntil = until;
+        }
+    }
+
+    /**
+     * Este metodo pretende cerrar la conexion si esta esperando la siguiente
+     * peticion. Lo llama el ConnectionWatchdog al cerrar el servidor; la
+     * lectura bloqueada del Worker termina con una excepcion.
+     */
+    void closeIfIdle() {
+        if (!idle) {
+            return;
+        }
+        drained = true;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            logger.fine("Error al cerrar la conexion");
+        }
+    }
+
+    /**
+     * Este metodo pretende cortar la conexion si se ha pasado del plazo de su
+     * fase. Lo llama el hilo del ConnectionWatchdog; cerrar el socket hace que
+     * la lectura o escritura bloqueada del Worker termine con una excepcion.
+     * @param now instante actual de System.nanoTime()
+     */
+    void expireIfLate(long now) {
+        long until = watchUntil;
+        if (until == Long.MAX_VALUE || now - until < 0 || expired != null) {
+            return;
+        }
+        Metrics.Timeout reason = watchReason;
+        expired = reason;
+        Metrics.countTimeout(reason);
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            logger.fine("Error al cortar la conexion");
         }
     }
 
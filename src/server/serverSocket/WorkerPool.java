@@ -0,0 +1,314 @@
+package server.serverSocket;
+
+import java.util.ResourceBundle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase pretende atender a los clientes con un numero limitado de hilos
+ * reutilizables y una cola acotada, en vez de crear un hilo por cada conexion.
+ * Ademas, guarda contadores para saber lo saturado que esta el pool.
+ * <p>
+ * Si la JVM lo permite (Java 21 o superior) se puede usar el modo VIRTUAL, en
+ * el que cada tarea va en un hilo virtual. Los hilos virtuales son baratos,
+ * pero lo que hacen (conexiones del pool, contraseñas) no, asi que tambien se
+ * limitan: como mucho puede haber a la vez tantas tareas como hilos y sitios
+ * en la cola tendria el pool de plataforma (WORKERMAXSIZE + WORKERQUEUESIZE),
+ * y con el resto se aplica la misma politica de rechazo.
+ *
+ * @author Steven Arce
+ */
+public class WorkerPool {
+
+    private final static Logger logger = Logger.getLogger("server.serverSocket.WorkerPool");
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor platform;
+    //Tareas que quedan por admitir en modo VIRTUAL, null con hilos de plataforma
+    private final Semaphore virtualPermits;
+    private final int virtualMaxTasks;
+    private final RejectPolicy policy;
+    private final int queueCapacity;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    /**
+     * Forma de ejecutar las tareas.
+     */
+    public enum ExecutionMode {
+        /**
+         * Hilos de plataforma reutilizables, con cola acotada.
+         */
+        PLATFORM,
+        /**
+         * Un hilo virtual por tarea. Si la JVM no los tiene, se usa PLATFORM.
+         */
+        VIRTUAL,
+        /**
+         * VIRTUAL si la JVM los tiene, PLATFORM si no.
+         */
+        AUTO
+    }
+
+    /**
+     * Politica que se aplica cuando todos los hilos estan ocupados y la cola
+     * esta llena.
+     */
+    public enum RejectPolicy {
+        /**
+         * Se rechaza la tarea y el hilo que acepta conexiones contesta al
+         * cliente con TOOMANYUSERSEXCEPTION.
+         */
+        REPLY,
+        /**
+         * La tarea la ejecuta el propio hilo que acepta conexiones, lo que
+         * frena la aceptacion de nuevos clientes.
+         */
+        CALLERRUNS
+    }
+
+    /**
+     * Constructor del pool de hilos.
+     *
+     * @param coreSize numero de hilos que se mantienen vivos
+     * @param maxSize numero maximo de hilos
+     * @param queueSize numero maximo de clientes esperando en la cola
+     * @param keepAliveSeconds segundos que un hilo sobrante espera antes de
+     * terminar
+     * @param policy politica cuando la cola esta llena
+     */
+    public WorkerPool(int coreSize, int maxSize, int queueSize, long keepAliveSeconds, RejectPolicy policy) {
+        this.policy = policy;
+        this.queueCapacity = queueSize;
+        this.platform = new ThreadPoolExecutor(coreSize, maxSize, keepAliveSeconds, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new WorkerThreadFactory(), new CountingRejectHandler());
+        this.executor = platform;
+        this.virtualPermits = null;
+        this.virtualMaxTasks = 0;
+    }
+
+    /**
+     * Constructor del pool en modo VIRTUAL.
+     *
+     * @param virtualExecutor executor que crea un hilo virtual por tarea
+     * @param maxTasks numero maximo de tareas a la vez
+     * @param policy politica cuando se llega al maximo
+     */
+    private WorkerPool(ExecutorService virtualExecutor, int maxTasks, RejectPolicy policy) {
+        this.policy = policy;
+        this.queueCapacity = 0;
+        this.platform = null;
+        this.executor = virtualExecutor;
+        this.virtualPermits = new Semaphore(maxTasks);
+        this.virtualMaxTasks = maxTasks;
+    }
+
+    /**
+     * Este metodo pretende crear un pool con un hilo virtual por tarea.
+     *
+     * @param maxTasks numero maximo de tareas a la vez
+     * @param policy politica cuando se llega al maximo
+     * @return el pool, o null si la JVM no tiene hilos virtuales.
+     */
+    public static WorkerPool virtual(int maxTasks, RejectPolicy policy) {
+        try {
+            ExecutorService virtualExecutor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new WorkerPool(virtualExecutor, maxTasks, policy);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Este metodo pretende crear el pool a partir de los valores del archivo
+     * de configuracion del servidor.
+     *
+     * @param configFile archivo de configuracion del servidor
+     * @return el pool configurado
+     */
+    public static WorkerPool fromConfig(ResourceBundle configFile) {
+        ExecutionMode mode = ExecutionMode.valueOf(configFile.getString("WORKEREXECUTIONMODE").trim().toUpperCase());
+        int max = Integer.valueOf(configFile.getString("WORKERMAXSIZE"));
+        int queueSize = Integer.valueOf(configFile.getString("WORKERQUEUESIZE"));
+        RejectPolicy policy = RejectPolicy.valueOf(configFile.getString("WORKERREJECTPOLICY").trim().toUpperCase());
+        if (mode != ExecutionMode.PLATFORM) {
+            WorkerPool pool = virtual(max + queueSize, policy);
+            if (pool != null) {
+                logger.info("Los clientes se atienden con hilos virtuales, como mucho " + (max + queueSize) + " a la vez");
+                return pool;
+            }
+            if (mode == ExecutionMode.VIRTUAL) {
+                logger.info("La JVM no tiene hilos virtuales, se usan hilos de plataforma");
+            }
+        }
+        int core = Math.min(Integer.valueOf(configFile.getString("WORKERCORESIZE")), max);
+        return new WorkerPool(core, max, queueSize,
+                Long.valueOf(configFile.getString("WORKERKEEPALIVE")), policy);
+    }
+
+    /**
+     * Este metodo pretende entregar una tarea al pool.
+     *
+     * @param task tarea a ejecutar
+     * @return true si la tarea se ha aceptado, false si se ha rechazado y hay
+     * que contestar al cliente desde el hilo que acepta conexiones.
+     */
+    public boolean execute(Runnable task) {
+        submitted.increment();
+        if (virtualPermits != null && !virtualPermits.tryAcquire()) {
+            rejected.increment();
+            logger.fine(() -> "Pool de hilos virtuales saturado: activos=" + active.get() + "/" + virtualMaxTasks);
+            if (policy != RejectPolicy.CALLERRUNS || executor.isShutdown()) {
+                return false;
+            }
+            track(task).run();
+            return true;
+        }
+        try {
+            executor.execute(virtualPermits == null ? track(task) : () -> {
+                try {
+                    track(task).run();
+                } finally {
+                    virtualPermits.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            if (virtualPermits != null) {
+                virtualPermits.release();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Envuelve la tarea para llevar la cuenta de las activas y terminadas.
+     */
+    private Runnable track(Runnable task) {
+        return () -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                completed.increment();
+            }
+        };
+    }
+
+    /**
+     * Este metodo pretende dejar de aceptar tareas nuevas.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return true si las tareas se ejecutan en hilos virtuales.
+     */
+    public boolean isVirtual() {
+        return platform == null;
+    }
+
+    /**
+     * @return numero de tareas ejecutandose en este momento.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return numero de hilos creados en el pool; en modo VIRTUAL, las tareas
+     * en ejecucion.
+     */
+    public int getPoolSize() {
+        return platform == null ? active.get() : platform.getPoolSize();
+    }
+
+    /**
+     * @return numero maximo de hilos del pool; en modo VIRTUAL, de tareas a
+     * la vez.
+     */
+    public int getMaxPoolSize() {
+        return platform == null ? virtualMaxTasks : platform.getMaximumPoolSize();
+    }
+
+    /**
+     * @return numero de tareas esperando en la cola.
+     */
+    public int getQueueSize() {
+        return platform == null ? 0 : platform.getQueue().size();
+    }
+
+    /**
+     * @return capacidad de la cola.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return numero de tareas entregadas al pool.
+     */
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return numero de tareas rechazadas porque el pool estaba saturado.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return numero de tareas terminadas.
+     */
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    /**
+     * Cuenta los rechazos y aplica la politica configurada.
+     */
+    private class CountingRejectHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            rejected.increment();
+            logger.fine(() -> "Pool de hilos saturado: activos=" + e.getActiveCount()
+                    + " cola=" + e.getQueue().size() + "/" + queueCapacity);
+            if (policy == RejectPolicy.CALLERRUNS && !e.isShutdown()) {
+                r.run();
+            } else {
+                throw new RejectedExecutionException("Pool de hilos saturado");
+            }
+        }
+    }
+
+    /**
+     * Da nombre a los hilos del pool para poder reconocerlos.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "server-worker-" + count.incrementAndGet());
+        }
+    }
+
+}
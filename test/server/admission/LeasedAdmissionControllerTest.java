@@ -0,0 +1,122 @@
+package server.admission;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pruebas de LeasedAdmissionController con varios servidores en la misma JVM
+ * repartiendose un EmbeddedCoordinator: entre todos no pasan del limite del
+ * cluster, los huecos de un servidor que deja de renovar vuelven al caducar y
+ * el hilo que acepta conexiones no espera al coordinador.
+ *
+ * @author Steven Arce
+ */
+public class LeasedAdmissionControllerTest {
+
+    private static final int CLUSTER_LIMIT = 10;
+    private static final long WAIT_MILLIS = 2000;
+    private LeasedAdmissionController first;
+    private LeasedAdmissionController second;
+
+    @After
+    public void tearDown() {
+        if (first != null) {
+            first.shutdown();
+        }
+        if (second != null) {
+            second.shutdown();
+        }
+    }
+
+    @Test
+    public void serversShareTheClusterLimit() throws Exception {
+        EmbeddedCoordinator coordinator = new EmbeddedCoordinator(CLUSTER_LIMIT);
+        first = new LeasedAdmissionController(coordinator, "uno", CLUSTER_LIMIT, 2, 60000);
+        second = new LeasedAdmissionController(coordinator, "dos", CLUSTER_LIMIT, 2, 60000);
+        //Cada uno coge lo que pueda, dando tiempo a que lleguen los bloques
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (first.getInUse() + second.getInUse() < CLUSTER_LIMIT && System.nanoTime() - end < 0) {
+            first.tryAcquire();
+            second.tryAcquire();
+            Thread.sleep(5);
+        }
+        assertEquals(CLUSTER_LIMIT, first.getInUse() + second.getInUse());
+        assertTrue("Los dos servidores tienen que haber atendido clientes",
+                first.getInUse() > 0 && second.getInUse() > 0);
+        //Lleno: nadie pasa aunque se le de tiempo a pedir mas
+        for (int i = 0; i < 20; i++) {
+            assertFalse(first.tryAcquire());
+            assertFalse(second.tryAcquire());
+            Thread.sleep(5);
+        }
+        assertTrue(coordinator.getHeld() <= CLUSTER_LIMIT);
+        //Lo que devuelve un servidor al cerrar lo puede coger el otro
+        first.shutdown();
+        first = null;
+        assertTrue("Los huecos devueltos no han llegado al otro servidor", acquireWithin(second, WAIT_MILLIS));
+    }
+
+    @Test
+    public void leaseOfAStoppedServerExpires() throws Exception {
+        EmbeddedCoordinator coordinator = new EmbeddedCoordinator(CLUSTER_LIMIT);
+        //Un servidor que se ha quedado con todo y ya no renueva
+        assertEquals(CLUSTER_LIMIT, coordinator.lease("caido", CLUSTER_LIMIT, CLUSTER_LIMIT, 300));
+        first = new LeasedAdmissionController(coordinator, "uno", CLUSTER_LIMIT, 2, 60000);
+        assertFalse(first.tryAcquire());
+        assertTrue("Los huecos del servidor caido no han vuelto al cluster", acquireWithin(first, WAIT_MILLIS));
+    }
+
+    @Test
+    public void tryAcquireDoesNotWaitForTheCoordinator() throws Exception {
+        SlowCoordinator coordinator = new SlowCoordinator(CLUSTER_LIMIT);
+        first = new LeasedAdmissionController(coordinator, "uno", CLUSTER_LIMIT, 2, 60000);
+        coordinator.delayMillis = 500;
+        long start = System.nanoTime();
+        for (int i = 0; i < CLUSTER_LIMIT; i++) {
+            first.tryAcquire();
+        }
+        assertTrue("tryAcquire ha esperado al coordinador",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(coordinator.delayMillis / 2));
+        //Los que faltaban llegan despues, sin que nadie espere
+        assertTrue(acquireWithin(first, WAIT_MILLIS));
+    }
+
+    private static boolean acquireWithin(LeasedAdmissionController controller, long millis) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() - end < 0) {
+            if (controller.tryAcquire()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * Coordinador que tarda delayMillis en contestar a cada alquiler.
+     */
+    private static class SlowCoordinator extends EmbeddedCoordinator {
+
+        private volatile long delayMillis;
+
+        private SlowCoordinator(int limit) {
+            super(limit);
+        }
+
+        @Override
+        public int lease(String node, int wanted, int inUse, long ttlMillis) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return super.lease(node, wanted, inUse, ttlMillis);
+        }
+
+    }
+
+}
@@ -0,0 +1,93 @@
+package server.codec;
+
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import lib.message.Message;
+import lib.message.Msg;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import server.serverSocket.BulkSignUpRequest;
+import server.serverSocket.MessageEnvelope;
+
+/**
+ * Pruebas de la serializacion de Java del servidor: se leen los mensajes de
+ * los clientes y nada mas.
+ *
+ * @author Steven Arce
+ */
+public class WhitelistObjectInputStreamTest {
+
+    private final JavaSerializationCodec codec = JavaSerializationCodec.INSTANCE;
+
+    @Test
+    public void messagesAreRead() throws Exception {
+        Message message = new Message();
+        message.setMsg(Msg.SIGNIN);
+        message.setUser(user("abcd"));
+        MessageEnvelope envelope = (MessageEnvelope) codec.decode(codec.encode(new MessageEnvelope(7, message)));
+        assertEquals(7, envelope.getId());
+        assertEquals("abcd", envelope.getMessage().getUser().getLogin());
+        List<User> users = new ArrayList<>();
+        users.add(user("uno"));
+        users.add(user("dos"));
+        BulkSignUpRequest bulk = (BulkSignUpRequest) codec.decode(codec.encode(new BulkSignUpRequest(users)));
+        assertEquals(2, bulk.getUsers().size());
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void otherClassesAreRejected() throws Exception {
+        codec.decode(codec.encode(new HashMap<String, String>()));
+    }
+
+    @Test(expected = InvalidObjectException.class)
+    public void tooManyObjectsAreRejected() throws Exception {
+        //Cada usuario son cuatro cadenas distintas, una fecha y el propio usuario
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < WhitelistObjectInputStream.MAX_OBJECTS / 4; i++) {
+            users.add(user("u" + i));
+        }
+        codec.decode(codec.encode(new BulkSignUpRequest(users)));
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void deepNestingIsRejected() throws Exception {
+        Assume.assumeTrue("Sin ObjectInputFilter no se limita la profundidad", hasObjectInputFilter());
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            List<Object> outer = new ArrayList<>();
+            outer.add(list);
+            list = outer;
+        }
+        codec.decode(codec.encode(list));
+    }
+
+    private static boolean hasObjectInputFilter() {
+        try {
+            Class.forName("java.io.ObjectInputFilter");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    private static User user(String login) {
+        User user = new User();
+        user.setLogin(login);
+        user.setEmail(login + "@example.com");
+        user.setFullName("Prueba " + login);
+        user.setPassword("abcd1234");
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setLastPasswordChange(new Timestamp(0));
+        return user;
+    }
+
+}
@@ -0,0 +1,38 @@
+package server.controller;
+
+import lib.dataModel.User;
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pruebas de la generacion de UserCache: el resultado de una consulta no se
+ * guarda si el login se ha olvidado mientras se hacia.
+ *
+ * @author Steven Arce
+ */
+public class UserCacheTest {
+
+    @Test
+    public void putWithCurrentGenerationIsKept() {
+        UserCache cache = new UserCache(10, 60000, 60000);
+        User user = new User();
+        cache.put("ana", user, cache.generation("ana"));
+        assertTrue(cache.get("ana").isFound());
+        assertSame(user, cache.get("ana").getUser());
+    }
+
+    @Test
+    public void putAfterInvalidateIsSkipped() {
+        UserCache cache = new UserCache(10, 60000, 60000);
+        //Consulta que empieza antes de que se registre el usuario
+        long generation = cache.generation("ana");
+        cache.invalidate("ana");
+        cache.put("ana", null, generation);
+        assertFalse("Se ha guardado como inexistente un login recien registrado", cache.get("ana").isFound());
+        cache.put("ana", new User(), cache.generation("ana"));
+        assertTrue(cache.get("ana").isFound());
+    }
+
+}
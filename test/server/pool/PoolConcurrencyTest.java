@@ -0,0 +1,180 @@
+package server.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import lib.exceptions.PasswordDontMatchException;
+import lib.exceptions.UserExistException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import server.controller.DAOableImplementation;
+
+/**
+ * Pruebas del Pool y de la cache de statements con muchos mas hilos que
+ * conexiones contra la base de datos embebida. Al terminar no puede quedar
+ * ninguna conexion prestada ni ningun statement de la cache sin cerrar,
+ * tampoco cuando las operaciones fallan a medias.
+ *
+ * @author Steven Arce
+ */
+public class PoolConcurrencyTest {
+
+    private static final int THREADS = 32;
+    private static final int ITERATIONS = 200;
+    //Mas querys distintas que statementCacheSize, para que la cache tenga que sacar statements
+    private static final int QUERIES = 25;
+    private static Pool pool;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("server.pool.BDconfig.embedded", "true");
+        pool = Pool.getInstance();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Pool.shutDownPool();
+    }
+
+    @Test
+    public void borrowPrepareAndRelease() throws Exception {
+        hammer(i -> {
+            Connection con = pool.getConnection();
+            try {
+                try (PreparedStatement stmt = pool.prepareStatement(con,
+                        "select " + (i % QUERIES) + " from user where login=?")) {
+                    stmt.setString(1, "login" + i);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                    }
+                }
+                if (i % 7 == 0) {
+                    //El statement ya esta cerrado, la conexion se devuelve en el finally
+                    throw new SQLException("Fallo provocado");
+                }
+            } catch (SQLException ex) {
+                if (i % 7 != 0) {
+                    throw ex;
+                }
+            } finally {
+                pool.releaseConnection(con);
+            }
+        });
+        assertNoLeaks();
+    }
+
+    @Test
+    public void signUpAndSignInWithDao() throws Exception {
+        DAOableImplementation dao = new DAOableImplementation();
+        AtomicInteger next = new AtomicInteger();
+        hammer(i -> {
+            User user = user("dao" + next.incrementAndGet());
+            dao.signUp(user);
+            dao.signIn(user);
+            try {
+                dao.signUp(user);
+                throw new AssertionError("Se ha registrado dos veces " + user.getLogin());
+            } catch (UserExistException ex) {
+                //Esperado
+            }
+            User wrong = user(user.getLogin());
+            wrong.setPassword("otra1234");
+            try {
+                dao.signIn(wrong);
+                throw new AssertionError("Ha entrado con otra contraseña " + user.getLogin());
+            } catch (PasswordDontMatchException ex) {
+                //Esperado
+            }
+        });
+        assertNoLeaks();
+    }
+
+    @Test
+    public void concurrentSignUpOfSameLogin() throws Exception {
+        DAOableImplementation dao = new DAOableImplementation();
+        //Todos los hilos registran a la vez el mismo login en cada iteracion
+        AtomicIntegerArray registered = new AtomicIntegerArray(ITERATIONS);
+        hammer(i -> {
+            try {
+                dao.signUp(user("race" + i));
+                registered.incrementAndGet(i);
+            } catch (UserExistException ex) {
+                //Esperado en todos menos uno, tambien si la violacion del unique llega del insert
+            }
+        });
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals("Registros de race" + i, 1, registered.get(i));
+        }
+        assertNoLeaks();
+    }
+
+    /**
+     * Ejecuta la operacion ITERATIONS veces en cada uno de los THREADS hilos,
+     * todos a la vez, y falla si alguna lanza una excepcion.
+     */
+    private static void hammer(IterationTask task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        for (int t = 0; t < THREADS; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        task.run(i);
+                    }
+                } catch (Throwable ex) {
+                    errors.add(ex);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue("Los hilos no han terminado", executor.awaitTermination(2, TimeUnit.MINUTES));
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.size() + " hilos han fallado", errors.peek());
+        }
+    }
+
+    private static void assertNoLeaks() {
+        assertEquals("Conexiones sin devolver", 0, pool.getActiveCount());
+        assertEquals("Hilos esperando conexion", 0, pool.getWaiterCount());
+        assertTrue("Mas conexiones libres que maxSize", pool.getIdleCount() <= pool.getMaxSize());
+        assertEquals("Statements sin cerrar", 0, pool.getStatementsInUse());
+    }
+
+    private static User user(String login) {
+        User user = new User();
+        user.setLogin(login);
+        user.setEmail(login + "@example.com");
+        user.setFullName("Prueba " + login);
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setPassword("abcd1234");
+        return user;
+    }
+
+    /**
+     * Iteracion de un hilo.
+     */
+    private interface IterationTask {
+
+        void run(int i) throws Exception;
+    }
+
+}
@@ -0,0 +1,198 @@
+package server.pool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import server.controller.DAOableImplementation;
+
+/**
+ * Pruebas del reparto de lecturas con un primario y dos replicas embebidas.
+ * Las replicas son bases de datos H2 aparte, sin replicacion, asi que un
+ * usuario que solo esta en las replicas solo se encuentra si la lectura ha ido
+ * a una de ellas, y uno registrado con el DAO solo esta en el primario.
+ *
+ * @author Steven Arce
+ */
+public class ReadReplicasTest {
+
+    private static final String OPTIONS = ";MODE=MySQL;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1";
+    private static final String[] REPLICA_URLS = {
+        "jdbc:h2:mem:susidb_replica0" + OPTIONS,
+        "jdbc:h2:mem:susidb_replica1" + OPTIONS
+    };
+    private static String primaryUrl;
+    private static String user;
+    private static String passwd;
+    private static Pool pool;
+    private static ReadReplicas replicas;
+    private static DAOableImplementation dao;
+
+    @BeforeClass
+    public static void setUpClass() throws SQLException {
+        System.setProperty("server.pool.BDconfig.embedded", "true");
+        System.setProperty("server.pool.BDconfig.embeddedReplicaUrls", String.join(",", REPLICA_URLS));
+        //Que el hilo de comprobacion no vuelva a usar la replica caida durante la prueba
+        System.setProperty("server.pool.BDconfig.replicaCheckInterval", "600000");
+        ResourceBundle config = ResourceBundle.getBundle("server.pool.BDconfig");
+        primaryUrl = config.getString("embeddedUrl");
+        user = config.getString("user");
+        passwd = config.getString("passwd");
+        pool = Pool.getInstance();
+        replicas = pool.getReadReplicas();
+        dao = new DAOableImplementation();
+        //En el primario y en las dos replicas
+        for (String url : new String[]{primaryUrl, REPLICA_URLS[0], REPLICA_URLS[1]}) {
+            insert(url, "todas");
+        }
+        //Solo en las replicas
+        insert(REPLICA_URLS[0], "replica");
+        insert(REPLICA_URLS[1], "replica");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Pool.shutDownPool();
+    }
+
+    @Test
+    public void readsGoToReplicas() throws Exception {
+        assertNotNull("No se han creado las replicas", replicas);
+        assertEquals(2, replicas.getReplicaCount());
+        long replicaReads = replicas.getReplicaReadCount();
+        long primaryReads = replicas.getPrimaryReadCount();
+        for (int i = 0; i < 4; i++) {
+            assertNotNull("La lectura no ha ido a una replica", dao.buscarUser(user("replica")));
+        }
+        assertEquals(replicaReads + 4, replicas.getReplicaReadCount());
+        assertEquals(primaryReads, replicas.getPrimaryReadCount());
+    }
+
+    @Test
+    public void writesGoToPrimary() throws Exception {
+        dao.signUp(user("nuevo"));
+        assertTrue("No se ha escrito en el primario", exists(primaryUrl, "nuevo"));
+        assertFalse("Se ha escrito en una replica", exists(REPLICA_URLS[0], "nuevo"));
+        assertFalse("Se ha escrito en una replica", exists(REPLICA_URLS[1], "nuevo"));
+        //Recien escrito, su lectura va al primario aunque las replicas no lo tengan
+        long primaryReads = replicas.getPrimaryReadCount();
+        assertNotNull(dao.buscarUser(user("nuevo")));
+        assertEquals(primaryReads + 1, replicas.getPrimaryReadCount());
+    }
+
+    @Test
+    public void readsFailOverWhenReplicaIsDown() throws Exception {
+        try (Connection con = DriverManager.getConnection(REPLICA_URLS[0], user, passwd);
+                Statement stmt = con.createStatement()) {
+            stmt.execute("shutdown");
+        }
+        long failovers = replicas.getFailoverCount();
+        //Las lecturas se turnan, alguna de las primeras tiene que ir a la replica caida
+        for (int i = 0; i < 4; i++) {
+            assertNotNull("Ha fallado una lectura con una replica caida", dao.buscarUser(user("todas")));
+        }
+        assertEquals(failovers + 1, replicas.getFailoverCount());
+        assertFalse(replicas.isHealthy(0));
+        assertTrue(replicas.isHealthy(1));
+        //Las siguientes van todas a la replica que queda
+        long replicaReads = replicas.getReplicaReadCount();
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(dao.buscarUser(user("replica")));
+        }
+        assertEquals(replicaReads + 4, replicas.getReplicaReadCount());
+        assertEquals(failovers + 1, replicas.getFailoverCount());
+        assertEquals("Conexiones de la replica sin devolver", 0, replicas.getReplica(1).getActiveCount());
+        assertEquals("Conexiones sin devolver", 0, pool.getActiveCount());
+    }
+
+    @Test
+    public void busyReplicasAreNotMarkedDown() throws Exception {
+        List<Connection> borrowed = new ArrayList<>();
+        long failovers = replicas.getFailoverCount();
+        long primaryReads = replicas.getPrimaryReadCount();
+        try {
+            //Todas las conexiones de todas las replicas prestadas
+            for (int r = 0; r < replicas.getReplicaCount(); r++) {
+                Pool replica = replicas.getReplica(r);
+                while (!replica.isSuspended() && replica.getActiveCount() < replica.getMaxSize()) {
+                    borrowed.add(replica.getConnection());
+                }
+            }
+            long start = System.nanoTime();
+            assertNotNull(dao.buscarUser(user("todas")));
+            assertTrue("La lectura ha esperado a las replicas ocupadas",
+                    System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            assertEquals(primaryReads + 1, replicas.getPrimaryReadCount());
+            assertEquals("Se ha marcado como caida una replica ocupada", failovers, replicas.getFailoverCount());
+        } finally {
+            for (Connection con : borrowed) {
+                pool.releaseConnection(con);
+            }
+        }
+    }
+
+    @Test
+    public void queryTimeoutDoesNotMarkReplicaDown() throws Exception {
+        long failovers = replicas.getFailoverCount();
+        Connection con = pool.getReadConnection("todas");
+        try {
+            assertTrue(pool.reportReadFailure(con, new SQLTimeoutException("Plazo agotado", "HYT00")));
+        } finally {
+            pool.releaseConnection(con);
+        }
+        assertEquals(failovers, replicas.getFailoverCount());
+    }
+
+    private static void insert(String url, String login) throws SQLException {
+        try (Connection con = DriverManager.getConnection(url, user, passwd);
+                PreparedStatement stmt = con.prepareStatement(
+                        "insert into user (login,email,fullname,status,privilege,password) values(?,?,?,?,?,?)")) {
+            stmt.setString(1, login);
+            stmt.setString(2, login + "@example.com");
+            stmt.setString(3, "Prueba " + login);
+            stmt.setString(4, UserStatus.ENABLED.toString());
+            stmt.setString(5, UserPrivilege.USER.toString());
+            stmt.setString(6, "x");
+            stmt.executeUpdate();
+        }
+    }
+
+    private static boolean exists(String url, String login) throws SQLException {
+        try (Connection con = DriverManager.getConnection(url, user, passwd);
+                PreparedStatement stmt = con.prepareStatement("select 1 from user where login=?")) {
+            stmt.setString(1, login);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static User user(String login) {
+        User user = new User();
+        user.setLogin(login);
+        user.setEmail(login + "@example.com");
+        user.setFullName("Prueba " + login);
+        user.setStatus(UserStatus.ENABLED);
+        user.setPrivilege(UserPrivilege.USER);
+        user.setPassword("abcd1234");
+        return user;
+    }
+
+}
@@ -0,0 +1,128 @@
+package server.security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lib.exceptions.TooManyUsersException;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import server.RequestDeadline;
+
+/**
+ * Pruebas de PasswordVerifier con un algoritmo lento: el registro masivo no
+ * quita sitio a las contraseñas de los inicios de sesion, y ni el registro
+ * masivo ni las demas esperan mas alla del plazo de la peticion.
+ *
+ * @author Steven Arce
+ */
+public class PasswordVerifierTest {
+
+    private static final long HASH_MILLIS = 100;
+    private final SlowHasher hasher = new SlowHasher();
+    private final PasswordVerifier verifier = new PasswordVerifier(hasher, 1, 1, 1, 100);
+
+    @After
+    public void tearDown() {
+        RequestDeadline.clear();
+        verifier.shutdown();
+    }
+
+    @Test
+    public void bulkDoesNotFillTheInteractiveQueue() throws Exception {
+        Thread bulk = new Thread(() -> verifier.hashAll(passwords(20)));
+        bulk.start();
+        Thread.sleep(HASH_MILLIS / 2);
+        //Con una cola de 1 no cabria si el registro masivo usara los mismos hilos
+        long start = System.nanoTime();
+        assertNotNull(verifier.hash("abcd1234"));
+        assertTrue("El inicio de sesion ha esperado al registro masivo",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(HASH_MILLIS * 5));
+        bulk.join();
+    }
+
+    @Test
+    public void hashAllStopsAtTheDeadline() throws Exception {
+        RequestDeadline.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HASH_MILLIS * 3 + HASH_MILLIS / 2));
+        String[] hashes = verifier.hashAll(passwords(20));
+        int done = 0;
+        for (String hash : hashes) {
+            if (hash != null) {
+                done++;
+            }
+        }
+        assertTrue("Se han calculado " + done + " contraseñas con plazo para 3", done >= 1 && done <= 4);
+        assertNull(hashes[hashes.length - 1]);
+        //Las canceladas no llegan a empezar, como mucho termina la que estaba a medias
+        Thread.sleep(HASH_MILLIS * 3);
+        assertTrue("Se siguen calculando contraseñas sin cliente", hasher.calls.get() <= done + 1);
+    }
+
+    @Test
+    public void hashGivesUpAtTheDeadline() throws Exception {
+        //Ocupa el unico hilo, la siguiente se queda en la cola
+        Thread busy = new Thread(() -> {
+            try {
+                verifier.hash("ocupado");
+            } catch (TooManyUsersException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        busy.start();
+        Thread.sleep(HASH_MILLIS / 4);
+        RequestDeadline.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HASH_MILLIS / 4));
+        long start = System.nanoTime();
+        try {
+            verifier.hash("abcd1234");
+            fail("Se ha esperado a la contraseña despues del plazo");
+        } catch (TooManyUsersException ex) {
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(HASH_MILLIS / 2));
+        }
+        busy.join();
+        //La cancelada no llega a calcularse
+        Thread.sleep(HASH_MILLIS * 2);
+        assertEquals(1, hasher.calls.get());
+    }
+
+    private static String[] passwords(int count) {
+        String[] passwords = new String[count];
+        for (int i = 0; i < count; i++) {
+            passwords[i] = "clave" + i;
+        }
+        return passwords;
+    }
+
+    /**
+     * Algoritmo que tarda HASH_MILLIS en cada contraseña.
+     */
+    private static class SlowHasher implements PasswordHasher {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String hash(String password) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(HASH_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return "slow$" + password;
+        }
+
+        @Override
+        public boolean verify(String password, String stored) {
+            return hash(password).equals(stored);
+        }
+
+        @Override
+        public boolean needsRehash(String stored) {
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,32 @@
+package server.security;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pruebas de PlainPasswordHasher: un hash de PBKDF2 guardado no sirve como
+ * contraseña en claro.
+ *
+ * @author Steven Arce
+ */
+public class PlainPasswordHasherTest {
+
+    private final PlainPasswordHasher plain = new PlainPasswordHasher();
+
+    @Test
+    public void plainPasswordsStillWork() {
+        assertTrue(plain.verify("abcd1234", "abcd1234"));
+        assertFalse(plain.verify("abcd1235", "abcd1234"));
+        assertFalse(plain.needsRehash("abcd1234"));
+    }
+
+    @Test
+    public void storedHashIsNotAPassword() {
+        String stored = new Pbkdf2PasswordHasher(1000).hash("abcd1234");
+        assertFalse("Se ha entrado mandando el hash guardado", plain.verify(stored, stored));
+        assertFalse(plain.verify("abcd1234", stored));
+        assertTrue(plain.needsRehash(stored));
+    }
+
+}
@@ -0,0 +1,88 @@
+package server.serverSocket;
+
+import java.net.InetAddress;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ResourceBundle;
+import lib.dataModel.User;
+import lib.dataModel.UserPrivilege;
+import lib.dataModel.UserStatus;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import server.codec.BinaryCodec;
+
+/**
+ * Pruebas de BulkSignUpPolicy: solo los clientes de la lista pueden hacer
+ * registros masivos, y de como mucho BULKMAXUSERS usuarios.
+ *
+ * @author Steven Arce
+ */
+public class BulkSignUpPolicyTest {
+
+    private static final InetAddress ADMIN = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void allowedClientWithinLimit() throws Exception {
+        BulkSignUpPolicy policy = new BulkSignUpPolicy(2, Collections.singleton(ADMIN));
+        assertNull(policy.check(request(2), ADMIN));
+    }
+
+    @Test
+    public void oversizedRequestIsRejected() throws Exception {
+        BulkSignUpPolicy policy = new BulkSignUpPolicy(2, Collections.singleton(ADMIN));
+        assertEquals(BulkSignUpReply.Rejection.TOO_LARGE, policy.check(request(3), ADMIN));
+    }
+
+    @Test
+    public void unknownClientIsRejected() throws Exception {
+        BulkSignUpPolicy policy = new BulkSignUpPolicy(2, Collections.singleton(ADMIN));
+        assertEquals(BulkSignUpReply.Rejection.FORBIDDEN,
+                policy.check(request(1), InetAddress.getByName("192.0.2.1")));
+        assertEquals(BulkSignUpReply.Rejection.FORBIDDEN, policy.check(request(1), null));
+    }
+
+    @Test
+    public void rejectionSurvivesBinaryCodec() throws Exception {
+        byte[] bytes = BinaryCodec.INSTANCE.encode(new BulkSignUpReply(BulkSignUpReply.Rejection.TOO_LARGE));
+        BulkSignUpReply reply = (BulkSignUpReply) BinaryCodec.INSTANCE.decode(bytes);
+        assertEquals(BulkSignUpReply.Rejection.TOO_LARGE, reply.getRejection());
+        assertEquals(0, reply.getOutcomes().length);
+    }
+
+    @Test
+    public void requestAtTheCapFitsInTheFrame() throws Exception {
+        ResourceBundle config = ResourceBundle.getBundle("server.serverSocket.ServerProperties");
+        int maxUsers = Integer.valueOf(config.getString("BULKMAXUSERS"));
+        int maxFrameSize = Integer.valueOf(config.getString("MAXFRAMESIZE"));
+        BulkSignUpPolicy policy = new BulkSignUpPolicy(maxUsers, Collections.singleton(ADMIN));
+        //Usuarios con todos los campos del tamaño de las columnas
+        String field = String.join("", Collections.nCopies(50, "x"));
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < maxUsers; i++) {
+            User user = new User();
+            user.setLogin(field);
+            user.setEmail(field);
+            user.setFullName(field);
+            user.setPassword(field);
+            user.setStatus(UserStatus.ENABLED);
+            user.setPrivilege(UserPrivilege.USER);
+            user.setLastPasswordChange(new Timestamp(0));
+            users.add(user);
+        }
+        byte[] bytes = BinaryCodec.INSTANCE.encode(new BulkSignUpRequest(users));
+        assertTrue("La peticion de " + maxUsers + " usuarios ocupa " + bytes.length + " bytes",
+                bytes.length <= policy.getMaxFrameSize(ADMIN, maxFrameSize));
+        assertEquals(maxUsers, ((BulkSignUpRequest) BinaryCodec.INSTANCE.decode(bytes)).getUsers().size());
+        //Los demas clientes no pueden mandar tramas mas grandes
+        assertEquals(maxFrameSize, policy.getMaxFrameSize(InetAddress.getByName("192.0.2.1"), maxFrameSize));
+    }
+
+    private static BulkSignUpRequest request(int users) {
+        return new BulkSignUpRequest(Collections.nCopies(users, new User()));
+    }
+
+}